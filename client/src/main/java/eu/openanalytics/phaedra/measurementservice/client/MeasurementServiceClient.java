@@ -21,6 +21,7 @@
 package eu.openanalytics.phaedra.measurementservice.client;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.WellDataDTO;
 import eu.openanalytics.phaedra.measurementservice.client.exception.MeasUnresolvableException;
 
 import java.util.List;
@@ -29,6 +30,8 @@ import java.util.Map;
 public interface MeasurementServiceClient {
 
     float[] getWellData(long measId, String columnName) throws MeasUnresolvableException;
+    Map<String, float[]> getWellData(long measId, List<String> columnNames) throws MeasUnresolvableException;
+    List<WellDataDTO> getWellData(List<Long> measIds, List<String> columnNames) throws MeasUnresolvableException;
     Map<Integer, float[]> getSubWellData(long measId, String columnName) throws MeasUnresolvableException;
 
     MeasurementDTO getMeasurementByMeasId(long measId);
@@ -23,6 +23,7 @@ package eu.openanalytics.phaedra.measurementservice.client.impl;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.WellDataDTO;
 import eu.openanalytics.phaedra.measurementservice.client.MeasurementServiceClient;
 import eu.openanalytics.phaedra.measurementservice.client.exception.MeasUnresolvableException;
 import eu.openanalytics.phaedra.util.PhaedraRestTemplate;
@@ -33,6 +34,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -42,7 +47,7 @@ public class CachingHttpMeasurementServiceClient implements MeasurementServiceCl
     private final HttpMeasurementServiceClient httpMeasurementServiceClient;
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private record CacheDataKey(long measId, String columnName) {};
+    private record CacheDataKey(long measId, String columnName) {}
     private final Cache<CacheDataKey, float[]> wellDataCache;
     private final Cache<CacheDataKey, Map<Integer, float[]>> subWellDataCache;
 
@@ -71,6 +76,57 @@ public class CachingHttpMeasurementServiceClient implements MeasurementServiceCl
         return res;
     }
 
+    @Override
+    public Map<String, float[]> getWellData(long measId, List<String> columnNames) throws MeasUnresolvableException {
+        var res = new HashMap<String, float[]>();
+        var missingColumns = new ArrayList<String>();
+        for (String columnName: columnNames) {
+            var values = wellDataCache.getIfPresent(new CacheDataKey(measId, columnName));
+            if (values == null) missingColumns.add(columnName);
+            else res.put(columnName, values);
+        }
+        if (!missingColumns.isEmpty()) {
+            var fetched = httpMeasurementServiceClient.getWellData(measId, missingColumns);
+            fetched.forEach((columnName, values) -> wellDataCache.put(new CacheDataKey(measId, columnName), values));
+            res.putAll(fetched);
+        }
+        if (missingColumns.size() < columnNames.size()) {
+            logger.info(String.format("Retrieved objects from cache: WellData measId=%s, columnCount=%d",  measId, columnNames.size() - missingColumns.size()));
+        }
+        return res;
+    }
+
+    @Override
+    public List<WellDataDTO> getWellData(List<Long> measIds, List<String> columnNames) throws MeasUnresolvableException {
+        var res = new ArrayList<WellDataDTO>();
+        var resKeys = new HashSet<CacheDataKey>();
+        var missingMeasIds = new LinkedHashSet<Long>();
+        var missingColumns = new LinkedHashSet<String>();
+        for (Long measId: measIds) {
+            for (String columnName: columnNames) {
+                var values = wellDataCache.getIfPresent(new CacheDataKey(measId, columnName));
+                if (values == null) {
+                    missingMeasIds.add(measId);
+                    missingColumns.add(columnName);
+                } else {
+                    res.add(new WellDataDTO(measId, columnName, values));
+                    resKeys.add(new CacheDataKey(measId, columnName));
+                }
+            }
+        }
+        if (!missingMeasIds.isEmpty()) {
+            // Note: this may fetch some combinations that were already cached, but it still takes one request.
+            var fetched = httpMeasurementServiceClient.getWellData(new ArrayList<>(missingMeasIds), new ArrayList<>(missingColumns));
+            for (WellDataDTO wellData: fetched) {
+                var key = new CacheDataKey(wellData.getMeasurementId(), wellData.getColumn());
+                if (!resKeys.add(key)) continue;
+                wellDataCache.put(key, wellData.getData());
+                res.add(wellData);
+            }
+        }
+        return res;
+    }
+
     @Override
     public Map<Integer, float[]> getSubWellData(long measId, String columnName) throws MeasUnresolvableException {
     	 var key = new CacheDataKey(measId, columnName);
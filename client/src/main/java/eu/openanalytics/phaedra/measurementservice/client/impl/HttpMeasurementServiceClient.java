@@ -20,18 +20,28 @@
  */
 package eu.openanalytics.phaedra.measurementservice.client.impl;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.WellDataDTO;
+import eu.openanalytics.phaedra.measservice.dto.codec.FloatArrayCodec;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec;
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec;
 import eu.openanalytics.phaedra.measurementservice.client.MeasurementServiceClient;
 import eu.openanalytics.phaedra.measurementservice.client.exception.MeasUnresolvableException;
 import eu.openanalytics.phaedra.util.PhaedraRestTemplate;
@@ -52,8 +62,24 @@ public class HttpMeasurementServiceClient implements MeasurementServiceClient {
     public float[] getWellData(long measId, String columnName) throws MeasUnresolvableException {
         try {
             var res = restTemplate.exchange(UrlFactory.measurementWellData(measId, columnName), HttpMethod.GET,
-            		new HttpEntity<>(makeHttpHeaders()), float[].class);
-            if (res == null) throw new MeasUnresolvableException("WellData could not be converted");
+            		new HttpEntity<>(makeBinaryHttpHeaders()), byte[].class);
+            if (res == null || res.getBody() == null || !isBinary(res)) throw new MeasUnresolvableException("WellData could not be converted");
+            return FloatArrayCodec.decode(res.getBody());
+        } catch (IllegalArgumentException ex) {
+            throw new MeasUnresolvableException("WellData could not be converted");
+        } catch (HttpClientErrorException.NotFound ex) {
+            throw new MeasUnresolvableException("WellData not found");
+        } catch (HttpClientErrorException ex) {
+            throw new MeasUnresolvableException("Error while fetching WellData");
+        }
+    }
+
+    @Override
+    public Map<String, float[]> getWellData(long measId, List<String> columnNames) throws MeasUnresolvableException {
+        try {
+            var res = restTemplate.exchange(UrlFactory.measurementWellData(measId, columnNames), HttpMethod.GET,
+            		new HttpEntity<>(makeHttpHeaders()), new ParameterizedTypeReference<Map<String, float[]>>() {});
+            if (res == null || res.getBody() == null) throw new MeasUnresolvableException("WellData could not be converted");
             return res.getBody();
         } catch (HttpClientErrorException.NotFound ex) {
             throw new MeasUnresolvableException("WellData not found");
@@ -62,14 +88,41 @@ public class HttpMeasurementServiceClient implements MeasurementServiceClient {
         }
     }
 
-    @SuppressWarnings("unchecked")
-	@Override
+    /**
+     * Fetch the welldata of many measurements with a single request.
+     * The response is decoded while it is being received.
+     */
+    @Override
+    public List<WellDataDTO> getWellData(List<Long> measIds, List<String> columnNames) throws MeasUnresolvableException {
+        try {
+            HttpHeaders headers = makeBinaryHttpHeaders();
+            var res = restTemplate.execute(UrlFactory.measurementsWellData(measIds, columnNames), HttpMethod.GET,
+            		request -> request.getHeaders().addAll(headers),
+            		response -> {
+            			List<WellDataDTO> wellData = new ArrayList<>();
+            			WellDataBatchCodec.decode(response.getBody(), (measId, column, values) -> wellData.add(new WellDataDTO(measId, column, values)));
+            			return wellData;
+            		});
+            if (res == null) throw new MeasUnresolvableException("WellData could not be converted");
+            return res;
+        } catch (ResourceAccessException ex) {
+            throw new MeasUnresolvableException("WellData could not be converted");
+        } catch (HttpClientErrorException.NotFound ex) {
+            throw new MeasUnresolvableException("WellData not found");
+        } catch (HttpClientErrorException ex) {
+            throw new MeasUnresolvableException("Error while fetching WellData");
+        }
+    }
+
+    @Override
     public Map<Integer, float[]> getSubWellData(long measId, String columnName) throws MeasUnresolvableException {
     	try {
             var res = restTemplate.exchange(UrlFactory.measurementSubWellData(measId, columnName), HttpMethod.GET,
-            		new HttpEntity<>(makeHttpHeaders()), Map.class);
-            if (res == null) throw new MeasUnresolvableException("WellData could not be converted");
-            return res.getBody();
+            		new HttpEntity<>(makeBinaryHttpHeaders()), byte[].class);
+            if (res == null || res.getBody() == null || !isBinary(res)) throw new MeasUnresolvableException("WellData could not be converted");
+            return SubWellColumnCodec.decode(res.getBody());
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new MeasUnresolvableException("WellData could not be converted");
         } catch (HttpClientErrorException.NotFound ex) {
             throw new MeasUnresolvableException("WellData not found");
         } catch (HttpClientErrorException ex) {
@@ -101,4 +154,19 @@ public class HttpMeasurementServiceClient implements MeasurementServiceClient {
     	if (bearerToken != null) httpHeaders.set(HttpHeaders.AUTHORIZATION, String.format("Bearer %s", bearerToken));
     	return httpHeaders;
     }
+
+    /**
+     * Well and subwell data is requested in its binary form, which is much more compact than JSON.
+     * A server that does not support it responds with JSON instead, which must not be decoded as binary data.
+     */
+    private HttpHeaders makeBinaryHttpHeaders() {
+    	HttpHeaders httpHeaders = makeHttpHeaders();
+    	httpHeaders.setAccept(Collections.singletonList(MediaType.APPLICATION_OCTET_STREAM));
+    	return httpHeaders;
+    }
+
+    private static boolean isBinary(ResponseEntity<?> response) {
+    	MediaType contentType = response.getHeaders().getContentType();
+    	return contentType != null && MediaType.APPLICATION_OCTET_STREAM.isCompatibleWith(contentType);
+    }
 }
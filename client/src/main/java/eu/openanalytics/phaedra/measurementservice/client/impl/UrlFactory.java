@@ -20,6 +20,8 @@
  */
 package eu.openanalytics.phaedra.measurementservice.client.impl;
 
+import java.util.List;
+
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -31,6 +33,21 @@ public class UrlFactory {
         return String.format("%s/measurements/%s/welldata/%s", MEAS_SERVICE, measId, columnName);
     }
 
+    public static String measurementWellData(long measId, List<String> columnNames) {
+        String url = String.format("%s/measurements/%s/welldata", MEAS_SERVICE, measId);
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(url)
+                .queryParam("columns", StringUtils.join(columnNames, ','));
+        return builder.build().toString();
+    }
+
+    public static String measurementsWellData(List<Long> measIds, List<String> columnNames) {
+        String url = String.format("%s/measurements/welldata", MEAS_SERVICE);
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(url)
+                .queryParam("ids", StringUtils.join(measIds, ','))
+                .queryParam("columns", StringUtils.join(columnNames, ','));
+        return builder.build().toString();
+    }
+
     public static String measurementSubWellData(long measId, String columnName) {
         return String.format("%s/measurements/%s/subwelldata/%s", MEAS_SERVICE, measId, columnName);
     }
@@ -0,0 +1,44 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.dto.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes a float[] as its raw little-endian values, without any header.
+ * The number of values is derived from the length of the encoded bytes.
+ */
+public class FloatArrayCodec {
+
+	public static byte[] encode(float[] values) {
+		byte[] bytes = new byte[values.length * Float.BYTES];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(values);
+		return bytes;
+	}
+
+	public static float[] decode(byte[] bytes) {
+		if (bytes.length % Float.BYTES != 0) throw new IllegalArgumentException("Float array length is not a multiple of " + Float.BYTES + ": " + bytes.length);
+		float[] values = new float[bytes.length / Float.BYTES];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+		return values;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.dto.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Encodes the subwell data of all wells of a single column into one blob.
+ * <p>
+ * Layout (all values little-endian):
+ * <pre>
+ * int     magic       "PSWC"
+ * int     version
+ * int     wellCount
+ * int[]   wellNrs     (wellCount entries, ascending)
+ * int[]   offsets     (wellCount + 1 entries, in floats, relative to the start of the values)
+ * float[] values      (the values of all wells, concatenated)
+ * </pre>
+ * The header can be parsed on its own, which allows the values of a single well
+ * to be read with a ranged request.
+ * <p>
+ * The same layout is used as the binary (application/octet-stream) representation
+ * of subwell data in the REST API.
+ */
+public class SubWellColumnCodec {
+
+	public static final int MAGIC = 0x43575350;
+	public static final int VERSION = 1;
+
+	private static final int FIXED_HEADER_SIZE = 12;
+
+	public static byte[] encode(SortedMap<Integer, float[]> data) {
+		int wellCount = data.size();
+		int valueCount = data.values().stream().mapToInt(v -> v.length).sum();
+		int headerSize = getHeaderSize(wellCount);
+
+		byte[] blob = new byte[headerSize + valueCount * Float.BYTES];
+		ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(wellCount);
+		for (Integer wellNr: data.keySet()) buffer.putInt(wellNr);
+
+		int offset = 0;
+		buffer.putInt(offset);
+		for (float[] values: data.values()) {
+			offset += values.length;
+			buffer.putInt(offset);
+		}
+
+		FloatBuffer valueBuffer = buffer.asFloatBuffer();
+		for (float[] values: data.values()) valueBuffer.put(values);
+		return blob;
+	}
+
+	public static Map<Integer, float[]> decode(byte[] blob) throws IOException {
+		Index index = decodeIndex(blob);
+		if (index == null) throw new IOException("Incomplete subwell column header");
+
+		FloatBuffer valueBuffer = ByteBuffer.wrap(blob, index.getHeaderSize(), blob.length - index.getHeaderSize())
+				.order(ByteOrder.LITTLE_ENDIAN)
+				.asFloatBuffer();
+
+		Map<Integer, float[]> data = new LinkedHashMap<>();
+		for (int i = 0; i < index.wellNrs.length; i++) {
+			float[] values = new float[index.offsets[i + 1] - index.offsets[i]];
+			valueBuffer.get(values);
+			data.put(index.wellNrs[i], values);
+		}
+		return data;
+	}
+
+	/**
+	 * Decode a blob from a stream, one well at a time, without reading the whole blob into memory.
+	 * The wells are passed to the consumer in ascending well number order.
+	 */
+	public static void decode(InputStream input, WellValuesConsumer consumer) throws IOException {
+		byte[] fixedHeader = readFully(input, FIXED_HEADER_SIZE);
+		int wellCount = getWellCount(fixedHeader);
+
+		byte[] header = Arrays.copyOf(fixedHeader, getHeaderSize(wellCount));
+		if (input.readNBytes(header, FIXED_HEADER_SIZE, header.length - FIXED_HEADER_SIZE) < header.length - FIXED_HEADER_SIZE) {
+			throw new EOFException("Incomplete subwell column header");
+		}
+		Index index = decodeIndex(header);
+
+		for (int i = 0; i < index.wellNrs.length; i++) {
+			int valueCount = index.offsets[i + 1] - index.offsets[i];
+			consumer.accept(index.wellNrs[i], decodeValues(readFully(input, valueCount * Float.BYTES)));
+		}
+	}
+
+	public static float[] decodeValues(byte[] bytes) {
+		return FloatArrayCodec.decode(bytes);
+	}
+
+	/**
+	 * Decode the header of a blob.
+	 *
+	 * @param bytes The first bytes of the blob.
+	 * @return The decoded index, or null if the given bytes do not contain the complete header.
+	 * @throws IOException If the bytes do not represent a subwell column blob.
+	 */
+	public static Index decodeIndex(byte[] bytes) throws IOException {
+		int wellCount = getWellCount(bytes);
+		if (bytes.length < getHeaderSize(wellCount)) return null;
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position(FIXED_HEADER_SIZE);
+		int[] wellNrs = new int[wellCount];
+		buffer.asIntBuffer().get(wellNrs);
+		buffer.position(FIXED_HEADER_SIZE + wellCount * Integer.BYTES);
+		int[] offsets = new int[wellCount + 1];
+		buffer.asIntBuffer().get(offsets);
+		return new Index(wellNrs, offsets);
+	}
+
+	/**
+	 * Read the well count from the fixed part of the header.
+	 */
+	public static int getWellCount(byte[] bytes) throws IOException {
+		if (bytes.length < FIXED_HEADER_SIZE) throw new IOException("Incomplete subwell column header");
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt() != MAGIC) throw new IOException("Not a subwell column blob");
+		int version = buffer.getInt();
+		if (version != VERSION) throw new IOException("Unsupported subwell column blob version: " + version);
+		return buffer.getInt();
+	}
+
+	public static int getHeaderSize(int wellCount) {
+		return FIXED_HEADER_SIZE + (2 * wellCount + 1) * Integer.BYTES;
+	}
+
+	private static byte[] readFully(InputStream input, int len) throws IOException {
+		byte[] bytes = input.readNBytes(len);
+		if (bytes.length < len) throw new EOFException("Unexpected end of subwell column blob");
+		return bytes;
+	}
+
+	public interface WellValuesConsumer {
+		public void accept(int wellNr, float[] values) throws IOException;
+	}
+
+	public static class Index {
+
+		private final int[] wellNrs;
+		private final int[] offsets;
+
+		private Index(int[] wellNrs, int[] offsets) {
+			this.wellNrs = wellNrs;
+			this.offsets = offsets;
+		}
+
+		public int[] getWellNrs() {
+			return wellNrs;
+		}
+
+		public boolean contains(int wellNr) {
+			return Arrays.binarySearch(wellNrs, wellNr) >= 0;
+		}
+
+		public int getHeaderSize() {
+			return SubWellColumnCodec.getHeaderSize(wellNrs.length);
+		}
+
+		/**
+		 * Get the byte offset, from the start of the blob, of the values of the given well.
+		 */
+		public long getValueOffset(int wellNr) {
+			int i = Arrays.binarySearch(wellNrs, wellNr);
+			if (i < 0) return -1;
+			return getHeaderSize() + (long) offsets[i] * Float.BYTES;
+		}
+
+		public int getValueCount(int wellNr) {
+			int i = Arrays.binarySearch(wellNrs, wellNr);
+			if (i < 0) return -1;
+			return offsets[i + 1] - offsets[i];
+		}
+	}
+}
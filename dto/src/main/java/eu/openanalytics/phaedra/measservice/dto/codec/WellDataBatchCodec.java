@@ -0,0 +1,119 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.dto.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a stream of welldata records, each holding the values of one column of one measurement.
+ * Records can be written and read one at a time, so a batch never has to be held in memory as a whole.
+ * <p>
+ * Layout (all values little-endian):
+ * <pre>
+ * int     magic       "PWDB"
+ * int     version
+ * then for each record:
+ * byte    1
+ * long    measId
+ * int     columnLength
+ * byte[]  column      (UTF-8)
+ * int     valueCount
+ * float[] values
+ * finally:
+ * byte    0
+ * </pre>
+ * The end marker allows a truncated stream to be told apart from a complete one.
+ */
+public class WellDataBatchCodec {
+
+	public static final int MAGIC = 0x42445750;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final byte RECORD_MARKER = 1;
+	private static final byte END_MARKER = 0;
+
+	public static void writeHeader(OutputStream output) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		output.write(buffer.array());
+	}
+
+	public static void writeRecord(OutputStream output, long measId, String column, float[] values) throws IOException {
+		byte[] columnBytes = column.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + columnBytes.length + 4 + values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(RECORD_MARKER);
+		buffer.putLong(measId);
+		buffer.putInt(columnBytes.length);
+		buffer.put(columnBytes);
+		buffer.putInt(values.length);
+		buffer.asFloatBuffer().put(values);
+		output.write(buffer.array());
+	}
+
+	public static void writeEnd(OutputStream output) throws IOException {
+		output.write(END_MARKER);
+	}
+
+	/**
+	 * Decode records from a stream, passing each record to the consumer as soon as it has been read.
+	 */
+	public static void decode(InputStream input, WellDataConsumer consumer) throws IOException {
+		ByteBuffer header = wrap(readFully(input, HEADER_SIZE));
+		if (header.getInt() != MAGIC) throw new IOException("Not a welldata batch stream");
+		int version = header.getInt();
+		if (version != VERSION) throw new IOException("Unsupported welldata batch version: " + version);
+
+		while (true) {
+			int marker = input.read();
+			if (marker == END_MARKER) return;
+			if (marker != RECORD_MARKER) throw new EOFException("Unexpected end of welldata batch stream");
+
+			ByteBuffer recordHeader = wrap(readFully(input, 12));
+			long measId = recordHeader.getLong();
+			String column = new String(readFully(input, recordHeader.getInt()), StandardCharsets.UTF_8);
+			int valueCount = wrap(readFully(input, 4)).getInt();
+			float[] values = FloatArrayCodec.decode(readFully(input, valueCount * Float.BYTES));
+			consumer.accept(measId, column, values);
+		}
+	}
+
+	private static ByteBuffer wrap(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static byte[] readFully(InputStream input, int len) throws IOException {
+		byte[] bytes = input.readNBytes(len);
+		if (bytes.length < len) throw new EOFException("Unexpected end of welldata batch stream");
+		return bytes;
+	}
+
+	public interface WellDataConsumer {
+		public void accept(long measId, String column, float[] values) throws IOException;
+	}
+}
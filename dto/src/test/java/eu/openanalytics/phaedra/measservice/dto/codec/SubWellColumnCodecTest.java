@@ -0,0 +1,103 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.dto.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class SubWellColumnCodecTest {
+
+    @Test
+    public void encodeDecodeColumn() throws IOException {
+        SortedMap<Integer, float[]> data = new TreeMap<>();
+        data.put(1, new float[] { 1.0f, 2.0f, 3.0f });
+        data.put(2, new float[0]);
+        data.put(5, new float[] { Float.NaN, -4.5f });
+
+        Map<Integer, float[]> decoded = SubWellColumnCodec.decode(SubWellColumnCodec.encode(data));
+        assertThat(decoded.keySet()).containsExactly(1, 2, 5);
+        assertThat(decoded.get(1)).containsExactly(1.0f, 2.0f, 3.0f);
+        assertThat(decoded.get(2)).isEmpty();
+        assertThat(decoded.get(5)).containsExactly(Float.NaN, -4.5f);
+    }
+
+    @Test
+    public void readSingleWellFromIndex() throws IOException {
+        SortedMap<Integer, float[]> data = new TreeMap<>();
+        data.put(3, new float[] { 1.0f, 2.0f });
+        data.put(7, new float[] { 3.0f, 4.0f, 5.0f });
+        byte[] blob = SubWellColumnCodec.encode(data);
+
+        byte[] header = Arrays.copyOf(blob, SubWellColumnCodec.getHeaderSize(2));
+        SubWellColumnCodec.Index index = SubWellColumnCodec.decodeIndex(header);
+        assertThat(index.contains(7)).isTrue();
+        assertThat(index.contains(4)).isFalse();
+        assertThat(index.getValueCount(7)).isEqualTo(3);
+
+        int offset = (int) index.getValueOffset(7);
+        byte[] bytes = Arrays.copyOfRange(blob, offset, offset + 3 * Float.BYTES);
+        assertThat(SubWellColumnCodec.decodeValues(bytes)).containsExactly(3.0f, 4.0f, 5.0f);
+    }
+
+    @Test
+    public void decodeColumnFromStream() throws IOException {
+        SortedMap<Integer, float[]> data = new TreeMap<>();
+        data.put(4, new float[] { 1.0f });
+        data.put(9, new float[] { 2.0f, 3.0f });
+        byte[] blob = SubWellColumnCodec.encode(data);
+
+        List<Integer> wellNrs = new ArrayList<>();
+        List<float[]> values = new ArrayList<>();
+        SubWellColumnCodec.decode(new ByteArrayInputStream(blob), (wellNr, v) -> {
+            wellNrs.add(wellNr);
+            values.add(v);
+        });
+        assertThat(wellNrs).containsExactly(4, 9);
+        assertThat(values.get(1)).containsExactly(2.0f, 3.0f);
+
+        byte[] truncated = Arrays.copyOf(blob, blob.length - 1);
+        assertThatThrownBy(() -> SubWellColumnCodec.decode(new ByteArrayInputStream(truncated), (wellNr, v) -> {}))
+            .isInstanceOf(EOFException.class);
+    }
+
+    @Test
+    public void incompleteHeader() throws IOException {
+        SortedMap<Integer, float[]> data = new TreeMap<>();
+        data.put(1, new float[] { 1.0f });
+        data.put(2, new float[] { 2.0f });
+        byte[] blob = SubWellColumnCodec.encode(data);
+
+        assertThat(SubWellColumnCodec.decodeIndex(Arrays.copyOf(blob, 16))).isNull();
+        assertThatThrownBy(() -> SubWellColumnCodec.getWellCount(new byte[16])).isInstanceOf(IOException.class);
+    }
+}
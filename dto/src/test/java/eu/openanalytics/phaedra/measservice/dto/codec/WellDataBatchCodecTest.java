@@ -0,0 +1,65 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.dto.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class WellDataBatchCodecTest {
+
+    @Test
+    public void encodeDecodeRecords() throws IOException {
+        byte[] bytes = encode();
+
+        List<String> records = new ArrayList<>();
+        WellDataBatchCodec.decode(new ByteArrayInputStream(bytes), (measId, column, values) -> {
+            records.add(String.format("%d %s %s", measId, column, Arrays.toString(values)));
+        });
+        assertThat(records).containsExactly("1 Nuclei \u00b5m [1.0, NaN]", "2 Area []");
+    }
+
+    @Test
+    public void truncatedStream() throws IOException {
+        byte[] bytes = encode();
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+        assertThatThrownBy(() -> WellDataBatchCodec.decode(new ByteArrayInputStream(truncated), (measId, column, values) -> {}))
+            .isInstanceOf(EOFException.class);
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        WellDataBatchCodec.writeHeader(os);
+        WellDataBatchCodec.writeRecord(os, 1L, "Nuclei \u00b5m", new float[] { 1.0f, Float.NaN });
+        WellDataBatchCodec.writeRecord(os, 2L, "Area", new float[0]);
+        WellDataBatchCodec.writeEnd(os);
+        return os.toByteArray();
+    }
+}
@@ -20,10 +20,14 @@
  */
 package eu.openanalytics.phaedra.measservice;
 
+import java.net.URI;
+import java.time.Duration;
+
 import javax.sql.DataSource;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
@@ -46,6 +50,11 @@ import eu.openanalytics.phaedra.util.auth.IAuthorizationService;
 import eu.openanalytics.phaedra.util.jdbc.JDBCUtils;
 import io.swagger.v3.oas.models.OpenAPI;
 import io.swagger.v3.oas.models.servers.Server;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 
 @EnableScheduling
 @EnableCaching
@@ -106,6 +115,32 @@ public class MeasServiceApplication {
 				.build();
 	}
 
+	/**
+	 * An NIO-based client for bulk object store operations, see MeasObjectStoreAsyncDAO.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "meas-service.s3.async-client.enabled", havingValue = "true")
+	public S3AsyncClient s3AsyncClient() {
+		String endpoint = environment.getProperty("S3_ENDPOINT", "https://s3.amazonaws.com");
+		String region = environment.getProperty("S3_REGION", "eu-west-1");
+		String username = environment.getProperty("S3_USERNAME");
+		String password = environment.getProperty("S3_PASSWORD");
+		int maxConnections = environment.getProperty("meas-service.s3.async-client.max-connections", Integer.class, 64);
+		long acquireTimeout = environment.getProperty("meas-service.s3.async-client.acquire-timeout", Long.class, 300L);
+
+		return S3AsyncClient.builder()
+				.endpointOverride(URI.create(endpoint))
+				.region(Region.of(region))
+				.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(username, password)))
+				.forcePathStyle(true)
+				.httpClientBuilder(NettyNioAsyncHttpClient.builder()
+						.maxConcurrency(maxConnections)
+						// Bulk operations queue far more requests than there are connections.
+						.maxPendingConnectionAcquires(Integer.MAX_VALUE)
+						.connectionAcquisitionTimeout(Duration.ofSeconds(acquireTimeout)))
+				.build();
+	}
+
 	@Bean
 	public OpenAPI customOpenAPI() {
 		Server server = new Server().url(environment.getProperty("API_URL")).description("Default Server URL");
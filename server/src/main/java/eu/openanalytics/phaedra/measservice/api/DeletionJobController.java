@@ -0,0 +1,43 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.api;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import eu.openanalytics.phaedra.measservice.api.dto.DeletionBacklogDTO;
+import eu.openanalytics.phaedra.measservice.service.MeasDeletionService;
+
+@RestController
+@RequestMapping("/deletionjobs")
+public class DeletionJobController {
+
+	@Autowired
+	private MeasDeletionService deletionService;
+
+	@GetMapping(value = "/backlog")
+	public ResponseEntity<DeletionBacklogDTO> getBacklog() {
+		return ResponseEntity.ok(deletionService.getBacklog());
+	}
+}
@@ -20,7 +20,10 @@
  */
 package eu.openanalytics.phaedra.measservice.api;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -28,7 +31,11 @@ import java.util.Optional;
 import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -36,15 +43,22 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import eu.openanalytics.phaedra.measservice.api.dto.NewMeasurementDTO;
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec;
 import eu.openanalytics.phaedra.measservice.exception.MeasurementNotFoundException;
+import eu.openanalytics.phaedra.measservice.image.TarArchiveCodec;
 import eu.openanalytics.phaedra.measservice.model.Measurement;
 import eu.openanalytics.phaedra.measservice.service.MeasService;
 
@@ -52,9 +66,14 @@ import eu.openanalytics.phaedra.measservice.service.MeasService;
 @RequestMapping("/measurements")
 public class MeasController {
 
+    private static final MediaType APPLICATION_TAR = MediaType.parseMediaType("application/x-tar");
+
     @Autowired
     private MeasService measService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * Measurements
      * ************
@@ -116,10 +135,46 @@ public class MeasController {
      */
 
     @GetMapping(value = "/{measurementId}/welldata")
-    public ResponseEntity<Map<String, float[]>> getWellData(@PathVariable long measurementId) {
+    public ResponseEntity<Map<String, float[]>> getWellData(@PathVariable long measurementId, @RequestParam(required = false) List<String> columns) {
+        if (columns != null)
+            return ResponseEntity.of(Optional.ofNullable(measService.getWellData(measurementId, columns)));
         return ResponseEntity.of(Optional.ofNullable(measService.getWellData(measurementId)));
     }
 
+    /**
+     * The welldata of several measurements, streamed as a list of WellDataDTO records.
+     * Combinations of measurement and column that have no welldata are omitted.
+     */
+    @GetMapping(value = "/welldata")
+    public ResponseEntity<StreamingResponseBody> getWellData(@RequestParam(name = "ids") List<Long> ids, @RequestParam List<String> columns,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (acceptsBinary(accept)) {
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .body(output -> {
+                        WellDataBatchCodec.writeHeader(output);
+                        measService.streamWellData(ids, columns, (measId, column, values) -> WellDataBatchCodec.writeRecord(output, measId, column, values));
+                        WellDataBatchCodec.writeEnd(output);
+                    });
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(output -> {
+                    JsonGenerator generator = objectMapper.createGenerator(output);
+                    generator.writeStartArray();
+                    measService.streamWellData(ids, columns, (measId, column, values) -> {
+                        generator.writeStartObject();
+                        generator.writeNumberField("measurementId", measId);
+                        generator.writeStringField("column", column);
+                        generator.writeFieldName("data");
+                        writeFloatArray(generator, values);
+                        generator.writeEndObject();
+                    });
+                    generator.writeEndArray();
+                    generator.flush();
+                });
+    }
+
     @GetMapping(value = "/{measurementId}/welldata/{column}")
     public ResponseEntity<float[]> getWellData(@PathVariable long measurementId, @PathVariable String column) {
         return ResponseEntity.of(Optional.ofNullable(measService.getWellData(measurementId, column)));
@@ -141,9 +196,30 @@ public class MeasController {
         return ResponseEntity.of(Optional.ofNullable(measService.getSubWellData(measurementId, wellNr, columns)));
     }
 
+    /**
+     * The data of a whole column is streamed to the client one well at a time,
+     * so it is never held in memory in its entirety.
+     */
     @GetMapping(value = "/{measurementId}/subwelldata/{column}")
-    public ResponseEntity<Map<Integer, float[]>> getSubWellData(@PathVariable long measurementId, @PathVariable String column) {
-        return ResponseEntity.of(Optional.ofNullable(measService.getSubWellData(measurementId, column)));
+    public ResponseEntity<StreamingResponseBody> getSubWellData(@PathVariable long measurementId, @PathVariable String column,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (!measService.hasSubWellData(measurementId, column))
+            return ResponseEntity.notFound().build();
+
+        if (acceptsBinary(accept)) {
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .body(output -> measService.writeSubWellData(measurementId, column, output));
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(output -> {
+                    JsonGenerator generator = objectMapper.createGenerator(output);
+                    generator.writeStartObject();
+                    measService.streamSubWellData(measurementId, column, (wellNr, values) -> writeWellValues(generator, wellNr, values));
+                    generator.writeEndObject();
+                    generator.flush();
+                });
     }
 
     @GetMapping(value = "/{measurementId}/subwelldata/{column}/{wellNr}")
@@ -168,13 +244,126 @@ public class MeasController {
         return ResponseEntity.created(null).build();
     }
 
+    /**
+     * If the client accepts a tar archive, the image data of each channel is streamed into it.
+     * Otherwise, the image data of all (or the requested) channels is returned as a single JSON object.
+     */
     @GetMapping(value = "/{measurementId}/imagedata/{wellNr}")
-    public ResponseEntity<Map<String, byte[]>> getImageData(@PathVariable long measurementId, @PathVariable int wellNr) {
-        return ResponseEntity.of(Optional.ofNullable(measService.getImageData(measurementId, wellNr)));
+    public ResponseEntity<?> getImageData(@PathVariable long measurementId, @PathVariable int wellNr, @RequestParam(required = false) List<String> channels,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (!accepts(accept, APPLICATION_TAR)) {
+            Map<String, byte[]> data = measService.getImageData(measurementId, wellNr);
+            if (data == null || channels == null) return ResponseEntity.of(Optional.ofNullable(data));
+
+            Map<String, byte[]> channelData = new LinkedHashMap<>();
+            channels.stream().filter(data::containsKey).forEach(channel -> channelData.put(channel, data.get(channel)));
+            if (channelData.isEmpty()) return ResponseEntity.notFound().build();
+            return ResponseEntity.ok(channelData);
+        }
+
+        MeasurementDTO meas = measService.findMeasById(measurementId).orElse(null);
+        if (meas == null || (channels == null && meas.getImageChannels() == null))
+            return ResponseEntity.notFound().build();
+
+        List<String> channelNames = (channels == null) ? Arrays.asList(meas.getImageChannels()) : channels;
+        // An invalid entry name can only be detected while streaming, after the response has been committed.
+        if (!channelNames.stream().allMatch(TarArchiveCodec::isValidEntryName))
+            return ResponseEntity.badRequest().build();
+        Map<String, Long> sizes = measService.getImageDataSizes(measurementId, wellNr, channelNames);
+        if (sizes.isEmpty()) return ResponseEntity.notFound().build();
+
+        ContentDisposition disposition = ContentDisposition.attachment()
+                .filename(String.format("measurement-%d-well-%d.tar", measurementId, wellNr)).build();
+        return ResponseEntity.ok()
+                .contentType(APPLICATION_TAR)
+                .contentLength(TarArchiveCodec.getArchiveSize(sizes.values()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, disposition.toString())
+                .body((StreamingResponseBody) output -> measService.writeImageDataArchive(measurementId, wellNr, sizes, output));
     }
 
+    /**
+     * The image data is streamed straight from the object store, so it is never held in memory.
+     * A single byte range may be requested. The content hash of the image manifest, if there is one, serves as ETag.
+     */
     @GetMapping(value = "/{measurementId}/imagedata/{wellNr}/{channel}")
-    public ResponseEntity<byte[]> getImageData(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel) {
-        return ResponseEntity.of(Optional.ofNullable(measService.getImageData(measurementId, wellNr, channel)));
+    public ResponseEntity<StreamingResponseBody> getImageData(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+            WebRequest webRequest) {
+        if (!measService.measExists(measurementId)) return ResponseEntity.notFound().build();
+        long size = measService.getImageDataSize(measurementId, wellNr, channel);
+        if (size < 0) return ResponseEntity.notFound().build();
+
+        String etag = measService.getImageManifest(measurementId, wellNr, channel)
+                .map(m -> m.getContentHash()).map(hash -> "\"" + hash + "\"").orElse(null);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+
+        HttpRange byteRange = parseSingleRange(range, ifRange, etag);
+        if (byteRange == null) {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .contentLength(size)
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+            if (etag != null) response.eTag(etag);
+            return response.body(output -> measService.writeImageData(measurementId, wellNr, channel, 0, -1, output));
+        }
+
+        long start = byteRange.getRangeStart(size);
+        long end = byteRange.getRangeEnd(size);
+        if (start >= size || start > end) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                    .build();
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(end - start + 1)
+                .header(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, size))
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (etag != null) response.eTag(etag);
+        return response.body(output -> measService.writeImageData(measurementId, wellNr, channel, start, end - start + 1, output));
+    }
+
+    /**
+     * Non-public
+     * **********
+     */
+
+    private static boolean acceptsBinary(String accept) {
+        return accepts(accept, MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+    private static boolean accepts(String accept, MediaType mediaType) {
+        if (accept == null) return false;
+        return MediaType.parseMediaTypes(accept).stream()
+                .anyMatch(type -> !type.isWildcardType() && type.includes(mediaType));
+    }
+
+    /**
+     * Multiple ranges are not supported: like an unparseable Range header, or an If-Range header
+     * that does not match the current ETag, they result in the full content being returned.
+     */
+    private static HttpRange parseSingleRange(String range, String ifRange, String etag) {
+        if (range == null) return null;
+        if (ifRange != null && !ifRange.equals(etag)) return null;
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(range);
+            return (ranges.size() == 1) ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeWellValues(JsonGenerator generator, int wellNr, float[] values) throws IOException {
+        generator.writeFieldName(String.valueOf(wellNr));
+        writeFloatArray(generator, values);
+    }
+
+    private static void writeFloatArray(JsonGenerator generator, float[] values) throws IOException {
+        generator.writeStartArray(values, values.length);
+        for (float value: values) generator.writeNumber(value);
+        generator.writeEndArray();
     }
 }
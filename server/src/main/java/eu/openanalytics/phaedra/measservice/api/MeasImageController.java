@@ -24,43 +24,57 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig;
 import eu.openanalytics.phaedra.imaging.util.ImageRenderConfigUtils;
+import eu.openanalytics.phaedra.measservice.api.dto.ImageAccessStatsDTO;
+import eu.openanalytics.phaedra.measservice.api.dto.ImageDescriptorDTO;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
 import eu.openanalytics.phaedra.measservice.service.MeasImageService;
+import eu.openanalytics.phaedra.measservice.service.MeasService;
+import eu.openanalytics.phaedra.measservice.service.MeasImageService.RenderRequest;
 
 @RestController
 public class MeasImageController {
 
 	@Autowired
 	private MeasImageService measImageService;
+
+	@Autowired
+	private MeasService measService;
+
+	@Value("${meas-service.image.cache-max-age:86400}")
+	private long cacheMaxAge;
+
+	@Value("${meas-service.image.montage.scale:0.125}")
+	private float montageScale;
+
+	@Value("${meas-service.image.montage.cell-size:128}")
+	private int montageCellSize;
 	
 	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}/{channel}", produces = MediaType.IMAGE_JPEG_VALUE)
     public ResponseEntity<byte[]> renderImage(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel,
-    		@RequestParam(name="renderConfigId", required=false) Long renderConfigId, HttpServletRequest request) {
+    		@RequestParam(name="renderConfigId", required=false) Long renderConfigId, HttpServletRequest request, WebRequest webRequest) {
     	try {
     		ImageRenderConfig renderConfig = ImageRenderConfigUtils.parseFromParameters(request.getParameterMap());
-    		
-    		byte[] rendered = null;
-    		if (channel.contains(",")) {
-    			List<String> channels = Arrays.stream(channel.split(",")).collect(Collectors.toList());
-    			rendered = measImageService.renderImage(measurementId, wellNr, channels, renderConfigId, renderConfig);
-    		} else {
-    			rendered = measImageService.renderImage(measurementId, wellNr, channel, renderConfigId, renderConfig);
-    		}
-   			
-    		return ResponseEntity.of(Optional.ofNullable(rendered));
+    		List<String> channels = Arrays.stream(channel.split(",")).collect(Collectors.toList());
+    		return renderImage(measImageService.resolveRenderRequest(measurementId, wellNr, channels, renderConfigId, renderConfig), webRequest);
     	} catch (IOException e) {
     		throw new RuntimeException("Image render failed", e);
     	}
@@ -68,13 +82,88 @@ public class MeasImageController {
     
 	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}", produces = MediaType.IMAGE_JPEG_VALUE)
     public ResponseEntity<byte[]> renderImage(@PathVariable long measurementId, @PathVariable int wellNr,
-    		@RequestParam(name="renderConfigId", required=false) Long renderConfigId, HttpServletRequest request) {
+    		@RequestParam(name="renderConfigId", required=false) Long renderConfigId, HttpServletRequest request, WebRequest webRequest) {
     	try {
     		ImageRenderConfig renderConfig = ImageRenderConfigUtils.parseFromParameters(request.getParameterMap());
-    		byte[] rendered = measImageService.renderImage(measurementId, wellNr, renderConfigId, renderConfig);
-   			return ResponseEntity.of(Optional.ofNullable(rendered));
+    		return renderImage(measImageService.resolveRenderRequest(measurementId, wellNr, null, renderConfigId, renderConfig), webRequest);
     	} catch (IOException e) {
     		throw new RuntimeException("Image render failed", e);
     	}
     }
+
+	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}/{channel}/descriptor", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ImageDescriptorDTO> getImageDescriptor(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel) {
+    	try {
+    		return ResponseEntity.of(measImageService.getImageDescriptor(measurementId, wellNr, channel));
+    	} catch (IOException e) {
+    		throw new RuntimeException("Failed to read image header", e);
+    	}
+    }
+
+	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}/{channel}/manifest", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ImageManifest> getImageManifest(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel) {
+    	return ResponseEntity.of(measService.getImageManifest(measurementId, wellNr, channel));
+    }
+
+	@GetMapping(value = "/measurements/{measurementId}/imagemanifests", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<ImageManifest>> getImageManifests(@PathVariable long measurementId) {
+    	if (!measService.measExists(measurementId)) return ResponseEntity.notFound().build();
+    	return ResponseEntity.ok(measService.getImageManifests(measurementId));
+    }
+
+	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}/{channel}/tiles/{level}/{x}/{y}", produces = MediaType.IMAGE_JPEG_VALUE)
+    public ResponseEntity<byte[]> renderTile(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel,
+    		@PathVariable int level, @PathVariable int x, @PathVariable int y,
+    		@RequestParam(name="renderConfigId", required=false) Long renderConfigId, HttpServletRequest request, WebRequest webRequest) {
+    	try {
+    		ImageRenderConfig renderConfig = ImageRenderConfigUtils.parseFromParameters(request.getParameterMap());
+    		return renderImage(measImageService.resolveTileRenderRequest(measurementId, wellNr, channel, level, x, y, renderConfigId, renderConfig), webRequest);
+    	} catch (IOException e) {
+    		throw new RuntimeException("Tile render failed", e);
+    	}
+    }
+
+	@GetMapping(value = "/measurements/{measurementId}/montage", produces = MediaType.IMAGE_JPEG_VALUE)
+    public ResponseEntity<byte[]> renderMontage(@PathVariable long measurementId,
+    		@RequestParam(name="fromWell", required=false) Integer fromWell, @RequestParam(name="toWell", required=false) Integer toWell,
+    		@RequestParam(name="channels", required=false) List<String> channels, @RequestParam(name="renderConfigId", required=false) Long renderConfigId,
+    		@RequestParam(name="scale", required=false) Float scale, @RequestParam(name="cellSize", required=false) Integer cellSize,
+    		HttpServletRequest request) {
+    	try {
+    		ImageRenderConfig renderConfig = ImageRenderConfigUtils.parseFromParameters(request.getParameterMap());
+    		byte[] montage = measImageService.renderMontage(measurementId, fromWell, toWell, channels, renderConfigId, renderConfig,
+    				(scale == null) ? montageScale : scale, (cellSize == null) ? montageCellSize : cellSize);
+    		return ResponseEntity.of(Optional.ofNullable(montage));
+    	} catch (IOException e) {
+    		throw new RuntimeException("Montage render failed", e);
+    	}
+    }
+
+	@GetMapping(value = "/measurements/{measurementId}/images/{wellNr}/{channel}/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ImageAccessStatsDTO> getImageAccessStats(@PathVariable long measurementId, @PathVariable int wellNr, @PathVariable String channel) {
+    	return ResponseEntity.of(measImageService.getImageAccessStats(measurementId, wellNr, channel));
+    }
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	/**
+	 * The cache key of a render request identifies the rendered output, so it doubles as a strong ETag.
+	 * A client that already has the image gets a 304 without the image being rendered (or even looked up).
+	 */
+	private ResponseEntity<byte[]> renderImage(Optional<RenderRequest> renderRequest, WebRequest webRequest) throws IOException {
+		if (renderRequest.isEmpty()) return ResponseEntity.notFound().build();
+
+		String etag = "\"" + renderRequest.get().cacheKey() + "\"";
+		CacheControl cacheControl = CacheControl.maxAge(cacheMaxAge, TimeUnit.SECONDS).cachePrivate();
+		if (webRequest.checkNotModified(etag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+		}
+
+		byte[] rendered = measImageService.renderImage(renderRequest.get());
+		if (rendered == null) return ResponseEntity.notFound().build();
+		return ResponseEntity.ok().eTag(etag).cacheControl(cacheControl).body(rendered);
+	}
 }
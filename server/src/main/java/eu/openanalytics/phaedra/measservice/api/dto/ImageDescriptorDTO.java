@@ -0,0 +1,41 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.api.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Describes an image for tiled viewers. Level 0 is the full resolution;
+ * each next level halves the width and height, up to levels - 1.
+ */
+@Data
+@NoArgsConstructor
+public class ImageDescriptorDTO {
+
+	private int width;
+	private int height;
+	private int components;
+
+	private int levels;
+	private int tileSize;
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.config;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.util.StreamUtils;
+
+import eu.openanalytics.phaedra.measservice.dto.codec.FloatArrayCodec;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec;
+
+/**
+ * Reads and writes well and subwell data in a compact binary form (application/octet-stream):
+ * <ul>
+ * <li>float[] is written as raw little-endian floats, see {@link FloatArrayCodec}</li>
+ * <li>Map&lt;Integer, float[]&gt; is written as an indexed column blob, see {@link SubWellColumnCodec}</li>
+ * </ul>
+ * This converter is only selected when the client explicitly accepts (or sends) application/octet-stream.
+ * Other clients keep receiving JSON.
+ */
+public class FloatArrayHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+	public FloatArrayHttpMessageConverter() {
+		super(MediaType.APPLICATION_OCTET_STREAM);
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return float[].class == clazz;
+	}
+
+	@Override
+	public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+		return isSupportedType(type) && canRead(mediaType);
+	}
+
+	@Override
+	public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+		return isSupportedType(type != null ? type : clazz) && canWrite(mediaType);
+	}
+
+	@Override
+	public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+		return decode(isFloatArray(type), inputMessage);
+	}
+
+	@Override
+	protected Object readInternal(Class<? extends Object> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+		return decode(isFloatArray(clazz), inputMessage);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void writeInternal(Object value, Type type, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+		byte[] bytes;
+		if (value instanceof float[] values) {
+			bytes = FloatArrayCodec.encode(values);
+		} else {
+			bytes = SubWellColumnCodec.encode(new TreeMap<>((Map<Integer, float[]>) value));
+		}
+		outputMessage.getHeaders().setContentLength(bytes.length);
+		StreamUtils.copy(bytes, outputMessage.getBody());
+	}
+
+	private Object decode(boolean floatArray, HttpInputMessage inputMessage) throws IOException {
+		byte[] bytes = StreamUtils.copyToByteArray(inputMessage.getBody());
+		try {
+			if (floatArray) return FloatArrayCodec.decode(bytes);
+			return SubWellColumnCodec.decode(bytes);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new HttpMessageNotReadableException(e.getMessage(), e, inputMessage);
+		}
+	}
+
+	private static boolean isFloatArray(Type type) {
+		return ResolvableType.forType(type).resolve() == float[].class;
+	}
+
+	private static boolean isSupportedType(Type type) {
+		if (type == null) return false;
+		ResolvableType resolvedType = ResolvableType.forType(type);
+		Class<?> rawType = resolvedType.resolve();
+		if (rawType == float[].class) return true;
+		if (rawType == null || !Map.class.isAssignableFrom(rawType)) return false;
+		ResolvableType mapType = resolvedType.asMap();
+		return mapType.resolveGeneric(0) == Integer.class && mapType.resolveGeneric(1) == float[].class;
+	}
+}
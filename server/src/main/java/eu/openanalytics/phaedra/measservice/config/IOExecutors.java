@@ -0,0 +1,182 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.config;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * All blocking I/O that is fanned out (object store requests, mostly) runs on a single, sized pool of
+ * platform threads, instead of on the common fork-join pool or on ad-hoc pools.
+ * <p>
+ * Each kind of operation gets its own {@link IOExecutor}, which limits how many of its tasks may run
+ * at the same time and queues the rest. This way, one heavy request cannot take all threads.
+ * The number of active and queued tasks, and the time spent queued, are published per operation.
+ */
+@Component
+public class IOExecutors {
+
+	private final ObjectProvider<MeterRegistry> meterRegistry;
+	private final ThreadPoolExecutor pool;
+	private final Map<String, IOExecutor> executors = new ConcurrentHashMap<>();
+
+	public IOExecutors(@Value("${meas-service.io.threads:64}") int threads, ObjectProvider<MeterRegistry> meterRegistry) {
+		this.meterRegistry = meterRegistry;
+
+		AtomicInteger threadNr = new AtomicInteger();
+		pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "meas-io-" + threadNr.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		meterRegistry.ifAvailable(registry -> {
+			Gauge.builder("meas.io.pool.active", pool, ThreadPoolExecutor::getActiveCount).register(registry);
+			Gauge.builder("meas.io.pool.queued", pool, p -> p.getQueue().size()).register(registry);
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Get the executor for an operation, creating it if needed.
+	 *
+	 * @param operation The name of the operation, used in thread metrics.
+	 * @param concurrency The maximum number of tasks of this operation that may run at the same time.
+	 */
+	public IOExecutor getExecutor(String operation, int concurrency) {
+		return executors.computeIfAbsent(operation, name -> {
+			IOExecutor executor = new IOExecutor(name, Math.max(1, concurrency), pool);
+			meterRegistry.ifAvailable(registry -> {
+				Gauge.builder("meas.io.active", executor, IOExecutor::getActiveCount).tag("operation", name).register(registry);
+				Gauge.builder("meas.io.queued", executor, IOExecutor::getQueuedCount).tag("operation", name).register(registry);
+				executor.waitTimer = Timer.builder("meas.io.wait").tag("operation", name).register(registry);
+			});
+			return executor;
+		});
+	}
+
+	public static class IOExecutor implements Executor {
+
+		private final String operation;
+		private final int concurrency;
+		private final ExecutorService pool;
+
+		private final Queue<Runnable> queue = new ArrayDeque<>();
+		private int activeCount;
+
+		private volatile Timer waitTimer;
+
+		private IOExecutor(String operation, int concurrency, ExecutorService pool) {
+			this.operation = operation;
+			this.concurrency = concurrency;
+			this.pool = pool;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			long queuedOn = System.nanoTime();
+			synchronized (this) {
+				queue.add(() -> {
+					Timer timer = waitTimer;
+					if (timer != null) timer.record(System.nanoTime() - queuedOn, TimeUnit.NANOSECONDS);
+					task.run();
+				});
+			}
+			dispatch();
+		}
+
+		public <T> Future<T> submit(Callable<T> task) {
+			FutureTask<T> future = new FutureTask<>(task);
+			execute(future);
+			return future;
+		}
+
+		public synchronized int getActiveCount() {
+			return activeCount;
+		}
+
+		public synchronized int getQueuedCount() {
+			return queue.size();
+		}
+
+		/**
+		 * Hand queued tasks to the pool, as long as fewer than the allowed number are running.
+		 * Called whenever a task is queued, and whenever a task finishes.
+		 */
+		private void dispatch() {
+			while (true) {
+				Runnable next;
+				synchronized (this) {
+					if (activeCount >= concurrency || queue.isEmpty()) return;
+					next = queue.poll();
+					activeCount++;
+				}
+				try {
+					pool.execute(() -> {
+						try {
+							next.run();
+						} finally {
+							synchronized (this) {
+								activeCount--;
+							}
+							dispatch();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					synchronized (this) {
+						activeCount--;
+					}
+					throw e;
+				}
+			}
+		}
+	}
+}
@@ -20,10 +20,15 @@
  */
 package eu.openanalytics.phaedra.measservice.config;
 
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.annotation.EnableKafka;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.kafka.listener.adapter.RecordFilterStrategy;
+import org.springframework.kafka.support.converter.BatchMessagingMessageConverter;
 import org.springframework.kafka.support.converter.BytesJsonMessageConverter;
 
 @Configuration
@@ -42,6 +47,8 @@ public class KafkaConfig {
     
     public static final String EVENT_NOTIFY_DC_JOB_UPDATED = "notifyCaptureJobUpdated";
     public static final String EVENT_NOTIFY_NEW_MEASUREMENT = "notifyNewMeasurement";
+
+    public static final String BATCH_LISTENER_FACTORY = "batchListenerContainerFactory";
     
     @Bean
     public RecordFilterStrategy<String, String> requestMeasurementSaveWellDataFilter() {
@@ -62,4 +69,19 @@ public class KafkaConfig {
     public BytesJsonMessageConverter messageConverter() {
     	return new BytesJsonMessageConverter();
     }
+
+    /**
+     * A container factory for listeners that receive all records of a poll at once.
+     * The offsets are committed once the whole batch has been processed.
+     */
+    @Bean(BATCH_LISTENER_FACTORY)
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> batchListenerContainerFactory(
+    		ConcurrentKafkaListenerContainerFactoryConfigurer configurer, ConsumerFactory<Object, Object> consumerFactory) {
+    	ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+    	configurer.configure(factory, consumerFactory);
+    	factory.setBatchListener(true);
+    	factory.setMessageConverter(new BatchMessagingMessageConverter(messageConverter()));
+    	factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.BATCH);
+    	return factory;
+    }
 }
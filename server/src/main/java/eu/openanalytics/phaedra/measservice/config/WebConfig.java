@@ -0,0 +1,76 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.config;
+
+import java.util.List;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+	/**
+	 * Streamed responses (see MeasController) are written on this pool, rather than on the
+	 * request threads. It limits how many of them are written at the same time: the others wait in
+	 * the queue, and requests beyond that are rejected.
+	 * <p>
+	 * Note that a streamed batch of welldata holds a database connection while it is written,
+	 * so the number of threads should stay well below the size of the connection pool (20).
+	 * Subwell and image streams only read from the object store.
+	 */
+	private final ThreadPoolTaskExecutor streamExecutor;
+
+	public WebConfig(
+			@Value("${meas-service.web.stream-threads:10}") int streamThreads,
+			@Value("${meas-service.web.stream-queue:100}") int streamQueue) {
+		streamExecutor = new ThreadPoolTaskExecutor();
+		streamExecutor.setThreadNamePrefix("meas-stream-");
+		streamExecutor.setCorePoolSize(streamThreads);
+		streamExecutor.setMaxPoolSize(streamThreads);
+		streamExecutor.setQueueCapacity(streamQueue);
+		streamExecutor.setDaemon(true);
+		streamExecutor.initialize();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		streamExecutor.shutdown();
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		// The timeout is configured by spring.mvc.async.request-timeout
+		configurer.setTaskExecutor(streamExecutor);
+	}
+
+	@Override
+	public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+		// Added after the default converters, so that JSON remains the default representation.
+		converters.add(new FloatArrayHttpMessageConverter());
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The image properties found in the main header of a JPEG2000 codestream.
+ * Both raw codestreams (J2K) and codestreams wrapped in a JP2 file are supported.
+ * <p>
+ * Only the SIZ and COD marker segments are parsed: they hold the image size, the number of components
+ * and the number of decomposition (resolution) levels, which is all that is needed to plan tiled access.
+ */
+public class CodestreamHeader {
+
+	// The main header is normally a few hundred bytes; this leaves room for JP2 boxes preceding the codestream.
+	public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	private static final int MARKER_SOC = 0xFF4F;
+	private static final int MARKER_SIZ = 0xFF51;
+	private static final int MARKER_COD = 0xFF52;
+	private static final int MARKER_SOT = 0xFF90;
+
+	private static final int JP2_SIGNATURE_BOX = 0x6A502020;
+	private static final int JP2_CODESTREAM_BOX = 0x6A703263;
+
+	private int width;
+	private int height;
+	private int tileWidth;
+	private int tileHeight;
+	private int components;
+	private int bitDepth;
+	private int decompositionLevels;
+
+	private CodestreamHeader() {
+		// Use read or parse.
+	}
+
+	public static CodestreamHeader read(ImageCodestreamAccessor accessor, long codestreamSize) throws IOException {
+		return parse(accessor.getBytes(0, (int) Math.min(codestreamSize, MAX_HEADER_SIZE)));
+	}
+
+	public static CodestreamHeader parse(byte[] bytes) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt(0) == 12 && buffer.getInt(4) == JP2_SIGNATURE_BOX) {
+				skipToCodestreamBox(buffer);
+			}
+			return parseCodestream(buffer);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Codestream header is incomplete", e);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getComponents() {
+		return components;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public int getDecompositionLevels() {
+		return decompositionLevels;
+	}
+
+	/**
+	 * The number of resolutions that can be decoded: the full resolution, plus one per decomposition level.
+	 */
+	public int getResolutionLevels() {
+		return decompositionLevels + 1;
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private static void skipToCodestreamBox(ByteBuffer buffer) throws IOException {
+		int pos = 0;
+		while (pos + 8 <= buffer.limit()) {
+			long boxLength = Integer.toUnsignedLong(buffer.getInt(pos));
+			int boxType = buffer.getInt(pos + 4);
+			int headerLength = 8;
+			if (boxLength == 1) {
+				boxLength = buffer.getLong(pos + 8);
+				headerLength = 16;
+			}
+			if (boxType == JP2_CODESTREAM_BOX) {
+				buffer.position(pos + headerLength);
+				return;
+			}
+			// A length of 0 means the box extends to the end of the file: it must be the last box.
+			if (boxLength == 0 || pos + boxLength > buffer.limit()) break;
+			pos += (int) boxLength;
+		}
+		throw new IOException("No codestream box found in JP2 header");
+	}
+
+	private static CodestreamHeader parseCodestream(ByteBuffer buffer) throws IOException {
+		if (Short.toUnsignedInt(buffer.getShort()) != MARKER_SOC) throw new IOException("Not a JPEG2000 codestream");
+
+		CodestreamHeader header = new CodestreamHeader();
+		boolean sizFound = false;
+		boolean codFound = false;
+
+		while (!(sizFound && codFound)) {
+			int marker = Short.toUnsignedInt(buffer.getShort());
+			if (marker == MARKER_SOT) break;
+			int segmentStart = buffer.position();
+			int segmentLength = Short.toUnsignedInt(buffer.getShort());
+
+			if (marker == MARKER_SIZ) {
+				buffer.getShort(); // Rsiz
+				int xsiz = buffer.getInt();
+				int ysiz = buffer.getInt();
+				int xosiz = buffer.getInt();
+				int yosiz = buffer.getInt();
+				header.width = xsiz - xosiz;
+				header.height = ysiz - yosiz;
+				header.tileWidth = buffer.getInt();
+				header.tileHeight = buffer.getInt();
+				buffer.getInt(); // XTOsiz
+				buffer.getInt(); // YTOsiz
+				header.components = Short.toUnsignedInt(buffer.getShort());
+				// Ssiz of the first component: the low 7 bits hold the bit depth minus one.
+				header.bitDepth = (buffer.get() & 0x7F) + 1;
+				sizFound = true;
+			} else if (marker == MARKER_COD) {
+				buffer.get(); // Scod
+				buffer.get(); // Progression order
+				buffer.getShort(); // Number of layers
+				buffer.get(); // Multiple component transform
+				header.decompositionLevels = Byte.toUnsignedInt(buffer.get());
+				codFound = true;
+			}
+			buffer.position(segmentStart + segmentLength);
+		}
+
+		if (!sizFound || !codFound) throw new IOException("Codestream header lacks a SIZ or COD marker segment");
+		return header;
+	}
+}
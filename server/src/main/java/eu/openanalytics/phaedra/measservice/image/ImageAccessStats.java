@@ -0,0 +1,98 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Access statistics of a single image codestream, accumulated over all accessors of that codestream.
+ * These can be used to tune the chunk sizes and read-ahead settings against the storage backend.
+ */
+public class ImageAccessStats {
+
+	private final long codestreamSize;
+
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder sequentialReads = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+
+	private final LongAdder fetches = new LongAdder();
+	private final LongAdder bytesFetched = new LongAdder();
+	private final LongAdder wholeObjectFetches = new LongAdder();
+
+	private final AtomicLong maxReadAhead = new AtomicLong();
+
+	public ImageAccessStats(long codestreamSize) {
+		this.codestreamSize = codestreamSize;
+	}
+
+	public void recordRead(int len, boolean sequential) {
+		reads.increment();
+		bytesRead.add(len);
+		if (sequential) sequentialReads.increment();
+	}
+
+	public void recordFetch(int len) {
+		fetches.increment();
+		bytesFetched.add(len);
+	}
+
+	public void recordWholeObjectFetch() {
+		wholeObjectFetches.increment();
+	}
+
+	public void recordReadAhead(long len) {
+		maxReadAhead.accumulateAndGet(len, Math::max);
+	}
+
+	public long getCodestreamSize() {
+		return codestreamSize;
+	}
+
+	public long getReads() {
+		return reads.sum();
+	}
+
+	public long getSequentialReads() {
+		return sequentialReads.sum();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getFetches() {
+		return fetches.sum();
+	}
+
+	public long getBytesFetched() {
+		return bytesFetched.sum();
+	}
+
+	public long getWholeObjectFetches() {
+		return wholeObjectFetches.sum();
+	}
+
+	public long getMaxReadAhead() {
+		return maxReadAhead.get();
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.service.MeasService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * A process-wide cache of image codestream chunks, shared by all {@link ImageCodestreamAccessor}s.
+ * <p>
+ * The cache is bounded by the total size of the cached chunks, not by the number of chunks.
+ * Optionally, chunks are stored off-heap (in direct buffers), so that they do not add to
+ * the heap that the garbage collector has to scan. Note that off-heap storage is limited
+ * by the JVM option -XX:MaxDirectMemorySize.
+ * <p>
+ * Chunks are fetched on a bounded I/O executor (see {@link IOExecutors}). Concurrent requests for the same chunk
+ * share a single fetch: the first request registers a future in the cache, and later requests
+ * wait for that same future.
+ * <p>
+ * Chunks have a fixed (minimum) size, but adjacent missing chunks are fetched together with
+ * a single ranged request of up to the maximum chunk size, after which the response is split
+ * into chunks again. This is what makes read-ahead (see {@link ImageCodestreamAccessor}) cheap.
+ */
+@Component
+public class ImageChunkCache {
+
+	private static final String CACHE_NAME = "image_chunks";
+
+	// Approximate per-entry overhead of the key, the buffer and the cache node
+	private static final int ENTRY_OVERHEAD = 128;
+
+	@Value("${meas-service.image.chunk-cache.max-bytes:268435456}")
+	private long maxBytes;
+
+	@Value("${meas-service.image.chunk-cache.off-heap:false}")
+	private boolean offHeap;
+
+	@Value("${meas-service.image.min-chunk-size:100000}")
+	private int minChunkSize;
+
+	@Value("${meas-service.image.max-chunk-size:8388608}")
+	private int maxChunkSize;
+
+	@Value("${meas-service.image.whole-object-threshold:2097152}")
+	private long wholeObjectThreshold;
+
+	@Value("${meas-service.image.fetch-threads:16}")
+	private int fetchThreads;
+
+	private final MeasService measService;
+	private final IOExecutors ioExecutors;
+	private final ObjectProvider<MeterRegistry> meterRegistry;
+
+	private AsyncCache<ChunkKey, ByteBuffer> cache;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public ImageChunkCache(MeasService measService, IOExecutors ioExecutors, ObjectProvider<MeterRegistry> meterRegistry) {
+		this.measService = measService;
+		this.ioExecutors = ioExecutors;
+		this.meterRegistry = meterRegistry;
+	}
+
+	@PostConstruct
+	public void init() {
+		cache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((ChunkKey key, ByteBuffer chunk) -> chunk.capacity() + ENTRY_OVERHEAD)
+				.executor(ioExecutors.getExecutor("image-chunk-fetch", fetchThreads))
+				.recordStats()
+				.buildAsync();
+		meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache.synchronous(), CACHE_NAME));
+		logger.info(String.format("Image chunk cache: %d bytes, %s storage", maxBytes, offHeap ? "off-heap" : "heap"));
+	}
+
+	public int getChunkSize() {
+		return minChunkSize;
+	}
+
+	public int getMaxChunkSize() {
+		return Math.max(minChunkSize, maxChunkSize);
+	}
+
+	/**
+	 * Codestreams up to this size are fetched completely on their first access.
+	 */
+	public long getWholeObjectThreshold() {
+		return wholeObjectThreshold;
+	}
+
+	/**
+	 * Start fetching a range of chunks of an image codestream, without waiting for them.
+	 * Chunks that are cached or already being fetched are skipped; the other ones are fetched
+	 * with as few ranged requests as the maximum chunk size allows.
+	 */
+	public void prefetchChunks(long measId, int wellNr, String channel, int startChunkIndex, int endChunkIndex, ImageAccessStats stats) {
+		List<ChunkKey> keys = getKeys(measId, wellNr, channel, startChunkIndex, endChunkIndex);
+		// A failed prefetch is not cached: a later getChunks will try again.
+		cache.getAll(keys, (missingKeys, executor) -> fetchChunks(missingKeys, executor, stats));
+	}
+
+	/**
+	 * Get a range of chunks of an image codestream, fetching the ones that are not cached yet.
+	 * The returned buffers are read-only views that can be used by one thread at a time.
+	 *
+	 * @return The chunks, in order. The last chunk of a codestream may be smaller than the chunk size.
+	 */
+	public List<ByteBuffer> getChunks(long measId, int wellNr, String channel, int startChunkIndex, int endChunkIndex, ImageAccessStats stats) {
+		List<ChunkKey> keys = getKeys(measId, wellNr, channel, startChunkIndex, endChunkIndex);
+
+		try {
+			// Chunks that are already being fetched (e.g. by a prefetch) are joined, the missing ones are fetched together.
+			Map<ChunkKey, ByteBuffer> chunks = cache.getAll(keys, (missingKeys, executor) -> fetchChunks(missingKeys, executor, stats)).join();
+			return keys.stream().map(key -> chunks.get(key).asReadOnlyBuffer()).collect(Collectors.toList());
+		} catch (CompletionException e) {
+			// A failed fetch is not cached: the next request for the chunk will try again.
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	public CacheStats getStats() {
+		return cache.synchronous().stats();
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private List<ChunkKey> getKeys(long measId, int wellNr, String channel, int startChunkIndex, int endChunkIndex) {
+		List<ChunkKey> keys = new ArrayList<>();
+		for (int i = startChunkIndex; i <= endChunkIndex; i++) keys.add(new ChunkKey(measId, wellNr, channel, i));
+		return keys;
+	}
+
+	private CompletableFuture<Map<ChunkKey, ByteBuffer>> fetchChunks(Set<? extends ChunkKey> keys, Executor executor, ImageAccessStats stats) {
+		// Group the keys into runs of adjacent chunks, each run no larger than the maximum chunk size.
+		List<ChunkKey> sortedKeys = keys.stream().sorted((k1, k2) -> Integer.compare(k1.chunkIndex(), k2.chunkIndex())).collect(Collectors.toList());
+		int maxRunLength = getMaxChunkSize() / minChunkSize;
+
+		List<CompletableFuture<Map<ChunkKey, ByteBuffer>>> runFetches = new ArrayList<>();
+		List<ChunkKey> run = new ArrayList<>();
+		for (ChunkKey key: sortedKeys) {
+			boolean adjacent = !run.isEmpty() && key.chunkIndex() == run.get(run.size() - 1).chunkIndex() + 1;
+			if (!run.isEmpty() && (!adjacent || run.size() >= maxRunLength)) {
+				List<ChunkKey> runToFetch = run;
+				runFetches.add(CompletableFuture.supplyAsync(() -> fetchRun(runToFetch, stats), executor));
+				run = new ArrayList<>();
+			}
+			run.add(key);
+		}
+		if (!run.isEmpty()) {
+			List<ChunkKey> runToFetch = run;
+			runFetches.add(CompletableFuture.supplyAsync(() -> fetchRun(runToFetch, stats), executor));
+		}
+
+		return CompletableFuture.allOf(runFetches.toArray(CompletableFuture[]::new)).thenApply(v -> {
+			Map<ChunkKey, ByteBuffer> chunks = new HashMap<>();
+			runFetches.forEach(f -> chunks.putAll(f.join()));
+			return chunks;
+		});
+	}
+
+	private Map<ChunkKey, ByteBuffer> fetchRun(List<ChunkKey> run, ImageAccessStats stats) {
+		ChunkKey first = run.get(0);
+		long offset = (long) first.chunkIndex() * minChunkSize;
+		int len = run.size() * minChunkSize;
+		logger.debug(String.format("Fetching chunks %d-%d for meas %d, well %d, channel %s", first.chunkIndex(), first.chunkIndex() + run.size() - 1, first.measId(), first.wellNr(), first.channel()));
+
+		byte[] bytes = measService.getImageDataPart(first.measId(), first.wellNr(), first.channel(), offset, len);
+		if (stats != null) stats.recordFetch(bytes.length);
+
+		// Chunks past the end of the codestream are cached as empty chunks.
+		Map<ChunkKey, ByteBuffer> chunks = new HashMap<>();
+		for (int i = 0; i < run.size(); i++) {
+			int from = Math.min(bytes.length, i * minChunkSize);
+			int to = Math.min(bytes.length, from + minChunkSize);
+			chunks.put(run.get(i), toBuffer(bytes, from, to - from));
+		}
+		return chunks;
+	}
+
+	private ByteBuffer toBuffer(byte[] bytes, int offset, int len) {
+		ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+		buffer.put(bytes, offset, len).flip();
+		return buffer;
+	}
+
+	private record ChunkKey(long measId, int wellNr, String channel, int chunkIndex) {}
+}
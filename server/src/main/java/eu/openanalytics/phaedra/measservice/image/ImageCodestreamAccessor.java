@@ -21,63 +21,76 @@
 package eu.openanalytics.phaedra.measservice.image;
 
 import java.io.IOException;
-import java.util.stream.IntStream;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import eu.openanalytics.phaedra.measservice.service.MeasService;
+import java.nio.ByteBuffer;
+import java.util.List;
 
+/**
+ * Provides random access to the codestream of an image.
+ * The codestream is fetched in chunks, which are kept in the shared {@link ImageChunkCache}.
+ * <p>
+ * The accessor follows the access pattern of the decoder that uses it:
+ * <ul>
+ * <li>Codestreams up to the whole-object threshold are fetched completely on the first read.</li>
+ * <li>Sequential reads grow a read-ahead window, doubling it each time the reader gets halfway
+ * through the previous window, up to the maximum chunk size. A random read resets the window.</li>
+ * <li>Once more than half of the codestream has been read sequentially, the decoder is assumed
+ * to perform a full decode, and the remainder of the codestream is fetched at once.</li>
+ * </ul>
+ */
 public class ImageCodestreamAccessor {
 
 	private long measId;
 	private int wellNr;
 	private String channelId;
-	private MeasService measService;
-
-	private int chunkSize;
-	private byte[][] data;
-
-	private final Logger logger = LoggerFactory.getLogger(getClass());
-
-	public ImageCodestreamAccessor(long measId, int wellNr, String channelId, MeasService measService) {
+	private long codestreamSize;
+	private ImageChunkCache chunkCache;
+	private ImageAccessStats stats;
+
+	// Access pattern state, guarded by this.
+	private long lastReadEnd = -1;
+	private int lastEndChunkIndex = -1;
+	private int readAheadChunks;
+	private int readAheadEndChunkIndex = -1;
+	private long sequentialBytes;
+	private boolean wholeObjectRequested;
+
+	public ImageCodestreamAccessor(long measId, int wellNr, String channelId, long codestreamSize, ImageChunkCache chunkCache, ImageAccessStats stats) {
 		this.measId = measId;
 		this.wellNr = wellNr;
 		this.channelId = channelId;
-		this.measService = measService;
-
-		this.chunkSize = 100000;
-		this.data = new byte[100][];
+		this.codestreamSize = codestreamSize;
+		this.chunkCache = chunkCache;
+		this.stats = stats;
 	}
 
 	public byte[] getBytes(long offset, int len) throws IOException {
-//		logger.info(String.format("Requested bytes %d + %d for meas %d, well %d, channel %s", offset, len, measId, wellNr, channelId));
-
 		byte[] buffer = new byte[len];
+		if (len == 0) return buffer;
 
+		int chunkSize = chunkCache.getChunkSize();
 		int startChunkIndex = (int) (offset / chunkSize);
-		int endChunkIndex = (int) ((offset + len) / chunkSize);
-		if (endChunkIndex >= data.length) growDataArray();
+		int endChunkIndex = (int) ((offset + len - 1) / chunkSize);
+
+		// The whole plan comes from planFetch, so that it is consistent with the state it was based on.
+		ChunkRange fetchRange = planFetch(offset, len, startChunkIndex, endChunkIndex);
+		if (fetchRange.endChunkIndex() > endChunkIndex) {
+			chunkCache.prefetchChunks(measId, wellNr, channelId, fetchRange.startChunkIndex(), fetchRange.endChunkIndex(), stats);
+		}
+		List<ByteBuffer> chunks = chunkCache.getChunks(measId, wellNr, channelId, startChunkIndex, endChunkIndex, stats);
 
 		int bufferOffset = 0;
 		int remainingLen = len;
 
-		// Fetch any missing chunks, in parallel.
-		IntStream.rangeClosed(startChunkIndex, endChunkIndex)
-				.filter(i -> data[i] == null)
-				.parallel()
-				.forEach(i -> fetchChunk(i));
-
 		// Copy the relevant parts of the chunks into the response buffer.
 		for (int i = startChunkIndex; i <= endChunkIndex; i++) {
+			ByteBuffer chunk = chunks.get(i - startChunkIndex);
 			int posInChunk = (i == startChunkIndex) ? (int) (offset % chunkSize) : 0;
-			int lenInChunk = Math.min(remainingLen, data[i].length - posInChunk);
+			int lenInChunk = Math.min(remainingLen, chunk.limit() - posInChunk);
+			// The last chunk of the codestream may be smaller than requested: the remainder of the buffer is left empty.
+			if (lenInChunk <= 0) break;
 
-			try {
-				System.arraycopy(data[i], posInChunk, buffer, bufferOffset, lenInChunk);
-			} catch (Exception e) {
-				logger.error(String.format("Image byte copy failed: chunk %d, %d bytes out of %d", i, lenInChunk, data[i].length), e);
-			}
+			chunk.position(posInChunk);
+			chunk.get(buffer, bufferOffset, lenInChunk);
 
 			bufferOffset += lenInChunk;
 			remainingLen -= lenInChunk;
@@ -86,16 +99,52 @@ public class ImageCodestreamAccessor {
 		return buffer;
 	}
 
-	private void growDataArray() {
-		byte[][] newData = new byte[data.length * 2][];
-		for (int i = 0; i < data.length; i++) {
-			newData[i] = data[i];
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	/**
+	 * Update the access pattern with a new read, and decide how far ahead to fetch.
+	 *
+	 * @return The chunks to fetch, which include at least the chunks of the read.
+	 */
+	private synchronized ChunkRange planFetch(long offset, int len, int startChunkIndex, int endChunkIndex) {
+		ChunkRange readRange = new ChunkRange(startChunkIndex, endChunkIndex);
+		int chunkSize = chunkCache.getChunkSize();
+		int lastChunkIndex = (int) (Math.max(0, codestreamSize - 1) / chunkSize);
+
+		// Small gaps (e.g. skipped markers) and small overlaps still count as sequential.
+		boolean sequential = lastReadEnd >= 0 && Math.abs(offset - lastReadEnd) <= chunkSize;
+		boolean newChunk = endChunkIndex > lastEndChunkIndex;
+		lastReadEnd = offset + len;
+		lastEndChunkIndex = endChunkIndex;
+		stats.recordRead(len, sequential);
+
+		if (wholeObjectRequested) return readRange;
+
+		sequentialBytes = sequential ? sequentialBytes + len : len;
+		if (codestreamSize <= chunkCache.getWholeObjectThreshold() || sequentialBytes > codestreamSize / 2) {
+			wholeObjectRequested = true;
+			stats.recordWholeObjectFetch();
+			return new ChunkRange(0, Math.max(endChunkIndex, lastChunkIndex));
 		}
-		data = newData;
-	}
 
-	private void fetchChunk(int i) {
-		logger.info(String.format("Fetching chunk %d for meas %d, well %d, channel %s", i, measId, wellNr, channelId));
-		data[i] = measService.getImageDataPart(measId, wellNr, channelId, i * chunkSize, chunkSize);
+		if (!sequential) {
+			readAheadChunks = 0;
+			readAheadEndChunkIndex = endChunkIndex;
+			return readRange;
+		}
+
+		// Fetch the next window once the reader is halfway through the current one, so it arrives before it is needed.
+		if (!newChunk || endChunkIndex < readAheadEndChunkIndex - readAheadChunks / 2) return readRange;
+
+		int maxReadAheadChunks = chunkCache.getMaxChunkSize() / chunkSize;
+		readAheadChunks = Math.min(maxReadAheadChunks, Math.max(1, readAheadChunks * 2));
+		readAheadEndChunkIndex = Math.min(lastChunkIndex, Math.max(endChunkIndex, readAheadEndChunkIndex) + readAheadChunks);
+		stats.recordReadAhead((long) readAheadChunks * chunkSize);
+		return new ChunkRange(startChunkIndex, Math.max(endChunkIndex, readAheadEndChunkIndex));
 	}
+
+	private record ChunkRange(int startChunkIndex, int endChunkIndex) {}
 }
@@ -20,21 +20,43 @@
  */
 package eu.openanalytics.phaedra.measservice.image;
 
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Component;
 
-import eu.openanalytics.phaedra.measservice.service.MeasService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 
+/**
+ * Accessors hold no data of their own (see {@link ImageChunkCache}),
+ * so they are cheap to create and need not be cached themselves.
+ * <p>
+ * The access statistics of recently accessed images are kept, so that they
+ * can be inspected afterwards.
+ */
 @Component
 public class ImageCodestreamAccessorCache {
 
+	private static final int MAX_STATS_ENTRIES = 10000;
+
 	@Autowired
-	private MeasService measService;
+	private ImageChunkCache chunkCache;
+
+	private final Cache<ImageKey, ImageAccessStats> accessStats = Caffeine.newBuilder()
+			.maximumSize(MAX_STATS_ENTRIES)
+			.expireAfterAccess(1, TimeUnit.HOURS)
+			.build();
+
+	public ImageCodestreamAccessor getCodestreamAccessor(long measId, int wellNr, String channel, long codestreamSize) {
+		ImageAccessStats stats = accessStats.get(new ImageKey(measId, wellNr, channel), k -> new ImageAccessStats(codestreamSize));
+		return new ImageCodestreamAccessor(measId, wellNr, channel, codestreamSize, chunkCache, stats);
+	}
 
-	@Cacheable("codestream_accessors")
-	public ImageCodestreamAccessor getCodestreamAccessor(long measId, int wellNr, String channel) {
-		return new ImageCodestreamAccessor(measId, wellNr, channel, measService);
+	public Optional<ImageAccessStats> getAccessStats(long measId, int wellNr, String channel) {
+		return Optional.ofNullable(accessStats.getIfPresent(new ImageKey(measId, wellNr, channel)));
 	}
 
+	private record ImageKey(long measId, int wellNr, String channel) {}
 }
@@ -0,0 +1,98 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A grid of equally sized cells, each holding a thumbnail of one well.
+ * Thumbnails are scaled to fit their cell, preserving their aspect ratio, and centered in it.
+ * <p>
+ * Drawing is not thread-safe: thumbnails may be decoded in parallel, but must be drawn one at a time.
+ */
+public class ImageMontage {
+
+	private final int columns;
+	private final int rows;
+	private final int cellSize;
+	private final BufferedImage image;
+
+	public ImageMontage(int columns, int rows, int cellSize) {
+		this.columns = columns;
+		this.rows = rows;
+		this.cellSize = cellSize;
+		this.image = new BufferedImage(columns * cellSize, rows * cellSize, BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.BLACK);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.dispose();
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Decode an encoded image (e.g. JPEG) into a thumbnail that can be drawn into a cell.
+	 * This may be done in parallel for different cells.
+	 */
+	public static BufferedImage decode(byte[] encodedImage) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encodedImage));
+		if (decoded == null) throw new IOException("Unsupported image format");
+		return decoded;
+	}
+
+	public void drawCell(int column, int row, BufferedImage thumbnail) {
+		if (column < 0 || column >= columns || row < 0 || row >= rows) {
+			throw new IllegalArgumentException(String.format("Cell [%d,%d] is outside the montage", column, row));
+		}
+
+		double scale = Math.min((double) cellSize / thumbnail.getWidth(), (double) cellSize / thumbnail.getHeight());
+		int w = Math.max(1, (int) Math.round(thumbnail.getWidth() * scale));
+		int h = Math.max(1, (int) Math.round(thumbnail.getHeight() * scale));
+		int x = column * cellSize + (cellSize - w) / 2;
+		int y = row * cellSize + (cellSize - h) / 2;
+
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(thumbnail, x, y, w, h, null);
+		g.dispose();
+	}
+
+	public byte[] toJPEG() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+}
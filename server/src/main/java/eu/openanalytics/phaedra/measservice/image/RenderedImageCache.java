@@ -0,0 +1,237 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * A cache of rendered images, so that repeated requests for the same image need no decoding.
+ * <p>
+ * Images are identified by a key that is derived from everything that affects the rendered output:
+ * the measurement, well, channels, codestream sizes and the fully resolved render config.
+ * The key is also suitable as an HTTP entity tag.
+ * <p>
+ * The cache has a memory tier and, if a directory is configured, a local-disk tier.
+ * Both tiers are bounded by the total size of the cached images. The disk tier survives restarts:
+ * on startup, the images that are still on disk are added to it again.
+ */
+@Component
+public class RenderedImageCache {
+
+	private static final String CACHE_NAME = "rendered_images";
+
+	// Approximate per-entry overhead of the key, the array and the cache node
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+
+	// Sorted properties and map entries make the JSON form of a render config canonical.
+	private static final ObjectMapper CANONICAL_MAPPER = JsonMapper.builder()
+			.enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+			.enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+			.build();
+
+	@Value("${meas-service.image.render-cache.max-bytes:134217728}")
+	private long maxBytes;
+
+	@Value("${meas-service.image.render-cache.disk-dir:}")
+	private String diskDir;
+
+	@Value("${meas-service.image.render-cache.disk-max-bytes:2147483648}")
+	private long diskMaxBytes;
+
+	private final ObjectProvider<MeterRegistry> meterRegistry;
+
+	private Cache<String, byte[]> memoryCache;
+	private Cache<String, Long> diskIndex;
+	private Path diskPath;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public RenderedImageCache(ObjectProvider<MeterRegistry> meterRegistry) {
+		this.meterRegistry = meterRegistry;
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		memoryCache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((String key, byte[] image) -> image.length + ENTRY_OVERHEAD)
+				.recordStats()
+				.build();
+		meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, memoryCache, CACHE_NAME));
+
+		if (StringUtils.hasText(diskDir)) {
+			diskPath = Paths.get(diskDir);
+			Files.createDirectories(diskPath);
+			// Evict synchronously, so that evicted files are deleted before new ones are added.
+			diskIndex = Caffeine.newBuilder()
+					.executor(Runnable::run)
+					.maximumWeight(diskMaxBytes)
+					.weigher((String key, Long size) -> (int) Math.min(Integer.MAX_VALUE, size))
+					.removalListener((String key, Long size, RemovalCause cause) -> {
+						if (cause.wasEvicted()) deleteFromDisk(key);
+					})
+					.build();
+			loadDiskIndex();
+		}
+
+		logger.info(String.format("Rendered image cache: %d bytes in memory, %s", maxBytes,
+				diskPath == null ? "no disk tier" : String.format("%d bytes on disk at %s", diskMaxBytes, diskPath)));
+	}
+
+	/**
+	 * Compute the cache key of a rendered image.
+	 *
+	 * @param contentVersions The content identifiers of the channel codestreams, so that a replaced image gets a new key
+	 * (see {@link eu.openanalytics.phaedra.measservice.service.MeasService#getImageDataVersions(long, int, List)}).
+	 * @param config The fully resolved render config, including the channel configs.
+	 * @return A hex-encoded SHA-256 hash.
+	 */
+	public String computeKey(long measId, int wellNr, List<String> channels, List<String> contentVersions, ImageRenderConfig config) throws IOException {
+		Map<String, Object> keyParts = new LinkedHashMap<>();
+		keyParts.put("measId", measId);
+		keyParts.put("wellNr", wellNr);
+		keyParts.put("channels", channels);
+		keyParts.put("contentVersions", contentVersions);
+		keyParts.put("config", config);
+		byte[] canonicalForm = CANONICAL_MAPPER.writeValueAsString(keyParts).getBytes(StandardCharsets.UTF_8);
+		return DigestUtils.sha256Hex(canonicalForm);
+	}
+
+	public Optional<byte[]> get(String key) {
+		byte[] image = memoryCache.getIfPresent(key);
+		if (image == null && diskIndex != null && diskIndex.getIfPresent(key) != null) {
+			image = readFromDisk(key);
+			if (image != null) memoryCache.put(key, image);
+		}
+		return Optional.ofNullable(image);
+	}
+
+	public void put(String key, byte[] image) {
+		memoryCache.put(key, image);
+		if (diskIndex != null) writeToDisk(key, image);
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private Path getDiskFile(String key) {
+		return diskPath.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	private byte[] readFromDisk(String key) {
+		try {
+			return Files.readAllBytes(getDiskFile(key));
+		} catch (NoSuchFileException e) {
+			diskIndex.invalidate(key);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to read cached image %s: %s", key, e.getMessage()));
+			diskIndex.invalidate(key);
+		}
+		return null;
+	}
+
+	private void writeToDisk(String key, byte[] image) {
+		// Write to a temporary file first, so that readers never see a partially written image.
+		Path file = getDiskFile(key);
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmpFile = Files.createTempFile(file.getParent(), key, TMP_FILE_SUFFIX);
+			Files.write(tmpFile, image);
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			diskIndex.put(key, (long) image.length);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to write cached image %s: %s", key, e.getMessage()));
+		}
+	}
+
+	private void deleteFromDisk(String key) {
+		try {
+			Files.deleteIfExists(getDiskFile(key));
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to delete cached image %s: %s", key, e.getMessage()));
+		}
+	}
+
+	private void loadDiskIndex() throws IOException {
+		List<Path> files;
+		try (Stream<Path> paths = Files.walk(diskPath, 2)) {
+			files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+
+		// Add the oldest images first, so that they are also the first to be evicted.
+		files.sort(Comparator.comparingLong(this::getLastModified));
+		for (Path file: files) {
+			if (file.getFileName().toString().endsWith(TMP_FILE_SUFFIX)) {
+				Files.deleteIfExists(file);
+			} else {
+				diskIndex.put(file.getFileName().toString(), Files.size(file));
+			}
+		}
+		logger.info(String.format("Rendered image cache: %d images found on disk", diskIndex.estimatedSize()));
+	}
+
+	private long getLastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
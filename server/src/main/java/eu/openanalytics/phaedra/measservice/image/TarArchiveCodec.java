@@ -0,0 +1,123 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Writes a (ustar) tar archive one entry at a time, so that the content of each entry
+ * can be streamed straight into the archive.
+ * <p>
+ * Layout:
+ * <pre>
+ * for each entry:
+ * byte[512] header   (name, size, modification time, checksum)
+ * byte[]    content
+ * byte[]    padding  (up to a multiple of 512)
+ * finally:
+ * byte[1024] zeroes
+ * </pre>
+ */
+public class TarArchiveCodec {
+
+	public static final int BLOCK_SIZE = 512;
+
+	private static final int MAX_NAME_LENGTH = 100;
+	private static final long MAX_ENTRY_SIZE = 077777777777L;
+
+	/**
+	 * Check whether a name can be used as entry name as is: it must fit in the header,
+	 * and may not contain a path separator or NUL character.
+	 */
+	public static boolean isValidEntryName(String name) {
+		if (name == null || name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\0') >= 0) return false;
+		return name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+	}
+
+	public static void writeEntryHeader(OutputStream output, String name, long size, long modified) throws IOException {
+		if (!isValidEntryName(name)) throw new IOException("Invalid tar entry name: " + name);
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (size < 0 || size > MAX_ENTRY_SIZE) throw new IOException("Unsupported tar entry size: " + size);
+
+		byte[] header = new byte[BLOCK_SIZE];
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, modified / 1000);
+		header[156] = '0';
+		putString(header, 257, "ustar\0");
+		putString(header, 263, "00");
+
+		// The checksum is calculated with the checksum field itself filled with spaces.
+		putString(header, 148, "        ");
+		long checksum = 0;
+		for (byte b: header) checksum += (b & 0xFF);
+		putOctal(header, 148, 7, checksum);
+		header[155] = ' ';
+
+		output.write(header);
+	}
+
+	/**
+	 * Pad the content of an entry of the given size up to the next block boundary.
+	 */
+	public static void writeEntryPadding(OutputStream output, long size) throws IOException {
+		int padding = (int) (-size & (BLOCK_SIZE - 1));
+		if (padding > 0) output.write(new byte[padding]);
+	}
+
+	public static void writeEnd(OutputStream output) throws IOException {
+		output.write(new byte[2 * BLOCK_SIZE]);
+	}
+
+	/**
+	 * Calculate the exact size of an archive containing entries of the given sizes.
+	 */
+	public static long getArchiveSize(Collection<Long> entrySizes) {
+		long size = 2 * BLOCK_SIZE;
+		for (long entrySize: entrySizes) {
+			size += BLOCK_SIZE + ((entrySize + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+		}
+		return size;
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private static void putOctal(byte[] header, int offset, int length, long value) {
+		// Zero-padded octal digits, followed by a NUL terminator.
+		String digits = String.format("%0" + (length - 1) + "o", value);
+		putString(header, offset, digits);
+		header[offset + length - 1] = 0;
+	}
+
+	private static void putString(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.model;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Column;
+import org.springframework.data.relational.core.mapping.Table;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A request to purge all data of a deleted measurement.
+ * The stage acts as a checkpoint: a job that is resumed continues at the stage it was in.
+ * A running job is leased by the worker that claimed it, and the lease is renewed by a heartbeat.
+ */
+@Table("deletion_job")
+@Data
+@NoArgsConstructor
+@JsonInclude(Include.NON_NULL)
+public class DeletionJob {
+
+	public enum Status { PENDING, RUNNING, COMPLETED, FAILED }
+
+	public enum Stage { WELLDATA, SUBWELLDATA, IMAGEDATA, DONE }
+
+	@Id
+	@Column
+	private Long id;
+
+	@Column
+	private Long measId;
+
+	@Column
+	private Status status;
+	@Column
+	private Stage stage;
+
+	@Column
+	private long deletedObjects;
+	@Column
+	private int attempts;
+	@Column
+	private String lastError;
+	@Column
+	private Date nextAttemptOn;
+
+	@Column
+	private String claimedBy;
+	@Column
+	private Date heartbeatAt;
+
+	@Column
+	private Date createdOn;
+	@Column
+	private Date updatedOn;
+	@Column
+	private Date completedOn;
+}
@@ -0,0 +1,56 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.model;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The metadata of the image of one channel of one well, recorded when the image is uploaded.
+ * The image properties are only known for JPEG2000 codestreams; for other formats they are null.
+ */
+@Data
+@NoArgsConstructor
+@JsonInclude(Include.NON_NULL)
+public class ImageManifest {
+
+	private long measId;
+	private int wellNr;
+	private String channel;
+
+	private long byteSize;
+	private String contentHash;
+
+	private Integer width;
+	private Integer height;
+	private Integer components;
+	private Integer bitDepth;
+	private Integer resolutionLevels;
+	private Integer tileWidth;
+	private Integer tileHeight;
+
+	private Date createdOn;
+}
@@ -0,0 +1,112 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jdbc.repository.query.Modifying;
+import org.springframework.data.jdbc.repository.query.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import eu.openanalytics.phaedra.measservice.model.DeletionJob;
+
+@Repository
+public interface DeletionJobRepository extends CrudRepository<DeletionJob, Long> {
+
+	@Query("select * from deletion_job j where j.status = 'PENDING' and (j.next_attempt_on is null or j.next_attempt_on <= :now) order by j.created_on limit :maxJobs")
+	List<DeletionJob> findDueJobs(Date now, int maxJobs);
+
+	/**
+	 * Claim a pending job. Returns 1 if the job was claimed, or 0 if it was claimed by another worker.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set status = 'RUNNING', claimed_by = :workerId, heartbeat_at = :now, updated_on = :now where id = :jobId and status = 'PENDING'")
+	int claimJob(long jobId, String workerId, Date now);
+
+	/**
+	 * Save the progress of a running job, provided that the worker still holds the lease.
+	 * Returns 1 if the progress was saved, or 0 if the lease was lost.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set stage = :stage, deleted_objects = :deletedObjects, heartbeat_at = :now, updated_on = :now"
+			+ " where id = :jobId and status = 'RUNNING' and claimed_by = :workerId")
+	int saveProgress(long jobId, String workerId, String stage, long deletedObjects, Date now);
+
+	/**
+	 * Mark a running job as completed, provided that the worker still holds the lease.
+	 * Returns 1 if the job was completed, or 0 if the lease was lost.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set status = 'COMPLETED', stage = 'DONE', deleted_objects = :deletedObjects, last_error = null, completed_on = :now, updated_on = :now"
+			+ " where id = :jobId and status = 'RUNNING' and claimed_by = :workerId")
+	int completeJob(long jobId, String workerId, long deletedObjects, Date now);
+
+	/**
+	 * Return a failed job to the queue (status PENDING), or give up on it (status FAILED),
+	 * provided that the worker still holds the lease. Returns 1 if the job was updated, or 0 if the lease was lost.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set status = :status, attempts = :attempts, last_error = :lastError, next_attempt_on = :nextAttemptOn, claimed_by = null, updated_on = :now"
+			+ " where id = :jobId and status = 'RUNNING' and claimed_by = :workerId")
+	int failJob(long jobId, String workerId, String status, int attempts, String lastError, Date nextAttemptOn, Date now);
+
+	/**
+	 * Renew the leases of all jobs that are running on a worker.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set heartbeat_at = :now where status = 'RUNNING' and claimed_by = :workerId")
+	int renewLeases(String workerId, Date now);
+
+	/**
+	 * Return jobs to the queue that were running on a worker that has since restarted.
+	 * Only useful for a worker ID that is stable across restarts (see MeasDeletionService).
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set status = 'PENDING', claimed_by = null where status = 'RUNNING' and claimed_by = :workerId")
+	int releaseJobs(String workerId);
+
+	/**
+	 * Return jobs to the queue whose lease has expired, because their worker stopped without releasing them.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update deletion_job set status = 'PENDING', claimed_by = null where status = 'RUNNING' and (heartbeat_at is null or heartbeat_at < :expiredBefore)")
+	int releaseExpiredJobs(Date expiredBefore);
+
+	@Query("select count(*) from deletion_job j where j.status = :status")
+	long countByStatus(String status);
+
+	@Query("select count(*) from deletion_job j where j.status = 'COMPLETED' and j.completed_on >= :since")
+	long countCompletedSince(Date since);
+
+	@Query("select coalesce(sum(j.deleted_objects), 0) from deletion_job j where j.status = 'COMPLETED' and j.completed_on >= :since")
+	long sumDeletedObjectsCompletedSince(Date since);
+
+}
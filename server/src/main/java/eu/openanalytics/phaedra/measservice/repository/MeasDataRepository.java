@@ -21,15 +21,51 @@
 package eu.openanalytics.phaedra.measservice.repository;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.RecoverableDataAccessException;
-import org.springframework.data.util.Pair;
 import org.springframework.stereotype.Repository;
+import org.springframework.util.StreamUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.config.IOExecutors.IOExecutor;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec.WellValuesConsumer;
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec.WellDataConsumer;
+import eu.openanalytics.phaedra.measservice.image.CodestreamHeader;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
+import eu.openanalytics.phaedra.measservice.repository.dao.ImageManifestDAO;
+import eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreAsyncDAO;
 import eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreDAO;
 import eu.openanalytics.phaedra.measservice.repository.dao.MeasWelldataDAO;
 
@@ -37,14 +73,83 @@ import eu.openanalytics.phaedra.measservice.repository.dao.MeasWelldataDAO;
 public class MeasDataRepository {
 
 	private static final String PREFIX_SW_DATA = "subwelldata";
+	private static final String PREFIX_SW_COLUMN_DATA = "subwellcolumn";
 	private static final String PREFIX_IMAGE_DATA = "imagedata";
 
+	// Large enough to contain the header of a 1536-well column blob.
+	private static final int SW_COLUMN_HEADER_PROBE_SIZE = 16 * 1024;
+
 	@Autowired
 	private MeasWelldataDAO welldataDAO;
 
 	@Autowired
 	private MeasObjectStoreDAO objectStoreDAO;
 
+	// Only available if the async client is enabled. If so, it is used for all bulk operations.
+	@Autowired(required = false)
+	private MeasObjectStoreAsyncDAO asyncObjectStoreDAO;
+
+	@Autowired
+	private ImageManifestDAO imageManifestDAO;
+
+	@Autowired
+	private IOExecutors ioExecutors;
+
+	@Value("${meas-service.subwelldata.fetch-concurrency:8}")
+	private int subWellFetchConcurrency;
+
+	// With the async client, requests in flight hold no thread, so a whole plate can be fetched at once.
+	@Value("${meas-service.subwelldata.async-fetch-concurrency:1536}")
+	private int subWellAsyncFetchConcurrency;
+
+	@Value("${meas-service.subwelldata.upload-concurrency:8}")
+	private int subWellUploadConcurrency;
+
+	@Value("${meas-service.subwelldata.column-index-cache.max-entries:10000}")
+	private long subWellColumnIndexCacheMaxEntries;
+
+	@Value("${meas-service.subwelldata.column-index-cache.ttl:600}")
+	private long subWellColumnIndexCacheTtl;
+
+	@Value("${meas-service.image.metadata-concurrency:16}")
+	private int imageMetadataConcurrency;
+
+	@Value("${meas-service.image.data-concurrency:8}")
+	private int imageDataConcurrency;
+
+	@Value("${meas-service.image.manifest-cache.max-entries:100000}")
+	private long manifestCacheMaxEntries;
+
+	@Value("${meas-service.image.manifest-cache.ttl:600}")
+	private long manifestCacheTtl;
+
+	private IOExecutor subWellFetchExecutor;
+	private IOExecutor subWellUploadExecutor;
+	private IOExecutor imageMetadataExecutor;
+	private IOExecutor imageDataExecutor;
+
+	// Also caches the absence of a manifest, so that images stored before manifests existed cost no extra query.
+	private Cache<ImageKey, Optional<ImageManifest>> manifestCache;
+
+	// Also caches the absence of a column object, so that per-well data costs a single request per well.
+	private Cache<SubWellColumnKey, Optional<SubWellColumnCodec.Index>> subWellColumnIndexCache;
+
+	@PostConstruct
+	public void init() {
+		subWellFetchExecutor = ioExecutors.getExecutor("subwell-fetch", subWellFetchConcurrency);
+		subWellUploadExecutor = ioExecutors.getExecutor("subwell-upload", subWellUploadConcurrency);
+		imageMetadataExecutor = ioExecutors.getExecutor("image-metadata", imageMetadataConcurrency);
+		imageDataExecutor = ioExecutors.getExecutor("image-data", imageDataConcurrency);
+		manifestCache = Caffeine.newBuilder()
+				.maximumSize(manifestCacheMaxEntries)
+				.expireAfterWrite(manifestCacheTtl, TimeUnit.SECONDS)
+				.build();
+		subWellColumnIndexCache = Caffeine.newBuilder()
+				.maximumSize(subWellColumnIndexCacheMaxEntries)
+				.expireAfterWrite(subWellColumnIndexCacheTtl, TimeUnit.SECONDS)
+				.build();
+	}
+
 	public float[] getWellData(long measId, String column) {
 		return welldataDAO.getData(measId, column);
 	}
@@ -53,6 +158,14 @@ public class MeasDataRepository {
 		return welldataDAO.getData(measId);
 	}
 
+	public Map<String, float[]> getWellData(long measId, List<String> columns) {
+		return welldataDAO.getData(measId, columns.toArray(new String[0]));
+	}
+
+	public void streamWellData(List<Long> measIds, List<String> columns, WellDataConsumer consumer) {
+		welldataDAO.streamData(measIds.stream().mapToLong(Long::longValue).toArray(), columns.toArray(new String[0]), consumer);
+	}
+
 	public void deleteWellData(long measId) {
 		welldataDAO.deleteData(measId);
 	}
@@ -68,23 +181,51 @@ public class MeasDataRepository {
 	 * Subwell data storage approach
 	 * *****************************
 	 *
-	 * One object per well per column.
+	 * One object per column, containing the data of all wells.
+	 *
+	 * Key: "subwellcolumn.<colName>"
+	 * Value: see SubWellColumnCodec
+	 *
+	 * The data of a single well can be read with a ranged request, by first
+	 * reading the header of the object.
+	 *
+	 * Data that is saved one well at a time still uses the legacy approach:
+	 * one object per well per column.
 	 *
 	 * Key: "subwelldata.<colName>.<wellNr>"
 	 * Value: float[]
 	 *
+	 * A column object takes precedence over per-well objects of the same column.
+	 * Therefore, saving a column object removes the per-well objects of that column,
+	 * and per-well saves are not accepted for a column that has a column object
+	 * (see hasSubWellColumnData).
+	 *
 	 * Summary:
-	 * - Thousands of objects per well
-	 * - A million objects per meas
-	 * - Several KB per value
-	 * - Thus, several MB per well
+	 * - Hundreds of objects per meas
+	 * - Several KB per well
+	 * - Thus, several MB per column
 	 * - Thus, several GB per meas
 	 */
 
 	public void putSubWellData(long measId, String column, Map<Integer, float[]> data) {
-		data.keySet().parallelStream().forEach(i -> {
-			putSubWellData(measId, i + 1, column, data.get(i));
+		// Note: the keys of the data map are well indices, i.e. wellNr - 1
+		SortedMap<Integer, float[]> dataPerWellNr = new TreeMap<>();
+		data.forEach((i, values) -> {
+			if (values != null) dataPerWellNr.put(i + 1, values);
 		});
+
+		String key = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
+		try {
+			objectStoreDAO.putMeasObjectRaw(measId, key, SubWellColumnCodec.encode(dataPerWellNr));
+			subWellColumnIndexCache.invalidate(new SubWellColumnKey(measId, column));
+
+			// Per-well objects saved earlier would be hidden by the column object from now on.
+			String[] legacyKeys = getLegacySubWellKeys(measId, column).values().toArray(new String[0]);
+			if (legacyKeys.length > 0) objectStoreDAO.deleteMeasObjects(measId, legacyKeys);
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(
+					String.format("Failed to store subwell data for measurement %d, column %s", measId, column), e);
+		}
 	}
 
 	public void putSubWellData(long measId, int wellNr, String column, float[] data) {
@@ -97,11 +238,56 @@ public class MeasDataRepository {
 		}
 	}
 
+	/**
+	 * Store the subwell data of several wells and columns, one object per well per column.
+	 * The objects are uploaded in parallel, with a bounded number of concurrent uploads.
+	 *
+	 * @param data The data per column, containing a float[] for each well number.
+	 */
+	public void putSubWellDataPerWell(long measId, Map<String, Map<Integer, float[]>> data) {
+		List<Future<Void>> uploads = new ArrayList<>();
+		data.forEach((column, dataPerWellNr) -> dataPerWellNr.forEach((wellNr, values) -> {
+			String key = String.format("%s.%s.%d", PREFIX_SW_DATA, column, wellNr);
+			uploads.add(submit(subWellUploadExecutor,
+					() -> { objectStoreDAO.putMeasObject(measId, key, values); return null; },
+					() -> asyncObjectStoreDAO.putMeasObject(measId, key, values)));
+		}));
+
+		try {
+			for (Future<Void> upload: uploads) awaitFetch(upload);
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(String.format("Failed to store subwell data for measurement %d", measId), e);
+		} finally {
+			uploads.forEach(u -> u.cancel(true));
+		}
+	}
+
+	/**
+	 * Get the subwell data of a single well. The index of the column object (or its absence) is cached,
+	 * so that repeated calls take a single request.
+	 */
 	public float[] getSubWellData(long measId, int wellNr, String column) {
+		SubWellColumnKey indexKey = new SubWellColumnKey(measId, column);
 		String key = String.format("%s.%s.%d", PREFIX_SW_DATA, column, wellNr);
 		try {
-			if (!objectStoreDAO.measObjectExists(measId, key)) return null;
-			return (float[]) objectStoreDAO.getMeasObject(measId, key);
+			boolean indexCached = subWellColumnIndexCache.getIfPresent(indexKey) != null;
+			SubWellColumnCodec.Index index = getSubWellColumnIndex(measId, column);
+			if (index == null) {
+				Optional<Object> data = objectStoreDAO.getMeasObjectIfPresent(measId, key);
+				if (data.isPresent() || !indexCached) return (float[]) data.orElse(null);
+
+				// The column may have been saved as a whole since its absence was cached, e.g. by another instance.
+				subWellColumnIndexCache.invalidate(indexKey);
+				index = getSubWellColumnIndex(measId, column);
+				if (index == null) return null;
+			}
+
+			if (!index.contains(wellNr)) return null;
+			int valueCount = index.getValueCount(wellNr);
+			if (valueCount == 0) return new float[0];
+			String columnKey = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
+			byte[] bytes = objectStoreDAO.getMeasObjectRaw(measId, columnKey, index.getValueOffset(wellNr), valueCount * Float.BYTES);
+			return SubWellColumnCodec.decodeValues(bytes);
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to retrieve subwell data for measurement %d, well %d, column %s", measId, wellNr, column), e);
@@ -109,38 +295,220 @@ public class MeasDataRepository {
 	}
 
 	public Map<Integer, float[]> getSubWellData(long measId, String column) {
-		String prefix = String.format("%s.%s", PREFIX_SW_DATA, column);
+		Map<Integer, float[]> data = new LinkedHashMap<>();
+		return streamSubWellData(measId, column, data::put) ? data : null;
+	}
+
+	/**
+	 * Check whether the subwell data of a column was saved for all wells at once, as a single column object.
+	 */
+	public boolean hasSubWellColumnData(long measId, String column) {
+		String columnKey = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
 		try {
-			// Find all available subkeys (expected: 1 key per well)
-			String[] keys = objectStoreDAO.listMeasObjects(measId, prefix);
-			if (keys.length == 0) return null;
+			return objectStoreDAO.getMeasObjectSizeIfPresent(measId, columnKey).isPresent();
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve subwell data for measurement %d, column %s", measId, column), e);
+		}
+	}
 
-			return Arrays.stream(keys).parallel().map(k -> {
-				try {
-					Integer wellNr = Integer.valueOf(k.substring(k.lastIndexOf('.') + 1));
-					float[] values = (float[]) objectStoreDAO.getMeasObject(measId, k);
-					return Pair.of(wellNr, values);
-				} catch (IOException e) {
-					throw new RecoverableDataAccessException(
-							String.format("Failed to retrieve subwell data for measurement %d, column %s", measId, column), e);
-				}
-			}).collect(Collectors.toMap(p -> p.getFirst(), p -> p.getSecond()));
+	public boolean hasSubWellData(long measId, String column) {
+		String columnKey = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
+		String prefix = String.format("%s.%s.", PREFIX_SW_DATA, column);
+		try {
+			if (objectStoreDAO.getMeasObjectSizeIfPresent(measId, columnKey).isPresent()) return true;
+			return objectStoreDAO.listMeasObjects(measId, prefix, 1).length > 0;
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to retrieve subwell data for measurement %d, column %s", measId, column), e);
 		}
 	}
 
-	public void deleteSubWellData(long measId) {
+	/**
+	 * Pass the subwell data of a column to a consumer, one well at a time, in ascending well number order.
+	 * At no point is the data of the whole column held in memory.
+	 *
+	 * @return False if the measurement has no subwell data for the column.
+	 */
+	public boolean streamSubWellData(long measId, String column, WellValuesConsumer consumer) {
+		String columnKey = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
 		try {
-			// Find all available subkeys (expected: 1 key per well per column)
-			String[] keys = objectStoreDAO.listMeasObjects(measId, PREFIX_SW_DATA);
-			objectStoreDAO.deleteMeasObjects(measId, keys);
+			Optional<Boolean> found = objectStoreDAO.readMeasObjectIfPresent(measId, columnKey, input -> {
+				SubWellColumnCodec.decode(input, consumer);
+				return true;
+			});
+			if (found.isPresent()) return true;
+
+			// Fall back to the legacy approach: one object per well
+			SortedMap<Integer, String> keysPerWellNr = getLegacySubWellKeys(measId, column);
+			if (keysPerWellNr.isEmpty()) return false;
+			streamLegacySubWellData(measId, keysPerWellNr, consumer);
+			return true;
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve subwell data for measurement %d, column %s", measId, column), e);
+		}
+	}
+
+	/**
+	 * Write the subwell data of a column to an output stream, in its binary form (see SubWellColumnCodec).
+	 *
+	 * @return False if the measurement has no subwell data for the column.
+	 */
+	public boolean copySubWellData(long measId, String column, OutputStream output) {
+		String columnKey = String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column);
+		try {
+			Optional<Integer> copied = objectStoreDAO.readMeasObjectIfPresent(measId, columnKey, input -> StreamUtils.copy(input, output));
+			if (copied.isPresent()) return true;
+
+			// Legacy objects must be combined first, as the header needs the value count of every well.
+			SortedMap<Integer, String> keysPerWellNr = getLegacySubWellKeys(measId, column);
+			if (keysPerWellNr.isEmpty()) return false;
+			SortedMap<Integer, float[]> data = new TreeMap<>();
+			streamLegacySubWellData(measId, keysPerWellNr, data::put);
+			output.write(SubWellColumnCodec.encode(data));
+			return true;
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve subwell data for measurement %d, column %s", measId, column), e);
+		}
+	}
+
+	/**
+	 * Delete a batch of subwell data objects.
+	 *
+	 * @param measId The ID of the measurement to delete subwell data for.
+	 * @param maxObjects The maximum number of objects to delete.
+	 * @return The number of objects that were deleted. Zero means no subwell data is left.
+	 */
+	public int deleteSubWellData(long measId, int maxObjects) {
+		subWellColumnIndexCache.asMap().keySet().removeIf(k -> k.measId() == measId);
+		try {
+			// Expected: 1 key per column, or 1 key per well per column
+			int deleted = deleteMeasObjects(measId, PREFIX_SW_COLUMN_DATA, maxObjects);
+			if (deleted == 0) deleted = deleteMeasObjects(measId, PREFIX_SW_DATA, maxObjects);
+			return deleted;
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(String.format("Failed to delete subwell data for measurement %d", measId), e);
 		}
 	}
 
+	private SortedMap<Integer, String> getLegacySubWellKeys(long measId, String column) throws IOException {
+		// Find all available subkeys (expected: 1 key per well)
+		String prefix = String.format("%s.%s.", PREFIX_SW_DATA, column);
+		SortedMap<Integer, String> keysPerWellNr = new TreeMap<>();
+		for (String key: objectStoreDAO.listMeasObjects(measId, prefix)) {
+			keysPerWellNr.put(Integer.valueOf(key.substring(key.lastIndexOf('.') + 1)), key);
+		}
+		return keysPerWellNr;
+	}
+
+	/**
+	 * Fetch the legacy per-well objects with a bounded number of requests in flight,
+	 * passing each well to the consumer in ascending well number order.
+	 */
+	private void streamLegacySubWellData(long measId, SortedMap<Integer, String> keysPerWellNr, WellValuesConsumer consumer) throws IOException {
+		Integer[] wellNrs = keysPerWellNr.keySet().toArray(new Integer[0]);
+		int windowSize = (asyncObjectStoreDAO == null) ? subWellFetchConcurrency : subWellAsyncFetchConcurrency;
+		Deque<Future<float[]>> window = new ArrayDeque<>();
+		int nextFetch = 0;
+		try {
+			for (int i = 0; i < wellNrs.length; i++) {
+				while (nextFetch < wellNrs.length && nextFetch - i < windowSize) {
+					String key = keysPerWellNr.get(wellNrs[nextFetch++]);
+					window.add(submit(subWellFetchExecutor,
+							() -> (float[]) objectStoreDAO.getMeasObject(measId, key),
+							() -> asyncObjectStoreDAO.getMeasObject(measId, key).thenApply(o -> (float[]) o)));
+				}
+				consumer.accept(wellNrs[i], awaitFetch(window.poll()));
+			}
+		} finally {
+			window.forEach(f -> f.cancel(true));
+		}
+	}
+
+	/**
+	 * Start an object store call: on the async client if it is enabled, otherwise as a task on the given executor.
+	 */
+	private <T> Future<T> submit(IOExecutor executor, Callable<T> call, Supplier<CompletableFuture<T>> asyncCall) {
+		if (asyncObjectStoreDAO != null) return asyncCall.get();
+		return executor.submit(call);
+	}
+
+	private <T> T awaitFetch(Future<T> fetch) throws IOException {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching measurement data");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private Map<ImageKey, Optional<ImageManifest>> loadImageManifests(long measId, int wellNr, Set<? extends ImageKey> keys) {
+		Map<ImageKey, Optional<ImageManifest>> manifests = new HashMap<>();
+		keys.forEach(k -> manifests.put(k, Optional.empty()));
+		for (ImageManifest manifest: imageManifestDAO.findByWell(measId, wellNr)) {
+			manifests.put(new ImageKey(measId, wellNr, manifest.getChannel()), Optional.of(manifest));
+		}
+		return manifests;
+	}
+
+	private void saveImageManifest(long measId, int wellNr, String channel, byte[] data) {
+		ImageManifest manifest = createImageManifest(measId, wellNr, channel, data);
+		imageManifestDAO.save(manifest);
+		manifestCache.put(new ImageKey(measId, wellNr, channel), Optional.of(manifest));
+	}
+
+	private ImageManifest createImageManifest(long measId, int wellNr, String channel, byte[] data) {
+		ImageManifest manifest = new ImageManifest();
+		manifest.setMeasId(measId);
+		manifest.setWellNr(wellNr);
+		manifest.setChannel(channel);
+		manifest.setByteSize(data.length);
+		manifest.setCreatedOn(new Date());
+		manifest.setContentHash(DigestUtils.sha256Hex(data));
+
+		try {
+			CodestreamHeader header = CodestreamHeader.parse(data);
+			manifest.setWidth(header.getWidth());
+			manifest.setHeight(header.getHeight());
+			manifest.setComponents(header.getComponents());
+			manifest.setBitDepth(header.getBitDepth());
+			manifest.setResolutionLevels(header.getResolutionLevels());
+			manifest.setTileWidth(header.getTileWidth());
+			manifest.setTileHeight(header.getTileHeight());
+		} catch (IOException e) {
+			// Not a JPEG2000 codestream: only the size and hash are recorded.
+		}
+		return manifest;
+	}
+
+	private SubWellColumnCodec.Index getSubWellColumnIndex(long measId, String column) throws IOException {
+		SubWellColumnKey indexKey = new SubWellColumnKey(measId, column);
+		Optional<SubWellColumnCodec.Index> index = subWellColumnIndexCache.getIfPresent(indexKey);
+		if (index == null) {
+			index = Optional.ofNullable(loadSubWellColumnIndex(measId, String.format("%s.%s", PREFIX_SW_COLUMN_DATA, column)));
+			subWellColumnIndexCache.put(indexKey, index);
+		}
+		return index.orElse(null);
+	}
+
+	private SubWellColumnCodec.Index loadSubWellColumnIndex(long measId, String columnKey) throws IOException {
+		// Most headers fit in the probe. If not, the well count tells how much more must be read.
+		byte[] header = objectStoreDAO.getMeasObjectRawIfPresent(measId, columnKey, 0, SW_COLUMN_HEADER_PROBE_SIZE).orElse(null);
+		if (header == null) return null;
+
+		int headerSize = SubWellColumnCodec.getHeaderSize(SubWellColumnCodec.getWellCount(header));
+		if (header.length < headerSize) {
+			header = objectStoreDAO.getMeasObjectRaw(measId, columnKey, 0, headerSize);
+		}
+		return SubWellColumnCodec.decodeIndex(header);
+	}
+
 	/*
 	 * Image data storage approach
 	 * ***************************
@@ -158,9 +526,24 @@ public class MeasDataRepository {
 	 */
 
 	public void putImageData(long measId, int wellNr, Map<String, byte[]> data) {
-		data.keySet().parallelStream().forEach(c -> {
-			putImageData(measId, wellNr, c, data.get(c));
+		Map<String, Future<Void>> uploads = new LinkedHashMap<>();
+		data.forEach((channel, values) -> {
+			String key = String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, channel);
+			uploads.put(channel, submit(imageDataExecutor,
+					() -> { objectStoreDAO.putMeasObjectRaw(measId, key, values); return null; },
+					() -> asyncObjectStoreDAO.putMeasObjectRaw(measId, key, values)));
 		});
+
+		try {
+			for (Map.Entry<String, Future<Void>> upload: uploads.entrySet()) {
+				awaitFetch(upload.getValue());
+				saveImageManifest(measId, wellNr, upload.getKey(), data.get(upload.getKey()));
+			}
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(String.format("Failed to store image data for measurement %d, well %d", measId, wellNr), e);
+		} finally {
+			uploads.values().forEach(u -> u.cancel(true));
+		}
 	}
 
 	public void putImageData(long measId, int wellNr, String channel, byte[] data) {
@@ -171,24 +554,111 @@ public class MeasDataRepository {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to store image data for measurement %d, well %d, channel %s", measId, wellNr, channel), e);
 		}
+		saveImageManifest(measId, wellNr, channel, data);
 	}
 
+	/**
+	 * Get the manifest that was recorded when the image was uploaded.
+	 *
+	 * @return The manifest, or an empty optional if the image does not exist or was uploaded before manifests were recorded.
+	 */
+	public Optional<ImageManifest> getImageManifest(long measId, int wellNr, String channel) {
+		return manifestCache.get(new ImageKey(measId, wellNr, channel), k -> imageManifestDAO.find(measId, wellNr, channel));
+	}
+
+	public List<ImageManifest> getImageManifests(long measId) {
+		return imageManifestDAO.findByMeas(measId);
+	}
+
+	/**
+	 * Get the size of the image data. The size is taken from the image manifest if there is one,
+	 * so that no object store request is needed.
+	 */
 	public long getImageDataSize(long measId, int wellNr, String channel) {
+		Optional<ImageManifest> manifest = getImageManifest(measId, wellNr, channel);
+		if (manifest.isPresent()) return manifest.get().getByteSize();
+
 		String key = String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, channel);
 		try {
-			if (!objectStoreDAO.measObjectExists(measId, key)) return -1;
-			return objectStoreDAO.getMeasObjectSize(measId, key);
+			return objectStoreDAO.getMeasObjectSizeIfPresent(measId, key).orElse(-1);
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to retrieve image data for measurement %d, well %d, channel %s", measId, wellNr, channel), e);
 		}
 	}
 
+	/**
+	 * Get the image data sizes of several channels at once. The sizes are taken from the image manifests,
+	 * which are loaded with a single query. Sizes of images without a manifest are looked up in parallel,
+	 * so this takes about as long as the slowest lookup.
+	 *
+	 * @return The sizes, in the order of the given channels. Channels without image data are omitted.
+	 */
+	public Map<String, Long> getImageDataSizes(long measId, int wellNr, List<String> channels) {
+		Map<ImageKey, Optional<ImageManifest>> manifests = manifestCache.getAll(
+				channels.stream().map(c -> new ImageKey(measId, wellNr, c)).collect(Collectors.toList()),
+				keys -> loadImageManifests(measId, wellNr, keys));
+
+		List<Future<Long>> lookups = channels.stream()
+				.map(c -> manifests.get(new ImageKey(measId, wellNr, c)).isPresent() ? null : submit(imageMetadataExecutor,
+						() -> getImageDataSize(measId, wellNr, c),
+						() -> asyncObjectStoreDAO.getMeasObjectSizeIfPresent(measId, String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, c)).thenApply(s -> s.orElse(-1))))
+				.collect(Collectors.toList());
+
+		Map<String, Long> sizes = new LinkedHashMap<>();
+		try {
+			for (int i = 0; i < channels.size(); i++) {
+				Optional<ImageManifest> manifest = manifests.get(new ImageKey(measId, wellNr, channels.get(i)));
+				long size = manifest.isPresent() ? manifest.get().getByteSize() : awaitFetch(lookups.get(i));
+				if (size > 0) sizes.put(channels.get(i), size);
+			}
+		} catch (IOException e) {
+			lookups.stream().filter(l -> l != null).forEach(l -> l.cancel(true));
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve image data for measurement %d, well %d", measId, wellNr), e);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Get an identifier of the content of the image data of several channels at once.
+	 * The identifier changes whenever the image data is replaced, even if its size stays the same.
+	 * It is the content hash of the image manifest if there is one, so that no object store request is needed.
+	 * The identifiers of images without a manifest are looked up in parallel.
+	 *
+	 * @return The identifiers, in the order of the given channels. Channels without image data are omitted.
+	 */
+	public Map<String, String> getImageDataVersions(long measId, int wellNr, List<String> channels) {
+		Map<ImageKey, Optional<ImageManifest>> manifests = manifestCache.getAll(
+				channels.stream().map(c -> new ImageKey(measId, wellNr, c)).collect(Collectors.toList()),
+				keys -> loadImageManifests(measId, wellNr, keys));
+		Function<String, String> getContentHash = c -> manifests.get(new ImageKey(measId, wellNr, c)).map(ImageManifest::getContentHash).orElse(null);
+
+		List<Future<Optional<String>>> lookups = channels.stream()
+				.map(c -> getContentHash.apply(c) != null ? null : submit(imageMetadataExecutor,
+						() -> objectStoreDAO.getMeasObjectVersionIfPresent(measId, String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, c)),
+						() -> asyncObjectStoreDAO.getMeasObjectVersionIfPresent(measId, String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, c))))
+				.collect(Collectors.toList());
+
+		Map<String, String> versions = new LinkedHashMap<>();
+		try {
+			for (int i = 0; i < channels.size(); i++) {
+				String contentHash = getContentHash.apply(channels.get(i));
+				Optional<String> version = (contentHash != null) ? Optional.of(contentHash) : awaitFetch(lookups.get(i));
+				if (version.isPresent()) versions.put(channels.get(i), version.get());
+			}
+		} catch (IOException e) {
+			lookups.stream().filter(l -> l != null).forEach(l -> l.cancel(true));
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve image data for measurement %d, well %d", measId, wellNr), e);
+		}
+		return versions;
+	}
+
 	public byte[] getImageData(long measId, int wellNr, String channel) {
 		String key = String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, channel);
 		try {
-			if (!objectStoreDAO.measObjectExists(measId, key)) return null;
-			return objectStoreDAO.getMeasObjectRaw(measId, key);
+			return objectStoreDAO.getMeasObjectRawIfPresent(measId, key).orElse(null);
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to retrieve image data for measurement %d, well %d, channel %s", measId, wellNr, channel), e);
@@ -206,37 +676,78 @@ public class MeasDataRepository {
 		}
 	}
 
+	/**
+	 * Copy (a part of) the image data to an output stream, without holding it in memory.
+	 *
+	 * @param len The number of bytes to copy, or -1 to copy up to the end of the image data.
+	 * @return The number of bytes copied, or -1 if there is no such image data.
+	 */
+	public long copyImageData(long measId, int wellNr, String channel, long offset, long len, OutputStream output) {
+		String key = String.format("%s.%d.%s", PREFIX_IMAGE_DATA, wellNr, channel);
+		try {
+			return objectStoreDAO.readMeasObjectIfPresent(measId, key, offset, len, input -> input.transferTo(output)).orElse(-1L);
+		} catch (IOException e) {
+			throw new RecoverableDataAccessException(
+					String.format("Failed to retrieve image data for measurement %d, well %d, channel %s", measId, wellNr, channel), e);
+		}
+	}
+
 	public Map<String, byte[]> getImageData(long measId, int wellNr) {
 		String prefix = String.format("%s.%d.", PREFIX_IMAGE_DATA, wellNr);
 		try {
 			// Find all available subkeys (expected: 1 key per channel)
-			String[] keys = objectStoreDAO.listMeasObjects(measId, prefix);
+			String[] keys = (asyncObjectStoreDAO == null) ? objectStoreDAO.listMeasObjects(measId, prefix) : awaitFetch(asyncObjectStoreDAO.listMeasObjects(measId, prefix));
 			if (keys.length == 0) return null;
 
-			return Arrays.stream(keys).parallel().map(k -> {
-				try {
-					String channel = k.substring(k.lastIndexOf('.') + 1);
-					byte[] values = objectStoreDAO.getMeasObjectRaw(measId, k);
-					return Pair.of(channel, values);
-				} catch (IOException e) {
-					throw new RecoverableDataAccessException(
-							String.format("Failed to retrieve image data for measurement %d, well %d", measId, wellNr), e);
+			List<Future<byte[]>> fetches = Arrays.stream(keys)
+					.map(k -> submit(imageDataExecutor, () -> objectStoreDAO.getMeasObjectRaw(measId, k), () -> asyncObjectStoreDAO.getMeasObjectRaw(measId, k)))
+					.collect(Collectors.toList());
+			Map<String, byte[]> data = new HashMap<>();
+			try {
+				for (int i = 0; i < keys.length; i++) {
+					data.put(keys[i].substring(keys[i].lastIndexOf('.') + 1), awaitFetch(fetches.get(i)));
 				}
-			}).collect(Collectors.toMap(p -> p.getFirst(), p -> p.getSecond()));
+			} finally {
+				fetches.forEach(f -> f.cancel(true));
+			}
+			return data;
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(
 					String.format("Failed to retrieve image data for measurement %d, well %s", measId, wellNr), e);
 		}
 	}
 
-	public void deleteImageData(long measId) {
+	/**
+	 * Delete a batch of image data objects.
+	 *
+	 * @param measId The ID of the measurement to delete image data for.
+	 * @param maxObjects The maximum number of objects to delete.
+	 * @return The number of objects that were deleted. Zero means no image data is left.
+	 */
+	public int deleteImageData(long measId, int maxObjects) {
+		// The manifests themselves are deleted along with the measurement.
+		manifestCache.asMap().keySet().removeIf(k -> k.measId() == measId);
 		try {
-			// Find all available subkeys (expected: 1 key per well per column)
-			String[] keys = objectStoreDAO.listMeasObjects(measId, PREFIX_IMAGE_DATA);
-			objectStoreDAO.deleteMeasObjects(measId, keys);
+			// Expected: 1 key per well per channel
+			return deleteMeasObjects(measId, PREFIX_IMAGE_DATA, maxObjects);
 		} catch (IOException e) {
 			throw new RecoverableDataAccessException(String.format("Failed to delete image data for measurement %d", measId), e);
 		}
 	}
 
+	private int deleteMeasObjects(long measId, String prefix, int maxObjects) throws IOException {
+		if (asyncObjectStoreDAO != null) {
+			String[] keys = awaitFetch(asyncObjectStoreDAO.listMeasObjects(measId, prefix, maxObjects));
+			if (keys.length > 0) awaitFetch(asyncObjectStoreDAO.deleteMeasObjects(measId, keys));
+			return keys.length;
+		}
+
+		String[] keys = objectStoreDAO.listMeasObjects(measId, prefix, maxObjects);
+		if (keys.length > 0) objectStoreDAO.deleteMeasObjects(measId, keys);
+		return keys.length;
+	}
+
+	private record ImageKey(long measId, int wellNr, String channel) {}
+
+	private record SubWellColumnKey(long measId, String column) {}
 }
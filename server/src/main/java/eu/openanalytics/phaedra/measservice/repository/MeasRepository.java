@@ -22,10 +22,13 @@ package eu.openanalytics.phaedra.measservice.repository;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Optional;
 
+import org.springframework.data.jdbc.repository.query.Modifying;
 import org.springframework.data.jdbc.repository.query.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import eu.openanalytics.phaedra.measservice.model.Measurement;
 
@@ -38,4 +41,38 @@ public interface MeasRepository extends CrudRepository<Measurement, Long> {
 	@Query("select * from measurement m where m.created_on >= :date1 and m.created_on <= :date2")
 	List<Measurement> findByCreatedOnRange(Date date1, Date date2);
 
+	@Query("select m.rows * m.columns from measurement m where m.id = :measId")
+	Optional<Integer> findWellCount(long measId);
+
+	/*
+	 * Column registration
+	 * *******************
+	 *
+	 * Columns and channels are added to a measurement with a single statement, instead of
+	 * saving the whole measurement, so that concurrent registrations are never lost.
+	 * Measurements that already contain all of the given names are not updated (or locked) at all.
+	 */
+
+	@Transactional
+	@Modifying
+	@Query("update measurement set well_columns = array(select distinct c from unnest(coalesce(well_columns, '{}') || cast(:columns as text[])) c order by c)"
+			+ " where id = :measId and not coalesce(well_columns, '{}') @> cast(:columns as text[])")
+	int addWellColumns(long measId, String[] columns);
+
+	@Transactional
+	@Modifying
+	@Query("update measurement set subwell_columns = array(select distinct c from unnest(coalesce(subwell_columns, '{}') || cast(:columns as text[])) c order by c)"
+			+ " where id = :measId and not coalesce(subwell_columns, '{}') @> cast(:columns as text[])")
+	int addSubWellColumns(long measId, String[] columns);
+
+	/**
+	 * Unlike columns, channels keep the order in which they were added.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update measurement set image_channels = coalesce(image_channels, '{}')"
+			+ " || array(select c from unnest(cast(:channels as text[])) with ordinality u(c, i) where not c = any(coalesce(image_channels, '{}')) group by c order by min(i))"
+			+ " where id = :measId and not coalesce(image_channels, '{}') @> cast(:channels as text[])")
+	int addImageChannels(long measId, String[] channels);
+
 }
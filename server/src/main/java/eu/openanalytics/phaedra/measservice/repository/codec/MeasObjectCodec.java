@@ -0,0 +1,212 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes primitive arrays (byte[], int[], float[], double[]) as a small header
+ * followed by the raw little-endian values.
+ * <p>
+ * Layout:
+ * <pre>
+ * int    magic   "PMOC"
+ * int    type    (see TYPE_* constants)
+ * int    count   (number of elements)
+ * byte[] values
+ * </pre>
+ * Other objects are written using Java serialization. Objects that were written
+ * using Java serialization (including arrays stored before this codec existed)
+ * are recognized by their stream header and decoded as such.
+ */
+public class MeasObjectCodec {
+
+	public static final int MAGIC = 0x434F4D50;
+
+	public static final int TYPE_BYTE = 1;
+	public static final int TYPE_INT = 2;
+	public static final int TYPE_FLOAT = 3;
+	public static final int TYPE_DOUBLE = 4;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+	// The first two bytes of any Java serialization stream (ObjectStreamConstants.STREAM_MAGIC)
+	private static final int JAVA_STREAM_MAGIC_0 = 0xAC;
+	private static final int JAVA_STREAM_MAGIC_1 = 0xED;
+
+	public static byte[] encode(Object value) throws IOException {
+		if (value instanceof byte[] values) {
+			ByteBuffer buffer = allocate(TYPE_BYTE, values.length, Byte.BYTES);
+			buffer.put(values);
+			return buffer.array();
+		} else if (value instanceof int[] values) {
+			ByteBuffer buffer = allocate(TYPE_INT, values.length, Integer.BYTES);
+			buffer.asIntBuffer().put(values);
+			return buffer.array();
+		} else if (value instanceof float[] values) {
+			ByteBuffer buffer = allocate(TYPE_FLOAT, values.length, Float.BYTES);
+			buffer.asFloatBuffer().put(values);
+			return buffer.array();
+		} else if (value instanceof double[] values) {
+			ByteBuffer buffer = allocate(TYPE_DOUBLE, values.length, Double.BYTES);
+			buffer.asDoubleBuffer().put(values);
+			return buffer.array();
+		} else {
+			return serializeObject(value);
+		}
+	}
+
+	/**
+	 * Decode an object from the given stream. The stream is read until the end of the
+	 * object, but it is not closed.
+	 */
+	public static Object decode(InputStream input) throws IOException {
+		return decode(input, -1);
+	}
+
+	/**
+	 * Decode an object of the given encoded size (header included) from the given stream.
+	 * Before any array is allocated, its size is checked against the size of the object,
+	 * so that a corrupt header is reported as such.
+	 *
+	 * @param length The encoded size of the object, or -1 if it is not known.
+	 */
+	public static Object decode(InputStream input, long length) throws IOException {
+		PushbackInputStream pbInput = new PushbackInputStream(input, 2);
+		int b0 = pbInput.read();
+		int b1 = pbInput.read();
+		if (b1 < 0) throw new EOFException("Empty object stream");
+		pbInput.unread(new byte[] { (byte) b0, (byte) b1 });
+
+		if (b0 == JAVA_STREAM_MAGIC_0 && b1 == JAVA_STREAM_MAGIC_1) {
+			return deserializeObject(pbInput);
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(readFully(pbInput, HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt() != MAGIC) throw new IOException("Unrecognized object encoding");
+		int type = header.getInt();
+		int count = header.getInt();
+
+		long valuesSize = (long) count * getElementSize(type);
+		if (count < 0 || (length >= 0 && length - HEADER_SIZE != valuesSize)) {
+			throw new IOException(String.format("Corrupt object header: %d values of type %d do not match an object size of %d bytes", count, type, length));
+		}
+
+		switch (type) {
+		case TYPE_BYTE:
+			return readFully(pbInput, count);
+		case TYPE_INT:
+			int[] intValues = new int[count];
+			readValues(pbInput, count, Integer.BYTES, (buf, pos, len) -> buf.asIntBuffer().get(intValues, pos, len));
+			return intValues;
+		case TYPE_FLOAT:
+			float[] floatValues = new float[count];
+			readValues(pbInput, count, Float.BYTES, (buf, pos, len) -> buf.asFloatBuffer().get(floatValues, pos, len));
+			return floatValues;
+		case TYPE_DOUBLE:
+			double[] doubleValues = new double[count];
+			readValues(pbInput, count, Double.BYTES, (buf, pos, len) -> buf.asDoubleBuffer().get(doubleValues, pos, len));
+			return doubleValues;
+		default:
+			throw new IOException("Unsupported object type: " + type);
+		}
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private static int getElementSize(int type) throws IOException {
+		switch (type) {
+		case TYPE_BYTE: return Byte.BYTES;
+		case TYPE_INT: return Integer.BYTES;
+		case TYPE_FLOAT: return Float.BYTES;
+		case TYPE_DOUBLE: return Double.BYTES;
+		default: throw new IOException("Unsupported object type: " + type);
+		}
+	}
+
+	private static ByteBuffer allocate(int type, int count, int elementSize) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(type);
+		buffer.putInt(count);
+		return buffer;
+	}
+
+	private interface ChunkDecoder {
+		public void decode(ByteBuffer chunk, int position, int length);
+	}
+
+	/**
+	 * Read the values in chunks, copying each chunk into the target array.
+	 * This avoids buffering the complete payload before decoding it.
+	 */
+	private static void readValues(InputStream input, int count, int elementSize, ChunkDecoder decoder) throws IOException {
+		int elementsPerChunk = READ_CHUNK_SIZE / elementSize;
+		byte[] chunk = new byte[Math.min(count, elementsPerChunk) * elementSize];
+		ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+
+		int position = 0;
+		while (position < count) {
+			int len = Math.min(count - position, elementsPerChunk);
+			int byteLen = len * elementSize;
+			if (input.readNBytes(chunk, 0, byteLen) < byteLen) throw new EOFException("Unexpected end of object stream");
+			chunkBuffer.clear().limit(byteLen);
+			decoder.decode(chunkBuffer, position, len);
+			position += len;
+		}
+	}
+
+	private static byte[] readFully(InputStream input, int len) throws IOException {
+		byte[] bytes = input.readNBytes(len);
+		if (bytes.length < len) throw new EOFException("Unexpected end of object stream");
+		return bytes;
+	}
+
+	private static byte[] serializeObject(Object o) throws IOException {
+		try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+			ObjectOutputStream oos = new ObjectOutputStream(os);
+			oos.writeObject(o);
+			oos.flush();
+			return os.toByteArray();
+		}
+	}
+
+	private static Object deserializeObject(InputStream input) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(input);
+		try {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
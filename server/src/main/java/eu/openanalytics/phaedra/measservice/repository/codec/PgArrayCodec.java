@@ -0,0 +1,81 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes numeric arrays from the PostgreSQL binary array format, as returned by array_send().
+ * This avoids the boxed Double[] that java.sql.Array returns.
+ * <p>
+ * Layout (all values big-endian):
+ * <pre>
+ * int     ndim
+ * int     flags       (1 if the array contains nulls)
+ * int     elementOid
+ * int[]   dims        (ndim pairs of size and lower bound)
+ * then for each element:
+ * int     length      (-1 for null)
+ * byte[]  value
+ * </pre>
+ */
+public class PgArrayCodec {
+
+	public static final int OID_FLOAT4 = 700;
+	public static final int OID_FLOAT8 = 701;
+
+	/**
+	 * Decode a float4[] or float8[] into a float[]. Null elements are decoded as NaN.
+	 */
+	public static float[] decodeFloatArray(byte[] bytes) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int ndim = buffer.getInt();
+			buffer.getInt();
+			int elementOid = buffer.getInt();
+			if (elementOid != OID_FLOAT4 && elementOid != OID_FLOAT8) throw new IOException("Unsupported array element type: " + elementOid);
+			if (ndim == 0) return new float[0];
+
+			int count = 1;
+			for (int i = 0; i < ndim; i++) {
+				count *= buffer.getInt();
+				buffer.getInt();
+			}
+
+			float[] values = new float[count];
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getInt();
+				if (length == -1) {
+					values[i] = Float.NaN;
+				} else if (elementOid == OID_FLOAT4) {
+					values[i] = buffer.getFloat();
+				} else {
+					values[i] = (float) buffer.getDouble();
+				}
+			}
+			return values;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Incomplete binary array", e);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes tuples in the PostgreSQL binary COPY format, for use with "COPY ... FROM STDIN (FORMAT binary)".
+ * <p>
+ * Layout (all values big-endian):
+ * <pre>
+ * byte[11] signature   "PGCOPY\n\377\r\n\0"
+ * int      flags
+ * int      header extension length
+ * then for each tuple:
+ * short    field count
+ * int      field length (-1 for null), followed by the field value
+ * finally:
+ * short    -1
+ * </pre>
+ * Values are written to the underlying stream as they are added, so the full payload is never held in memory.
+ */
+public class PgBinaryCopyWriter {
+
+	private static final byte[] SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final DataOutputStream output;
+
+	public PgBinaryCopyWriter(OutputStream output) {
+		this.output = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+	}
+
+	public void writeHeader() throws IOException {
+		output.write(SIGNATURE);
+		output.writeInt(0);
+		output.writeInt(0);
+	}
+
+	public void startTuple(int fieldCount) throws IOException {
+		output.writeShort(fieldCount);
+	}
+
+	public void writeLong(long value) throws IOException {
+		output.writeInt(Long.BYTES);
+		output.writeLong(value);
+	}
+
+	public void writeText(String value) throws IOException {
+		if (value == null) {
+			writeNull();
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Write a float[] as a one-dimensional array, in the binary array format (see {@link PgArrayCodec}).
+	 *
+	 * @param elementOid The element type of the target column: {@link PgArrayCodec#OID_FLOAT4} or {@link PgArrayCodec#OID_FLOAT8}.
+	 */
+	public void writeFloatArray(float[] values, int elementOid) throws IOException {
+		if (values == null) {
+			writeNull();
+			return;
+		}
+
+		boolean float4 = (elementOid == PgArrayCodec.OID_FLOAT4);
+		int elementSize = float4 ? Float.BYTES : Double.BYTES;
+
+		if (values.length == 0) {
+			output.writeInt(12);
+			output.writeInt(0);
+			output.writeInt(0);
+			output.writeInt(elementOid);
+			return;
+		}
+
+		output.writeInt(20 + values.length * (4 + elementSize));
+		output.writeInt(1);
+		output.writeInt(0);
+		output.writeInt(elementOid);
+		output.writeInt(values.length);
+		output.writeInt(1);
+		for (float value: values) {
+			output.writeInt(elementSize);
+			if (float4) output.writeFloat(value);
+			else output.writeDouble(value);
+		}
+	}
+
+	public void writeNull() throws IOException {
+		output.writeInt(-1);
+	}
+
+	/**
+	 * Write the end-of-data marker and flush all buffered data to the underlying stream.
+	 */
+	public void writeTrailer() throws IOException {
+		output.writeShort(-1);
+		output.flush();
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
+
+@Component
+public class ImageManifestDAO {
+
+	private static final String COLUMNS = "meas_id, well_nr, channel, byte_size, content_hash, width, height, components, bit_depth, resolution_levels, tile_width, tile_height, created_on";
+
+	@Value("${meas-service.db.schema:measservice}")
+	private String schemaName;
+
+	@Autowired
+	private DataSource dataSource;
+
+	/**
+	 * Save a manifest, replacing the existing manifest of the same image (if any).
+	 */
+	public void save(ImageManifest manifest) {
+		String sql = String.format("insert into %s.image_manifest (%s) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+				+ " on conflict (meas_id, well_nr, channel) do update set byte_size = excluded.byte_size, content_hash = excluded.content_hash,"
+				+ " width = excluded.width, height = excluded.height, components = excluded.components, bit_depth = excluded.bit_depth,"
+				+ " resolution_levels = excluded.resolution_levels, tile_width = excluded.tile_width, tile_height = excluded.tile_height,"
+				+ " created_on = excluded.created_on", schemaName, COLUMNS);
+		execute(sql, stmt -> {
+			stmt.setLong(1, manifest.getMeasId());
+			stmt.setInt(2, manifest.getWellNr());
+			stmt.setString(3, manifest.getChannel());
+			stmt.setLong(4, manifest.getByteSize());
+			stmt.setString(5, manifest.getContentHash());
+			setInteger(stmt, 6, manifest.getWidth());
+			setInteger(stmt, 7, manifest.getHeight());
+			setInteger(stmt, 8, manifest.getComponents());
+			setInteger(stmt, 9, manifest.getBitDepth());
+			setInteger(stmt, 10, manifest.getResolutionLevels());
+			setInteger(stmt, 11, manifest.getTileWidth());
+			setInteger(stmt, 12, manifest.getTileHeight());
+			stmt.setTimestamp(13, new Timestamp(manifest.getCreatedOn().getTime()));
+		});
+	}
+
+	public Optional<ImageManifest> find(long measId, int wellNr, String channel) {
+		String sql = String.format("select %s from %s.image_manifest where meas_id = ? and well_nr = ? and channel = ?", COLUMNS, schemaName);
+		return select(sql, stmt -> {
+			stmt.setLong(1, measId);
+			stmt.setInt(2, wellNr);
+			stmt.setString(3, channel);
+		}, rs -> (rs.next()) ? Optional.of(getManifest(rs)) : Optional.empty());
+	}
+
+	public List<ImageManifest> findByWell(long measId, int wellNr) {
+		String sql = String.format("select %s from %s.image_manifest where meas_id = ? and well_nr = ? order by channel", COLUMNS, schemaName);
+		return select(sql, stmt -> {
+			stmt.setLong(1, measId);
+			stmt.setInt(2, wellNr);
+		}, this::getManifests);
+	}
+
+	public List<ImageManifest> findByMeas(long measId) {
+		String sql = String.format("select %s from %s.image_manifest where meas_id = ? order by well_nr, channel", COLUMNS, schemaName);
+		return select(sql, stmt -> stmt.setLong(1, measId), this::getManifests);
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private List<ImageManifest> getManifests(ResultSet rs) throws SQLException {
+		List<ImageManifest> manifests = new ArrayList<>();
+		while (rs.next()) manifests.add(getManifest(rs));
+		return manifests;
+	}
+
+	private ImageManifest getManifest(ResultSet rs) throws SQLException {
+		ImageManifest manifest = new ImageManifest();
+		manifest.setMeasId(rs.getLong("meas_id"));
+		manifest.setWellNr(rs.getInt("well_nr"));
+		manifest.setChannel(rs.getString("channel"));
+		manifest.setByteSize(rs.getLong("byte_size"));
+		manifest.setContentHash(rs.getString("content_hash"));
+		manifest.setWidth(rs.getObject("width", Integer.class));
+		manifest.setHeight(rs.getObject("height", Integer.class));
+		manifest.setComponents(rs.getObject("components", Integer.class));
+		manifest.setBitDepth(rs.getObject("bit_depth", Integer.class));
+		manifest.setResolutionLevels(rs.getObject("resolution_levels", Integer.class));
+		manifest.setTileWidth(rs.getObject("tile_width", Integer.class));
+		manifest.setTileHeight(rs.getObject("tile_height", Integer.class));
+		manifest.setCreatedOn(rs.getTimestamp("created_on"));
+		return manifest;
+	}
+
+	private static void setInteger(PreparedStatement stmt, int index, Integer value) throws SQLException {
+		if (value == null) stmt.setNull(index, Types.INTEGER);
+		else stmt.setInt(index, value);
+	}
+
+	private <T> T select(String sql, StatementPreparer statementPreparer, ResultProcessor<T> resultProcessor) {
+		try (Connection conn = getConnection()) {
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				statementPreparer.prepare(stmt);
+				try (ResultSet rs = stmt.executeQuery()) {
+					return resultProcessor.process(rs);
+				}
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("Failed to execute query: " + sql, e);
+		}
+	}
+
+	private void execute(String sql, StatementPreparer statementPreparer) {
+		try (Connection conn = getConnection()) {
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				statementPreparer.prepare(stmt);
+				stmt.execute();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			throw new RuntimeException("Failed to execute query: " + sql, e);
+		}
+	}
+
+	private interface StatementPreparer {
+		public void prepare(PreparedStatement stmt) throws SQLException;
+	}
+
+	private interface ResultProcessor<T> {
+		public T process(ResultSet rs) throws SQLException;
+	}
+
+	private Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.dao;
+
+import static eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreDAO.makeS3Key;
+import static eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreDAO.splitArray;
+import static eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreDAO.unmakeS3Key;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.phaedra.measservice.repository.codec.MeasObjectCodec;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * A non-blocking counterpart of {@link MeasObjectStoreDAO}, for bulk operations.
+ * <p>
+ * Requests are sent using an NIO-based client, so a request in flight does not occupy a thread.
+ * The number of concurrent requests is limited by the number of connections of the client;
+ * requests beyond that are queued by the client.
+ * <p>
+ * The returned futures fail with an IOException (wrapped in a CompletionException) if a request fails.
+ * Objects are stored using the same keys and encoding as {@link MeasObjectStoreDAO}.
+ */
+@Component
+@ConditionalOnProperty(name = "meas-service.s3.async-client.enabled", havingValue = "true")
+public class MeasObjectStoreAsyncDAO {
+
+	@Autowired
+	private S3AsyncClient s3Client;
+
+	@Value("${meas-service.s3.upload-max-tries:5}")
+	private int uploadMaxTries;
+
+	@Value("${meas-service.s3.upload-retry-delay:1000}")
+	private int uploadRetryDelayMs;
+
+	@Value("${meas-service.s3.multipart-threshold:16777216}")
+	private long multipartThreshold;
+
+	@Value("${meas-service.s3.multipart-part-size:8388608}")
+	private int multipartPartSize;
+
+	@Value("${meas-service.s3.bucket-name}")
+	private String bucketName;
+
+	public CompletableFuture<String[]> listMeasObjects(long measId, String prefix) {
+		ListObjectsV2Request request = ListObjectsV2Request.builder().bucket(bucketName).prefix(makeS3Key(measId, prefix)).build();
+		List<String> keys = new ArrayList<>();
+		return s3Client.listObjectsV2Paginator(request).contents().subscribe(o -> keys.add(unmakeS3Key(o.key())))
+				.handle((result, e) -> {
+					if (e != null) throw failure(e, String.format("Failed to list objects in S3 for meas %d and prefix %s", measId, prefix));
+					return keys.toArray(new String[0]);
+				});
+	}
+
+	/**
+	 * List the first objects matching the given prefix.
+	 *
+	 * @param maxKeys The maximum number of objects to return (at most 1000).
+	 */
+	public CompletableFuture<String[]> listMeasObjects(long measId, String prefix, int maxKeys) {
+		ListObjectsV2Request request = ListObjectsV2Request.builder().bucket(bucketName).prefix(makeS3Key(measId, prefix)).maxKeys(maxKeys).build();
+		return s3Client.listObjectsV2(request).handle((response, e) -> {
+			if (e != null) throw failure(e, String.format("Failed to list objects in S3 for meas %d and prefix %s", measId, prefix));
+			return response.contents().stream().map(o -> unmakeS3Key(o.key())).toArray(i -> new String[i]);
+		});
+	}
+
+	/**
+	 * @return The size of the object, or an empty OptionalLong if the object does not exist.
+	 */
+	public CompletableFuture<OptionalLong> getMeasObjectSizeIfPresent(long measId, String key) {
+		HeadObjectRequest request = HeadObjectRequest.builder().bucket(bucketName).key(makeS3Key(measId, key)).build();
+		return s3Client.headObject(request).handle((response, e) -> {
+			if (e == null) return OptionalLong.of(response.contentLength());
+			if (isNotFound(e)) return OptionalLong.empty();
+			throw failure(e, String.format("Failed to retrieve object from S3 for meas %d and key %s", measId, key));
+		});
+	}
+
+	/**
+	 * @return The ETag (or last modified date) of the object, or an empty Optional if the object does not exist.
+	 * @see MeasObjectStoreDAO#getMeasObjectVersionIfPresent(long, String)
+	 */
+	public CompletableFuture<Optional<String>> getMeasObjectVersionIfPresent(long measId, String key) {
+		HeadObjectRequest request = HeadObjectRequest.builder().bucket(bucketName).key(makeS3Key(measId, key)).build();
+		return s3Client.headObject(request).handle((response, e) -> {
+			if (e == null) return Optional.of(response.eTag() != null ? response.eTag() : String.valueOf(response.lastModified().toEpochMilli()));
+			if (isNotFound(e)) return Optional.empty();
+			throw failure(e, String.format("Failed to retrieve object from S3 for meas %d and key %s", measId, key));
+		});
+	}
+
+	public CompletableFuture<Object> getMeasObject(long measId, String key) {
+		return getMeasObjectIfPresent(measId, key).thenApply(o -> o.orElseThrow(() -> new CompletionException(objectNotFound(measId, key))));
+	}
+
+	/**
+	 * @return The object, or an empty Optional if the object does not exist.
+	 */
+	public CompletableFuture<Optional<Object>> getMeasObjectIfPresent(long measId, String key) {
+		return getMeasObjectRawIfPresent(measId, key).thenApply(bytes -> bytes.map(b -> {
+			try {
+				return MeasObjectCodec.decode(new ByteArrayInputStream(b), b.length);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}));
+	}
+
+	public CompletableFuture<byte[]> getMeasObjectRaw(long measId, String key) {
+		return getMeasObjectRawIfPresent(measId, key).thenApply(o -> o.orElseThrow(() -> new CompletionException(objectNotFound(measId, key))));
+	}
+
+	/**
+	 * @return The bytes, or an empty Optional if the object does not exist.
+	 */
+	public CompletableFuture<Optional<byte[]>> getMeasObjectRawIfPresent(long measId, String key) {
+		GetObjectRequest request = GetObjectRequest.builder().bucket(bucketName).key(makeS3Key(measId, key)).build();
+		return s3Client.getObject(request, AsyncResponseTransformer.toBytes()).handle((response, e) -> {
+			if (e == null) return Optional.of(response.asByteArrayUnsafe());
+			if (isNotFound(e)) return Optional.empty();
+			throw failure(e, String.format("Failed to retrieve object from S3 for meas %d and key %s", measId, key));
+		});
+	}
+
+	public CompletableFuture<Void> putMeasObject(long measId, String key, Object value) {
+		try {
+			return putMeasObjectRaw(measId, key, MeasObjectCodec.encode(value));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	public CompletableFuture<Void> putMeasObjectRaw(long measId, String key, byte[] value) {
+		String s3key = makeS3Key(measId, key);
+		if (value.length <= multipartThreshold) {
+			PutObjectRequest request = PutObjectRequest.builder().bucket(bucketName).key(s3key).contentLength((long) value.length).build();
+			return retryUpload(measId, key, () -> s3Client.putObject(request, AsyncRequestBody.fromBytes(value))).thenApply(r -> null);
+		} else {
+			return putMeasObjectMultipart(measId, key, s3key, value);
+		}
+	}
+
+	public CompletableFuture<Void> deleteMeasObjects(long measId, String[] keys) {
+		String[] s3Keys = Arrays.stream(keys).map(k -> makeS3Key(measId, k)).toArray(i -> new String[i]);
+		// Split the keys into groups of 1000 (the max of DeleteObjectsRequest).
+		List<CompletableFuture<Void>> deletions = splitArray(s3Keys, 1000).stream().map(ks -> {
+			List<ObjectIdentifier> ids = Arrays.stream(ks).map(k -> ObjectIdentifier.builder().key(k).build()).collect(Collectors.toList());
+			DeleteObjectsRequest request = DeleteObjectsRequest.builder().bucket(bucketName).delete(Delete.builder().objects(ids).build()).build();
+			return s3Client.deleteObjects(request).thenAccept(response -> {
+				// Unlike the synchronous client, failures of individual keys are reported in the response.
+				if (response.hasErrors() && !response.errors().isEmpty()) {
+					throw new CompletionException(new IOException(String.format("Failed to delete %d objects from S3 for meas %d: %s",
+							response.errors().size(), measId, response.errors().get(0).message())));
+				}
+			});
+		}).collect(Collectors.toList());
+
+		return CompletableFuture.allOf(deletions.toArray(new CompletableFuture[0])).handle((result, e) -> {
+			if (e != null) throw failure(e, String.format("Failed to delete objects from S3 for meas %d", measId));
+			return null;
+		});
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private CompletableFuture<Void> putMeasObjectMultipart(long measId, String key, String s3key, byte[] value) {
+		CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder().bucket(bucketName).key(s3key).build();
+		return retryUpload(measId, key, () -> s3Client.createMultipartUpload(createRequest)).thenCompose(created -> {
+			String uploadId = created.uploadId();
+
+			// The parts are uploaded concurrently, so the upload takes about as long as the slowest part.
+			List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+			int partNumber = 1;
+			for (int offset = 0; offset < value.length; offset += multipartPartSize) {
+				int partOffset = offset;
+				int partLength = Math.min(multipartPartSize, value.length - offset);
+				int currentPartNumber = partNumber++;
+				UploadPartRequest partRequest = UploadPartRequest.builder()
+						.bucket(bucketName)
+						.key(s3key)
+						.uploadId(uploadId)
+						.partNumber(currentPartNumber)
+						.contentLength((long) partLength)
+						.build();
+				parts.add(retryUpload(measId, key, () -> s3Client.uploadPart(partRequest, AsyncRequestBody.fromBytes(Arrays.copyOfRange(value, partOffset, partOffset + partLength))))
+						.thenApply(r -> CompletedPart.builder().partNumber(currentPartNumber).eTag(r.eTag()).build()));
+			}
+
+			return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+					.thenCompose(v -> retryUpload(measId, key, () -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+							.bucket(bucketName)
+							.key(s3key)
+							.uploadId(uploadId)
+							.multipartUpload(CompletedMultipartUpload.builder().parts(parts.stream().map(CompletableFuture::join).collect(Collectors.toList())).build())
+							.build())))
+					.<Void>thenApply(r -> null)
+					.exceptionallyCompose(e -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucketName).key(s3key).uploadId(uploadId).build())
+							.handle((r, abortException) -> {
+								Throwable cause = unwrap(e);
+								if (abortException != null) cause.addSuppressed(unwrap(abortException));
+								throw new CompletionException(cause);
+							}));
+		});
+	}
+
+	/**
+	 * Retry an upload call, to deal with errors such as 400 (Request Timeout) which are not retried by the S3 client.
+	 * Note that the call must create a new request body on each invocation.
+	 * Retries are scheduled after a delay, without holding a thread in the meantime.
+	 */
+	private <T> CompletableFuture<T> retryUpload(long measId, String key, Supplier<CompletableFuture<T>> call) {
+		return retryUpload(measId, key, call, 1);
+	}
+
+	private <T> CompletableFuture<T> retryUpload(long measId, String key, Supplier<CompletableFuture<T>> call, int currentTry) {
+		return call.get().handle((result, e) -> {
+			if (e == null) return CompletableFuture.completedFuture(result);
+			if (currentTry >= uploadMaxTries) {
+				return CompletableFuture.<T>failedFuture(new IOException(
+						String.format("Failed to upload data to S3 for meas %d and key %s", measId, key), unwrap(e)));
+			}
+			return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(Math.max(0, uploadRetryDelayMs), TimeUnit.MILLISECONDS))
+					.thenCompose(v -> retryUpload(measId, key, call, currentTry + 1));
+		}).thenCompose(Function.identity());
+	}
+
+	private boolean isNotFound(Throwable e) {
+		Throwable cause = unwrap(e);
+		return cause instanceof NoSuchKeyException || (cause instanceof S3Exception s3e && s3e.statusCode() == 404);
+	}
+
+	private CompletionException failure(Throwable e, String message) {
+		Throwable cause = unwrap(e);
+		if (cause instanceof IOException) return new CompletionException(cause);
+		return new CompletionException(new IOException(message, cause));
+	}
+
+	private Throwable unwrap(Throwable e) {
+		return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+	}
+
+	private IOException objectNotFound(long measId, String key) {
+		return new IOException(String.format("No object found in S3 for meas %d and key %s", measId, key));
+	}
+}
@@ -21,17 +21,19 @@
 package eu.openanalytics.phaedra.measservice.repository.dao;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
@@ -41,25 +43,34 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.StreamUtils;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.config.IOExecutors.IOExecutor;
+import eu.openanalytics.phaedra.measservice.repository.codec.MeasObjectCodec;
 
 @Component
 public class MeasObjectStoreDAO {
 
 	@Autowired
 	private AmazonS3 s3Client;
-	
-	private TransferManager transferMgr;
+
+	@Autowired
+	private IOExecutors ioExecutors;
 	
 	@Value("${meas-service.s3.upload-max-tries:5}")
 	private int uploadMaxTries;
@@ -67,22 +78,34 @@ public class MeasObjectStoreDAO {
 	@Value("${meas-service.s3.upload-retry-delay:1000}")
 	private int uploadRetryDelayMs;
 	
+	@Value("${meas-service.s3.multipart-threshold:16777216}")
+	private long multipartThreshold;
+
+	@Value("${meas-service.s3.multipart-part-size:8388608}")
+	private int multipartPartSize;
+
+	@Value("${meas-service.s3.multipart-concurrency:4}")
+	private int multipartConcurrency;
+	
 	@Value("${meas-service.s3.bucket-name}")
 	private String bucketName;
 	
 	@Value("${meas-service.s3.enable-sse:false}")
 	private boolean enableSSE;
+
+	@Value("${meas-service.s3.delete-concurrency:4}")
+	private int deleteConcurrency;
+
+	private IOExecutor deleteExecutor;
+	private IOExecutor multipartExecutor;
 	
 	@PostConstruct
 	public void init() {
+		deleteExecutor = ioExecutors.getExecutor("object-delete", deleteConcurrency);
+		multipartExecutor = ioExecutors.getExecutor("object-upload-part", multipartConcurrency);
 		if (!s3Client.doesBucketExistV2(bucketName)) {
 			s3Client.createBucket(bucketName);
 		}
-		
-		transferMgr = TransferManagerBuilder
-				.standard()
-				.withS3Client(s3Client)
-				.build();
 	}
 	
 	public String[] listMeasObjects(long measId, String prefix) throws IOException {
@@ -104,75 +127,131 @@ public class MeasObjectStoreDAO {
 		return objects.stream().map(o -> unmakeS3Key(o.getKey())).toArray(i -> new String[i]);
 	}
 	
+	/**
+	 * List the first objects matching the given prefix.
+	 *
+	 * @param maxKeys The maximum number of objects to return (at most 1000).
+	 */
+	public String[] listMeasObjects(long measId, String prefix, int maxKeys) throws IOException {
+		ListObjectsV2Request req = new ListObjectsV2Request();
+		req.setBucketName(bucketName);
+		req.setPrefix(makeS3Key(measId, prefix));
+		req.setMaxKeys(maxKeys);
+
+		ListObjectsV2Result results = s3Client.listObjectsV2(req);
+		return results.getObjectSummaries().stream().map(o -> unmakeS3Key(o.getKey())).toArray(i -> new String[i]);
+	}
+	
 	public boolean measObjectExists(long measId, String key) throws IOException {
 		String s3key = makeS3Key(measId, key);
 		return s3Client.doesObjectExist(bucketName, s3key);
 	}
 	
 	public long getMeasObjectSize(long measId, String key) throws IOException {
+		return getMeasObjectSizeIfPresent(measId, key).orElseThrow(() -> objectNotFound(measId, key));
+	}
+
+	/**
+	 * Get the size of an object, using a single request.
+	 *
+	 * @return The size of the object, or an empty OptionalLong if the object does not exist.
+	 */
+	public OptionalLong getMeasObjectSizeIfPresent(long measId, String key) throws IOException {
 		String s3key = makeS3Key(measId, key);
-		return s3Client.getObjectMetadata(bucketName, s3key).getContentLength();
+		try {
+			return OptionalLong.of(s3Client.getObjectMetadata(bucketName, s3key).getContentLength());
+		} catch (AmazonS3Exception e) {
+			if (isNotFound(e)) return OptionalLong.empty();
+			throw new IOException(e);
+		}
 	}
-	
+
+	/**
+	 * Get an identifier of the content of an object, which changes whenever the object is replaced.
+	 * This is the ETag of the object, or its last modified date if the object store does not provide one.
+	 *
+	 * @return The identifier, or an empty Optional if the object does not exist.
+	 */
+	public Optional<String> getMeasObjectVersionIfPresent(long measId, String key) throws IOException {
+		String s3key = makeS3Key(measId, key);
+		try {
+			ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, s3key);
+			if (metadata.getETag() != null) return Optional.of(metadata.getETag());
+			return Optional.of(String.valueOf(metadata.getLastModified().getTime()));
+		} catch (AmazonS3Exception e) {
+			if (isNotFound(e)) return Optional.empty();
+			throw new IOException(e);
+		}
+	}
+
 	public Object getMeasObject(long measId, String key) throws IOException {
-		byte[] bytes = getMeasObjectRaw(measId, key);
-		return deserializeObjectFromStream(new ByteArrayInputStream(bytes));
+		return getMeasObjectIfPresent(measId, key).orElseThrow(() -> objectNotFound(measId, key));
+	}
+
+	/**
+	 * Get an object, using a single request.
+	 *
+	 * @return The object, or an empty Optional if the object does not exist.
+	 */
+	public Optional<Object> getMeasObjectIfPresent(long measId, String key) throws IOException {
+		return getIfPresent(makeGetRequest(measId, key, -1, -1), MeasObjectCodec::decode);
 	}
 
 	public byte[] getMeasObjectRaw(long measId, String key) throws IOException {
 		return getMeasObjectRaw(measId, key, -1, -1);
 	}
-	
+
 	public byte[] getMeasObjectRaw(long measId, String key, long offset, int len) throws IOException {
-		String s3key = makeS3Key(measId, key);
-		GetObjectRequest request = new GetObjectRequest(bucketName, s3key);
-		if (len > 1) {
-			request.setRange(offset, offset + len - 1);
-		}
-		try (
-			S3Object object = s3Client.getObject(request);
-			S3ObjectInputStream input = object.getObjectContent();
-		) {
-			return StreamUtils.copyToByteArray(input);
-		} catch (AmazonS3Exception e) {
-			throw new IOException(e);
-		}
+		return getMeasObjectRawIfPresent(measId, key, offset, len).orElseThrow(() -> objectNotFound(measId, key));
+	}
+
+	public Optional<byte[]> getMeasObjectRawIfPresent(long measId, String key) throws IOException {
+		return getMeasObjectRawIfPresent(measId, key, -1, -1);
+	}
+
+	/**
+	 * Get (a part of) the raw bytes of an object, using a single request.
+	 *
+	 * @return The bytes, or an empty Optional if the object does not exist.
+	 */
+	public Optional<byte[]> getMeasObjectRawIfPresent(long measId, String key, long offset, int len) throws IOException {
+		return getIfPresent(makeGetRequest(measId, key, offset, len), (input, length) -> StreamUtils.copyToByteArray(input));
 	}
 	
+	/**
+	 * Read an object as a stream, without loading it into memory first.
+	 * The stream is closed after the reader returns.
+	 *
+	 * @return The value returned by the reader, or an empty Optional if the object does not exist.
+	 */
+	public <T> Optional<T> readMeasObjectIfPresent(long measId, String key, ContentReader<T> reader) throws IOException {
+		return getIfPresent(makeGetRequest(measId, key, -1, -1), (input, length) -> reader.read(input));
+	}
+
+	/**
+	 * Read a part of an object as a stream, without loading it into memory first.
+	 * The stream is closed after the reader returns.
+	 *
+	 * @param len The length of the part to read, or -1 to read up to the end of the object.
+	 * @return The value returned by the reader, or an empty Optional if the object does not exist.
+	 */
+	public <T> Optional<T> readMeasObjectIfPresent(long measId, String key, long offset, long len, ContentReader<T> reader) throws IOException {
+		return getIfPresent(makeGetRequest(measId, key, offset, len), (input, length) -> reader.read(input));
+	}
+
 	public void putMeasObject(long measId, String key, Object value) throws IOException {
-		putMeasObjectRaw(measId, key, serializeObject(value));
+		putMeasObjectRaw(measId, key, MeasObjectCodec.encode(value));
 	}
 	
 	public void putMeasObjectRaw(long measId, String key, byte[] value) throws IOException {
 		String s3key = makeS3Key(measId, key);
-		
-		File tempFile = File.createTempFile("meas-data", null);
-		try (OutputStream out = new FileOutputStream(tempFile)) {
-			StreamUtils.copy(value, out);
-		}
-		
-		// By using a file instead of a stream, TransferManager can optimize the upload: multipart parallel uploads with auto-retrying.
-		// Still, additional retrying is applied here to deal with 400 (Request Timeout) errors which are not retried by the TransferManager.
-		Exception caughtException = null;
-		try {
-			int currentTry = 1;
-			while (currentTry <= uploadMaxTries) {
-				try {
-					Upload upload = transferMgr.upload(bucketName, s3key, tempFile);
-					upload.waitForCompletion();
-					return;
-				} catch (Exception e) {
-					caughtException = e;
-					if (uploadRetryDelayMs > 0) {
-						try { Thread.sleep(uploadRetryDelayMs); } catch (InterruptedException ie) {}
-					}
-					currentTry++;
-				}
-			}
-		} finally {
-			tempFile.delete();
+		if (value.length <= multipartThreshold) {
+			// Most objects are small: upload them straight from memory in a single request.
+			retryUpload(measId, key, () -> s3Client.putObject(
+					new PutObjectRequest(bucketName, s3key, new ByteArrayInputStream(value), makeObjectMetadata(value.length))));
+		} else {
+			putMeasObjectMultipart(measId, key, s3key, value);
 		}
-		throw new IOException(String.format("Failed to upload data to S3 for meas %d and key %s", measId, key), caughtException);		
 	}
 
 	public void deleteMeasObject(long measId, String key) throws IOException {
@@ -184,10 +263,19 @@ public class MeasObjectStoreDAO {
 		String[] s3Keys = Arrays.stream(keys).map(k -> makeS3Key(measId, k)).toArray(i -> new String[i]);
 		// Split the keys into groups of 1000 (the max of DeleteObjectsRequest).
 		List<String[]> keySets = splitArray(s3Keys, 1000);
-		keySets.stream().parallel().forEach(ks -> {
-			DeleteObjectsRequest req = new DeleteObjectsRequest(bucketName).withKeys(ks);
-			s3Client.deleteObjects(req);
-		});
+		List<Future<?>> deletions = keySets.stream()
+				.map(ks -> deleteExecutor.submit(() -> s3Client.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(ks))))
+				.collect(Collectors.toList());
+		try {
+			for (Future<?> deletion: deletions) deletion.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while deleting objects from S3 for meas %d", measId), e);
+		} catch (ExecutionException e) {
+			throw new IOException(String.format("Failed to delete objects from S3 for meas %d", measId), e.getCause());
+		} finally {
+			deletions.forEach(d -> d.cancel(true));
+		}
 	}
 
 	/**
@@ -195,7 +283,160 @@ public class MeasObjectStoreDAO {
 	 * **********
 	 */
 	
-	private String makeS3Key(long measId, String objectKey) {
+	/**
+	 * Upload the parts of an object in parallel. The calling thread uploads parts as well, and the parts
+	 * that are still left are picked up by up to (multipartConcurrency - 1) tasks on the IOExecutors pool.
+	 * Because the caller never waits for a task that has not started yet, this cannot deadlock when it is
+	 * called from a pool thread itself.
+	 */
+	private void putMeasObjectMultipart(long measId, String key, String s3key, byte[] value) throws IOException {
+		InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucketName, s3key, makeObjectMetadata(value.length));
+		String uploadId = retryUpload(measId, key, () -> s3Client.initiateMultipartUpload(initRequest).getUploadId());
+
+		int partCount = (int) ((value.length + (long) multipartPartSize - 1) / multipartPartSize);
+		PartETag[] partETags = new PartETag[partCount];
+		AtomicInteger nextPart = new AtomicInteger();
+		CountDownLatch partsDone = new CountDownLatch(partCount);
+		AtomicReference<Exception> partFailure = new AtomicReference<>();
+
+		Runnable partUploader = () -> {
+			int part;
+			while ((part = nextPart.getAndIncrement()) < partCount) {
+				try {
+					// Once a part has failed, the remaining parts are skipped.
+					if (partFailure.get() == null) partETags[part] = uploadPart(measId, key, s3key, uploadId, value, part);
+				} catch (Exception e) {
+					partFailure.compareAndSet(null, e);
+				} finally {
+					partsDone.countDown();
+				}
+			}
+		};
+
+		List<Future<Void>> helpers = new ArrayList<>();
+		try {
+			for (int i = 1; i < Math.min(multipartConcurrency, partCount); i++) {
+				helpers.add(multipartExecutor.submit(() -> { partUploader.run(); return null; }));
+			}
+			partUploader.run();
+			partsDone.await();
+
+			Exception failure = partFailure.get();
+			if (failure instanceof IOException) throw (IOException) failure;
+			if (failure != null) throw new IOException(String.format("Failed to upload data to S3 for meas %d and key %s", measId, key), failure);
+
+			retryUpload(measId, key, () -> s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, s3key, uploadId, Arrays.asList(partETags))));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			partFailure.compareAndSet(null, e);
+			abortMultipartUpload(s3key, uploadId, e);
+			throw new IOException(String.format("Interrupted while uploading data to S3 for meas %d and key %s", measId, key), e);
+		} catch (IOException | RuntimeException e) {
+			abortMultipartUpload(s3key, uploadId, e);
+			throw e;
+		} finally {
+			// Helpers that have not started yet have nothing left to do.
+			helpers.forEach(h -> h.cancel(false));
+		}
+	}
+
+	private PartETag uploadPart(long measId, String key, String s3key, String uploadId, byte[] value, int part) throws IOException {
+		int partOffset = part * multipartPartSize;
+		int partLength = Math.min(multipartPartSize, value.length - partOffset);
+		return retryUpload(measId, key, () -> s3Client.uploadPart(new UploadPartRequest()
+				.withBucketName(bucketName)
+				.withKey(s3key)
+				.withUploadId(uploadId)
+				.withPartNumber(part + 1)
+				.withPartSize(partLength)
+				.withInputStream(new ByteArrayInputStream(value, partOffset, partLength))).getPartETag());
+	}
+
+	private void abortMultipartUpload(String s3key, String uploadId, Exception cause) {
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, s3key, uploadId));
+		} catch (RuntimeException abortException) {
+			cause.addSuppressed(abortException);
+		}
+	}
+
+	private ObjectMetadata makeObjectMetadata(long contentLength) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(contentLength);
+		return metadata;
+	}
+
+	private interface UploadCall<T> {
+		public T call();
+	}
+
+	/**
+	 * Retry an upload call, to deal with errors such as 400 (Request Timeout) which are not retried by the S3 client.
+	 * Note that the call must create a new request (with a new input stream) on each invocation.
+	 */
+	private <T> T retryUpload(long measId, String key, UploadCall<T> call) throws IOException {
+		Exception caughtException = null;
+		int currentTry = 1;
+		while (currentTry <= uploadMaxTries) {
+			try {
+				return call.call();
+			} catch (Exception e) {
+				caughtException = e;
+				if (uploadRetryDelayMs > 0 && currentTry < uploadMaxTries) {
+					try {
+						Thread.sleep(uploadRetryDelayMs);
+					} catch (InterruptedException ie) {
+						// Give up, and leave the interrupt to the caller.
+						Thread.currentThread().interrupt();
+						ie.addSuppressed(e);
+						throw new IOException(String.format("Interrupted while uploading data to S3 for meas %d and key %s", measId, key), ie);
+					}
+				}
+				currentTry++;
+			}
+		}
+		throw new IOException(String.format("Failed to upload data to S3 for meas %d and key %s", measId, key), caughtException);
+	}
+
+	public interface ContentReader<T> {
+		public T read(InputStream input) throws IOException;
+	}
+
+	private interface SizedContentReader<T> {
+		public T read(InputStream input, long length) throws IOException;
+	}
+
+	private <T> Optional<T> getIfPresent(GetObjectRequest request, SizedContentReader<T> reader) throws IOException {
+		try (
+			S3Object object = s3Client.getObject(request);
+			S3ObjectInputStream input = object.getObjectContent();
+		) {
+			return Optional.of(reader.read(input, object.getObjectMetadata().getContentLength()));
+		} catch (AmazonS3Exception e) {
+			if (isNotFound(e)) return Optional.empty();
+			throw new IOException(e);
+		}
+	}
+
+	private GetObjectRequest makeGetRequest(long measId, String key, long offset, long len) {
+		GetObjectRequest request = new GetObjectRequest(bucketName, makeS3Key(measId, key));
+		if (len > 0) {
+			request.setRange(offset, offset + len - 1);
+		} else if (offset > 0) {
+			request.setRange(offset);
+		}
+		return request;
+	}
+
+	private boolean isNotFound(AmazonS3Exception e) {
+		return e.getStatusCode() == 404 || "NoSuchKey".equals(e.getErrorCode());
+	}
+
+	private IOException objectNotFound(long measId, String key) {
+		return new IOException(String.format("No object found in S3 for meas %d and key %s", measId, key));
+	}
+
+	static String makeS3Key(long measId, String objectKey) {
 		if (objectKey == null) throw new IllegalArgumentException("Null object key specified");
 		StringBuilder sb = new StringBuilder();
 		sb.append(reverse(measId));
@@ -204,40 +445,18 @@ public class MeasObjectStoreDAO {
 		return sb.toString();
 	}
 	
-	private String unmakeS3Key(String s3Key) {
+	static String unmakeS3Key(String s3Key) {
 		return s3Key.substring(s3Key.indexOf('/') + 1);
 	}
 	
-	private String reverse(long measId) {
+	private static String reverse(long measId) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(measId);
 		sb.reverse();
 		return sb.toString();
 	}
 	
-	private byte[] serializeObject(Object o) throws IOException {
-		byte[] bytes = null;
-		try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-			ObjectOutputStream oos = new ObjectOutputStream(os);
-			oos.writeObject(o);
-			oos.flush();
-			bytes = os.toByteArray();
-		}
-		return bytes;
-	}
-	
-	private Object deserializeObjectFromStream(InputStream input) throws IOException {
-		ObjectInputStream ois = new ObjectInputStream(input);
-		Object object = null;
-		try {
-			object = ois.readObject();
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
-		return object;
-	}
-
-	private <T> List<T[]> splitArray(T[] items, int maxSubArraySize) {
+	static <T> List<T[]> splitArray(T[] items, int maxSubArraySize) {
 		List<T[]> result = new ArrayList<T[]>();
 		if (items == null || items.length == 0) {
 			return result;
@@ -20,85 +20,151 @@
  */
 package eu.openanalytics.phaedra.measservice.repository.dao;
 
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.sql.*;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.lang3.ArrayUtils;
-import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.postgresql.jdbc.PgConnection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec.WellDataConsumer;
+import eu.openanalytics.phaedra.measservice.repository.codec.PgArrayCodec;
+import eu.openanalytics.phaedra.measservice.repository.codec.PgBinaryCopyWriter;
+
 @Component
 public class MeasWelldataDAO {
 
+	// The number of rows fetched per round trip when streaming large result sets
+	private static final int STREAM_FETCH_SIZE = 100;
+
 	@Value("${meas-service.db.schema:measservice}")
 	private String schemaName;
 
 	@Value("${meas-service.db.welldata-table:welldata}")
 	private String tableName;
 
+	@Value("${meas-service.db.welldata-conflict-policy:REPLACE}")
+	private ConflictPolicy conflictPolicy;
+
 	@Autowired
 	private DataSource dataSource;
 
+	// The element type of the values column: float8 by default, but it may have been migrated to float4.
+	private volatile int valuesElementOid;
+
+	/*
+	 * Note: all statements use parameters, so that their SQL is constant and
+	 * the server-side prepared statements can be reused by the driver.
+	 */
+
 	public float[] getData(long measId, String column) {
-		String sql = String.format("select values from %s.%s where meas_id = %d and column_name = '%s'", schemaName, tableName, measId, column);
-		return select(sql, rs -> (rs.next()) ? getNumValues(rs, "values") : null, 0);
+		String sql = String.format("select array_send(values) as values from %s.%s where meas_id = ? and column_name = ?", schemaName, tableName);
+		return select(sql, stmt -> {
+			stmt.setLong(1, measId);
+			stmt.setString(2, column);
+		}, rs -> (rs.next()) ? getNumValues(rs, "values") : null);
 	}
 
-	public float[][] getData(long measId, String[] columns) {
-		String colNameString = Arrays.stream(columns).map(c -> "'" + c + "'").collect(Collectors.joining(","));
-		String sql = String.format("select column_name, values from %s.%s where meas_id = %d and column_name in (%s)", schemaName, tableName, measId, colNameString);
-		return select(sql, rs -> {
-			float[][] retVal = new float[columns.length][];
-			while (rs.next()) {
-				String colName = rs.getString("column_name");
-				float[] values = getNumValues(rs, "values");
-				int index = ArrayUtils.indexOf(columns, colName);
-				if (index >= 0) retVal[index] = values;
-			}
-			return retVal;
-		}, 0);
+	public Map<String, float[]> getData(long measId, String[] columns) {
+		String sql = String.format("select column_name, array_send(values) as values from %s.%s where meas_id = ? and column_name = any(?)", schemaName, tableName);
+		return select(sql, stmt -> {
+			stmt.setLong(1, measId);
+			stmt.setArray(2, stmt.getConnection().createArrayOf("text", columns));
+		}, this::getColumnValues);
 	}
 
 	public Map<String, float[]> getData(long measId) {
-		String sql = String.format("select column_name, values from %s.%s where meas_id = %d", schemaName, tableName, measId);
-		return select(sql, rs -> {
-			Map<String, float[]> results = new HashMap<>();
+		String sql = String.format("select column_name, array_send(values) as values from %s.%s where meas_id = ?", schemaName, tableName);
+		return select(sql, stmt -> stmt.setLong(1, measId), this::getColumnValues);
+	}
+
+	/**
+	 * Retrieve the welldata of several columns of several measurements with a single query.
+	 * The rows are fetched in batches, and passed to the consumer one at a time.
+	 */
+	public void streamData(long[] measIds, String[] columns, WellDataConsumer consumer) {
+		String sql = String.format("select meas_id, column_name, array_send(values) as values from %s.%s where meas_id = any(?) and column_name = any(?) order by meas_id, column_name", schemaName, tableName);
+		select(sql, stmt -> {
+			stmt.setFetchSize(STREAM_FETCH_SIZE);
+			stmt.setArray(1, stmt.getConnection().createArrayOf("int8", Arrays.stream(measIds).boxed().toArray(Long[]::new)));
+			stmt.setArray(2, stmt.getConnection().createArrayOf("text", columns));
+		}, rs -> {
 			while (rs.next()) {
-				String colName = rs.getString("column_name");
-				float[] values = getNumValues(rs, "values");
-				results.put(colName, values);
+				try {
+					consumer.accept(rs.getLong("meas_id"), rs.getString("column_name"), getNumValues(rs, "values"));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
 			}
-			return results;
-		}, 0);
+			return null;
+		});
+	}
+
+	/**
+	 * What to do when saving a column that already exists. Either way, saving the same data
+	 * twice (e.g. when a request is redelivered) has no further effect.
+	 */
+	public enum ConflictPolicy {
+		REPLACE,
+		IGNORE
 	}
 
+	/**
+	 * Save the data of several columns. The columns are copied into a temporary staging table,
+	 * and then upserted into the welldata table with a single statement.
+	 */
 	public void saveData(long measId, Map<String, float[]> data) {
 		if (data == null || data.isEmpty()) throw new RuntimeException("No measurement data provided");
 
-		String sql = String.format("select count(*) from %s.%s where meas_id = %d", schemaName, tableName, measId);
-		int rowCount = select(sql, rs -> (rs.next()) ? rs.getInt(1) : 0, 0);
-		if (rowCount > 0) throw new RuntimeException("Cannot save measurement data: data already exists for meas " + measId);
-
+		String stagingTableName = tableName + "_staging";
 		try (Connection conn = getConnection()) {
-			byte[] dataCSV = toCSV(measId, data);
-			sql = String.format("copy %s.%s (meas_id, column_name, values) from stdin (format csv)", schemaName, tableName);
-			CopyManager cm = conn.unwrap(PgConnection.class).getCopyAPI();
-			cm.copyIn(sql, new ByteArrayInputStream(dataCSV));
-			conn.commit();
+			try {
+				int elementOid = getValuesElementOid(conn);
+				try (Statement stmt = conn.createStatement()) {
+					// The staging table lives as long as the (pooled) connection, and is emptied on each commit and rollback.
+					stmt.execute(String.format("create temporary table if not exists %s (like %s.%s) on commit delete rows", stagingTableName, schemaName, tableName));
+				}
+
+				String sql = String.format("copy %s (meas_id, column_name, \"values\") from stdin (format binary)", stagingTableName);
+				PGCopyOutputStream copyOut = new PGCopyOutputStream(conn.unwrap(PgConnection.class), sql);
+				try {
+					PgBinaryCopyWriter writer = new PgBinaryCopyWriter(copyOut);
+					writer.writeHeader();
+					for (Map.Entry<String, float[]> entry: data.entrySet()) {
+						writer.startTuple(3);
+						writer.writeLong(measId);
+						writer.writeText(entry.getKey());
+						writer.writeFloatArray(entry.getValue(), elementOid);
+					}
+					writer.writeTrailer();
+					copyOut.endCopy();
+				} finally {
+					if (copyOut.isActive()) copyOut.cancelCopy();
+				}
+
+				try (Statement stmt = conn.createStatement()) {
+					stmt.executeUpdate(String.format("insert into %s.%s (meas_id, column_name, \"values\") select meas_id, column_name, \"values\" from %s %s",
+							schemaName, tableName, stagingTableName, getConflictClause()));
+				}
+				conn.commit();
+			} catch (SQLException | IOException | RuntimeException e) {
+				// Discard a partial copy here, instead of leaving the transaction to the connection pool.
+				conn.rollback();
+				throw e;
+			}
 		} catch (SQLException | IOException e) {
 			throw new RuntimeException("Failed to save measurement data", e);
 		}
@@ -107,46 +173,68 @@ public class MeasWelldataDAO {
 	public void saveData(long measId, String column, float[] data) {
 		if (data == null || ArrayUtils.isEmpty(data)) throw new RuntimeException("No measurement data provided");
 
-		String sql = String.format("select count(*) from %s.%s where meas_id = %d and column_name = '%s'", schemaName, tableName, measId, column);
-		int rowCount = select(sql, rs -> (rs.next()) ? rs.getInt(1) : 0, 0);
-		if (rowCount > 0) throw new RuntimeException("Cannot save measurement data: data already exists for meas " + measId);
-
-		try (Connection conn = getConnection()) {
-			sql = String.format("insert into %s.%s(meas_id, column_name, \"values\") values (?, ?, ?)", schemaName, tableName);
-
-			PreparedStatement stmt= conn.prepareStatement(sql);
+		String sql = String.format("insert into %s.%s (meas_id, column_name, \"values\") values (?, ?, ?) %s", schemaName, tableName, getConflictClause());
+		execute(sql, stmt -> {
 			stmt.setLong(1, measId);
 			stmt.setString(2, column);
 			stmt.setObject(3, data);
-			stmt.executeUpdate();
-
-			conn.commit();
-		} catch (SQLException e) {
-			throw new RuntimeException("Failed to save measurement data", e);
-		}
+		});
 	}
 
 	public void deleteData(long measId) {
-		String sql = String.format("delete from %s.%s where meas_id = %d", schemaName, tableName, measId);
-		execute(sql);
+		String sql = String.format("delete from %s.%s where meas_id = ?", schemaName, tableName);
+		execute(sql, stmt -> stmt.setLong(1, measId));
+	}
+
+	private String getConflictClause() {
+		return (conflictPolicy == ConflictPolicy.IGNORE)
+				? "on conflict (meas_id, column_name) do nothing"
+				: "on conflict (meas_id, column_name) do update set \"values\" = excluded.\"values\"";
 	}
 
+	/**
+	 * Read a values column that was selected with array_send(), i.e. in the binary array format.
+	 * This works for both float8[] and float4[] columns, and does not box the values.
+	 */
 	private float[] getNumValues(ResultSet rs, String column) throws SQLException {
-		Array numValArray = rs.getArray(column);
-		if (numValArray == null) return null;
-		Double[] doubleValues = (Double[]) numValArray.getArray();
-		if (doubleValues == null) return null;
+		byte[] bytes = rs.getBytes(column);
+		if (bytes == null) return null;
+		try {
+			return PgArrayCodec.decodeFloatArray(bytes);
+		} catch (IOException e) {
+			throw new SQLException("Failed to decode values of column " + column, e);
+		}
+	}
+
+	private int getValuesElementOid(Connection conn) throws SQLException {
+		if (valuesElementOid == 0) {
+			String sql = "select t.typelem from pg_catalog.pg_attribute a join pg_catalog.pg_type t on t.oid = a.atttypid"
+					+ " where a.attrelid = to_regclass(?) and a.attname = 'values'";
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				stmt.setString(1, String.format("%s.%s", schemaName, tableName));
+				try (ResultSet rs = stmt.executeQuery()) {
+					valuesElementOid = (rs.next() && rs.getInt(1) == PgArrayCodec.OID_FLOAT4) ? PgArrayCodec.OID_FLOAT4 : PgArrayCodec.OID_FLOAT8;
+				}
+			}
+		}
+		return valuesElementOid;
+	}
 
-		float[] floatValues = new float[doubleValues.length];
-		for (int i=0; i<doubleValues.length; i++) floatValues[i] = doubleValues[i].floatValue();
-		return floatValues;
+	private Map<String, float[]> getColumnValues(ResultSet rs) throws SQLException {
+		Map<String, float[]> results = new HashMap<>();
+		while (rs.next()) {
+			String colName = rs.getString("column_name");
+			float[] values = getNumValues(rs, "values");
+			results.put(colName, values);
+		}
+		return results;
 	}
 
-	private <T> T select(String sql, ResultProcessor<T> resultProcessor, int fetchSize) {
+	private <T> T select(String sql, StatementPreparer statementPreparer, ResultProcessor<T> resultProcessor) {
 		try (Connection conn = getConnection()) {
-			try (Statement stmt = conn.createStatement()) {
-				if (fetchSize > 0) stmt.setFetchSize(fetchSize);
-				try (ResultSet rs = stmt.executeQuery(sql)) {
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				statementPreparer.prepare(stmt);
+				try (ResultSet rs = stmt.executeQuery()) {
 					return resultProcessor.process(rs);
 				}
 			}
@@ -155,31 +243,24 @@ public class MeasWelldataDAO {
 		}
 	}
 
-	private void execute(String sql) {
+	private void execute(String sql, StatementPreparer statementPreparer) {
 		try (Connection conn = getConnection()) {
-			try (Statement stmt = conn.createStatement()) {
-				stmt.execute(sql);
+			try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+				statementPreparer.prepare(stmt);
+				stmt.execute();
 			}
+			conn.commit();
 		} catch (SQLException e) {
 			throw new RuntimeException("Failed to execute query: " + sql, e);
 		}
 	}
 
-	private interface ResultProcessor<T> {
-		public T process(ResultSet rs) throws SQLException;
+	private interface StatementPreparer {
+		public void prepare(PreparedStatement stmt) throws SQLException;
 	}
 
-	private byte[] toCSV(long measId, Map<String, float[]> data) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		try (BufferedWriter csvWriter = new BufferedWriter(new OutputStreamWriter(bos))) {
-			for (String colName: data.keySet()) {
-				float[] values = data.get(colName);
-				String valueArray = IntStream.range(0, values.length).mapToObj(i -> String.valueOf(values[i])).collect(Collectors.joining(","));
-				csvWriter.write(String.format("%d,\"%s\",\"{%s}\"\n", measId, colName, valueArray));
-			}
-			csvWriter.flush();
-		}
-		return bos.toByteArray();
+	private interface ResultProcessor<T> {
+		public T process(ResultSet rs) throws SQLException;
 	}
 
 	private Connection getConnection() throws SQLException {
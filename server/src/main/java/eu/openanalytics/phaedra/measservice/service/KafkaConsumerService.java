@@ -20,19 +20,23 @@
  */
 package eu.openanalytics.phaedra.measservice.service;
 
+import static eu.openanalytics.phaedra.measservice.config.KafkaConfig.BATCH_LISTENER_FACTORY;
 import static eu.openanalytics.phaedra.measservice.config.KafkaConfig.GROUP_ID;
 import static eu.openanalytics.phaedra.measservice.config.KafkaConfig.TOPIC_DATACAPTURE;
 import static eu.openanalytics.phaedra.measservice.config.KafkaConfig.TOPIC_MEASUREMENTS;
 import static org.apache.commons.lang3.ArrayUtils.isEmpty;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
 import eu.openanalytics.phaedra.measservice.dto.SubwellDataDTO;
@@ -63,22 +67,67 @@ public class KafkaConsumerService {
     	}
     }
 
-    @KafkaListener(topics = TOPIC_MEASUREMENTS, groupId = GROUP_ID + "_requestMeasurementSaveWellData", filter = "requestMeasurementSaveWellDataFilter")
-    public void onSaveWellData(WellDataDTO wellData) throws JsonProcessingException {
-    	logger.info(String.format("Received well data: %s", wellData));
-        if (isBlank(wellData.getColumn()) || isEmpty(wellData.getData())) {
-        	logger.warn(String.format("Ignoring invalid saveWellData request: %s", wellData));
-        } else {
-        	measService.setMeasWellData(wellData.getMeasurementId(), wellData.getColumn(), wellData.getData());
-        }
-    }
-    @KafkaListener(topics = TOPIC_MEASUREMENTS, groupId = GROUP_ID + "_requestMeasurementSaveSubwellData", filter = "requestMeasurementSaveSubwellDataFilter")
-    public void onSaveSubwellData(SubwellDataDTO subwellData) throws JsonProcessingException {
-        if (isBlank(subwellData.getColumn()) || isEmpty(subwellData.getData())) {
-        	logger.warn(String.format("Ignoring invalid saveSubwellData request: %s", subwellData));
-        } else {
-        	measService.setMeasSubWellData(subwellData.getMeasurementId(), subwellData.getWellId(), subwellData.getColumn(), subwellData.getData());
-        }
+    /**
+     * The requests of a batch are grouped per measurement, so that each measurement is validated once
+     * and all of its columns are saved at once. If that fails, the columns are saved one at a time,
+     * so that only the invalid ones are dropped.
+     */
+    @KafkaListener(topics = TOPIC_MEASUREMENTS, groupId = GROUP_ID + "_requestMeasurementSaveWellData", filter = "requestMeasurementSaveWellDataFilter",
+    		containerFactory = BATCH_LISTENER_FACTORY)
+    public void onSaveWellData(List<WellDataDTO> wellDataBatch) {
+    	Map<Long, Map<String, float[]>> wellDataPerMeas = new LinkedHashMap<>();
+    	for (WellDataDTO wellData: wellDataBatch) {
+    		if (isBlank(wellData.getColumn()) || isEmpty(wellData.getData())) {
+    			logger.warn(String.format("Ignoring invalid saveWellData request: measurement %d, column %s", wellData.getMeasurementId(), wellData.getColumn()));
+    		} else {
+    			wellDataPerMeas.computeIfAbsent(wellData.getMeasurementId(), id -> new LinkedHashMap<>()).put(wellData.getColumn(), wellData.getData());
+    		}
+    	}
+
+    	wellDataPerMeas.forEach((measId, wellData) -> {
+    		logger.info(String.format("Saving %d welldata columns for measurement %d", wellData.size(), measId));
+    		try {
+    			measService.setMeasWellData(measId, wellData);
+    		} catch (IllegalArgumentException e) {
+    			// Nothing has been saved yet: the whole group is validated first.
+    			wellData.forEach((column, values) -> {
+    				try {
+    					measService.setMeasWellData(measId, column, values);
+    				} catch (IllegalArgumentException columnException) {
+    					logger.warn(String.format("Ignoring invalid saveWellData request: %s", columnException.getMessage()));
+    				}
+    			});
+    		}
+    	});
+    }
+
+    /**
+     * The requests of a batch are grouped per measurement and column, so that the data of all wells
+     * of a column is uploaded in parallel. Each column is validated and saved on its own, so that one
+     * invalid column does not drop the others.
+     */
+    @KafkaListener(topics = TOPIC_MEASUREMENTS, groupId = GROUP_ID + "_requestMeasurementSaveSubwellData", filter = "requestMeasurementSaveSubwellDataFilter",
+    		containerFactory = BATCH_LISTENER_FACTORY)
+    public void onSaveSubwellData(List<SubwellDataDTO> subwellDataBatch) {
+    	Map<Long, Map<String, Map<Integer, float[]>>> subwellDataPerMeas = new LinkedHashMap<>();
+    	for (SubwellDataDTO subwellData: subwellDataBatch) {
+    		if (isBlank(subwellData.getColumn()) || isEmpty(subwellData.getData())) {
+    			logger.warn(String.format("Ignoring invalid saveSubwellData request: measurement %d, well %d, column %s",
+    					subwellData.getMeasurementId(), subwellData.getWellId(), subwellData.getColumn()));
+    		} else {
+    			subwellDataPerMeas.computeIfAbsent(subwellData.getMeasurementId(), id -> new LinkedHashMap<>())
+    				.computeIfAbsent(subwellData.getColumn(), c -> new LinkedHashMap<>())
+    				.put(subwellData.getWellId(), subwellData.getData());
+    		}
+    	}
+
+    	subwellDataPerMeas.forEach((measId, subwellData) -> subwellData.forEach((column, dataPerWell) -> {
+    		try {
+    			measService.addMeasSubWellData(measId, Map.of(column, dataPerWell));
+    		} catch (IllegalArgumentException e) {
+    			logger.warn(String.format("Ignoring invalid saveSubwellData requests: %s", e.getMessage()));
+    		}
+    	}));
     }
     
     @Data
@@ -0,0 +1,287 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import eu.openanalytics.phaedra.measservice.api.dto.DeletionBacklogDTO;
+import eu.openanalytics.phaedra.measservice.model.DeletionJob;
+import eu.openanalytics.phaedra.measservice.model.DeletionJob.Stage;
+import eu.openanalytics.phaedra.measservice.model.DeletionJob.Status;
+import eu.openanalytics.phaedra.measservice.repository.DeletionJobRepository;
+import eu.openanalytics.phaedra.measservice.repository.MeasDataRepository;
+
+/**
+ * Purges the data of deleted measurements in the background.
+ * <p>
+ * Each purge is a persistent job that is processed by a dedicated, bounded worker pool.
+ * Data is deleted one stage at a time (welldata, subwelldata, imagedata), in batches,
+ * and the job is checkpointed after each batch. Failed jobs are retried with an exponential backoff.
+ * <p>
+ * A running job is leased by the worker (i.e. the service instance) that claimed it. The lease is renewed
+ * by a heartbeat, and by each checkpoint. All updates of a running job require the lease, so that a worker
+ * that lost it cannot overwrite the job of the worker that took over. Jobs whose lease has expired are returned
+ * to the queue, so that another instance can resume them.
+ */
+@Service
+public class MeasDeletionService {
+
+	private final DeletionJobRepository jobRepo;
+	private final MeasDataRepository measDataRepo;
+
+	@Value("${meas-service.deletion.worker-count:2}")
+	private int workerCount;
+
+	@Value("${meas-service.deletion.batch-size:1000}")
+	private int batchSize;
+
+	@Value("${meas-service.deletion.max-attempts:10}")
+	private int maxAttempts;
+
+	@Value("${meas-service.deletion.retry-delay:60000}")
+	private long retryDelayMs;
+
+	@Value("${meas-service.deletion.max-retry-delay:3600000}")
+	private long maxRetryDelayMs;
+
+	@Value("${meas-service.deletion.lease-timeout:600000}")
+	private long leaseTimeoutMs;
+
+	// Identifies this instance as the owner of the jobs it claims. Defaults to the host name and a random UUID,
+	// which is unique even for several instances on the same host. If a stable ID is configured instead,
+	// the jobs of a previous run are returned to the queue on startup, rather than when their lease expires.
+	@Value("${meas-service.deletion.worker-id:}")
+	private String workerId;
+
+	private ExecutorService workerPool;
+	private final AtomicInteger activeJobCount = new AtomicInteger();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public MeasDeletionService(DeletionJobRepository jobRepo, MeasDataRepository measDataRepo) {
+		this.jobRepo = jobRepo;
+		this.measDataRepo = measDataRepo;
+	}
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadNr = new AtomicInteger();
+		ThreadFactory threadFactory = r -> {
+			Thread t = new Thread(r, "meas-deletion-" + threadNr.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		workerPool = Executors.newFixedThreadPool(workerCount, threadFactory);
+
+		if (workerId == null || workerId.isBlank()) {
+			String hostName;
+			try {
+				hostName = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				hostName = "unknown-host";
+			}
+			workerId = hostName + "-" + UUID.randomUUID();
+		}
+	}
+
+	/**
+	 * Queue the purge of all data of a measurement.
+	 * If called within a transaction, the job is dispatched after the transaction commits.
+	 *
+	 * @param measId The ID of the measurement whose data should be purged.
+	 */
+	public DeletionJob requestDeletion(long measId) {
+		Date now = new Date();
+		DeletionJob job = new DeletionJob();
+		job.setMeasId(measId);
+		job.setStatus(Status.PENDING);
+		job.setStage(Stage.WELLDATA);
+		job.setCreatedOn(now);
+		job.setUpdatedOn(now);
+		job = jobRepo.save(job);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					dispatchJobs();
+				}
+			});
+		} else {
+			dispatchJobs();
+		}
+		return job;
+	}
+
+	public DeletionBacklogDTO getBacklog() {
+		Date since = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+		DeletionBacklogDTO backlog = new DeletionBacklogDTO();
+		backlog.setPendingJobs(jobRepo.countByStatus(Status.PENDING.name()));
+		backlog.setRunningJobs(jobRepo.countByStatus(Status.RUNNING.name()));
+		backlog.setFailedJobs(jobRepo.countByStatus(Status.FAILED.name()));
+		backlog.setCompletedJobsLastHour(jobRepo.countCompletedSince(since));
+		backlog.setDeletedObjectsLastHour(jobRepo.sumDeletedObjectsCompletedSince(since));
+		return backlog;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void resumeJobs() {
+		// Jobs claimed by this worker before it restarted are no longer running (for a configured, stable worker ID).
+		int resumed = jobRepo.releaseJobs(workerId);
+		if (resumed > 0) logger.info(String.format("Resuming %d interrupted deletion jobs", resumed));
+		dispatchJobs();
+	}
+
+	@Scheduled(fixedDelayString = "${meas-service.deletion.heartbeat-interval:60000}")
+	public void renewLeases() {
+		if (activeJobCount.get() > 0) jobRepo.renewLeases(workerId, new Date());
+	}
+
+	@Scheduled(fixedDelayString = "${meas-service.deletion.poll-interval:30000}")
+	public synchronized void dispatchJobs() {
+		int released = jobRepo.releaseExpiredJobs(new Date(System.currentTimeMillis() - leaseTimeoutMs));
+		if (released > 0) logger.info(String.format("Resuming %d deletion jobs with an expired lease", released));
+
+		int freeWorkers = workerCount - activeJobCount.get();
+		if (freeWorkers <= 0) return;
+
+		List<DeletionJob> jobs = jobRepo.findDueJobs(new Date(), freeWorkers);
+		for (DeletionJob job: jobs) {
+			Date now = new Date();
+			if (jobRepo.claimJob(job.getId(), workerId, now) == 0) continue;
+			job.setStatus(Status.RUNNING);
+			job.setClaimedBy(workerId);
+			job.setHeartbeatAt(now);
+			activeJobCount.incrementAndGet();
+			workerPool.submit(() -> {
+				try {
+					processJob(job);
+				} finally {
+					activeJobCount.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (workerPool != null) workerPool.shutdownNow();
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	private void processJob(DeletionJob job) {
+		long measId = job.getMeasId();
+		try {
+			while (job.getStage() != Stage.DONE) {
+				boolean leaseHeld;
+				switch (job.getStage()) {
+				case WELLDATA:
+					measDataRepo.deleteWellData(measId);
+					leaseHeld = checkpoint(job, Stage.SUBWELLDATA, 0);
+					break;
+				case SUBWELLDATA:
+					int deletedSubWellObjects = measDataRepo.deleteSubWellData(measId, batchSize);
+					leaseHeld = checkpoint(job, (deletedSubWellObjects == 0) ? Stage.IMAGEDATA : Stage.SUBWELLDATA, deletedSubWellObjects);
+					break;
+				case IMAGEDATA:
+					int deletedImageObjects = measDataRepo.deleteImageData(measId, batchSize);
+					leaseHeld = checkpoint(job, (deletedImageObjects == 0) ? Stage.DONE : Stage.IMAGEDATA, deletedImageObjects);
+					break;
+				default:
+					throw new IllegalStateException("Unknown deletion stage: " + job.getStage());
+				}
+				if (!leaseHeld) {
+					// The job was resumed by another worker: leave it to that worker.
+					logger.warn(String.format("Lost the lease on deletion job %d for measurement %d", job.getId(), measId));
+					return;
+				}
+			}
+
+			if (jobRepo.completeJob(job.getId(), workerId, job.getDeletedObjects(), new Date()) == 0) {
+				logger.warn(String.format("Lost the lease on deletion job %d for measurement %d", job.getId(), measId));
+				return;
+			}
+			logger.info(String.format("Deleted data of measurement %d: %d objects", measId, job.getDeletedObjects()));
+		} catch (Exception e) {
+			logger.warn(String.format("Deletion of data of measurement %d failed at stage %s", measId, job.getStage()), e);
+			scheduleRetry(job, e);
+		}
+	}
+
+	/**
+	 * Save the progress of a job, and renew its lease.
+	 *
+	 * @return True if the progress was saved, false if the lease was lost.
+	 */
+	private boolean checkpoint(DeletionJob job, Stage nextStage, int deletedObjects) {
+		Date now = new Date();
+		job.setStage(nextStage);
+		job.setDeletedObjects(job.getDeletedObjects() + deletedObjects);
+		job.setHeartbeatAt(now);
+		job.setUpdatedOn(now);
+		return jobRepo.saveProgress(job.getId(), workerId, nextStage.name(), job.getDeletedObjects(), now) > 0;
+	}
+
+	private void scheduleRetry(DeletionJob job, Exception cause) {
+		int attempts = job.getAttempts() + 1;
+		Status status = Status.FAILED;
+		Date nextAttemptOn = null;
+		if (attempts < maxAttempts) {
+			long delay = Math.min(maxRetryDelayMs, retryDelayMs << Math.min(attempts - 1, 20));
+			status = Status.PENDING;
+			nextAttemptOn = new Date(System.currentTimeMillis() + delay);
+		}
+		try {
+			if (jobRepo.failJob(job.getId(), workerId, status.name(), attempts, cause.getMessage(), nextAttemptOn, new Date()) == 0) {
+				logger.warn(String.format("Lost the lease on deletion job %d for measurement %d", job.getId(), job.getMeasId()));
+			}
+		} catch (Exception e) {
+			// The job stays RUNNING and will be resumed when its lease expires.
+			logger.error(String.format("Failed to update deletion job %d", job.getId()), e);
+		}
+	}
+}
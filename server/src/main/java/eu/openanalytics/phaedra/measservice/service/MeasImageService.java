@@ -20,27 +20,52 @@
  */
 package eu.openanalytics.phaedra.measservice.service;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
-import eu.openanalytics.phaedra.imaging.jp2k.openjpeg.OpenJPEGLibLoader;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Service;
 
 import eu.openanalytics.phaedra.imaging.jp2k.ICodestreamSource;
 import eu.openanalytics.phaedra.imaging.jp2k.ICodestreamSourceDescriptor;
+import eu.openanalytics.phaedra.imaging.jp2k.openjpeg.OpenJPEGLibLoader;
 import eu.openanalytics.phaedra.imaging.jp2k.openjpeg.source.GenericByteSource;
 import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig;
 import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig.ChannelRenderConfig;
 import eu.openanalytics.phaedra.imaging.render.ImageRenderService;
 import eu.openanalytics.phaedra.imaging.util.ImageRenderConfigUtils;
+import eu.openanalytics.phaedra.measservice.api.dto.ImageAccessStatsDTO;
+import eu.openanalytics.phaedra.measservice.api.dto.ImageDescriptorDTO;
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.image.CodestreamHeader;
+import eu.openanalytics.phaedra.measservice.image.ImageAccessStats;
 import eu.openanalytics.phaedra.measservice.image.ImageCodestreamAccessor;
 import eu.openanalytics.phaedra.measservice.image.ImageCodestreamAccessorCache;
+import eu.openanalytics.phaedra.measservice.image.ImageMontage;
+import eu.openanalytics.phaedra.measservice.image.RenderedImageCache;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
 
 @Service
 public class MeasImageService {
@@ -49,6 +74,8 @@ public class MeasImageService {
 		OpenJPEGLibLoader.load();
 	}
 
+	private static final int MAX_MONTAGE_CELL_SIZE = 1024;
+
 	@Autowired
 	private MeasService measService;
 
@@ -58,58 +85,254 @@ public class MeasImageService {
 	@Autowired
 	private ImageCodestreamAccessorCache codestreamAccessorCache;
 
+	@Autowired
+	private RenderedImageCache renderedImageCache;
+
+	@Value("${meas-service.image.montage.threads:8}")
+	private int montageThreads;
+
+	@Value("${meas-service.image.tile-size:256}")
+	private int tileSize;
+
+	private ExecutorService montagePool;
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadNr = new AtomicInteger();
+		ThreadFactory threadFactory = r -> {
+			Thread t = new Thread(r, "image-montage-" + threadNr.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		montagePool = Executors.newFixedThreadPool(montageThreads, threadFactory);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (montagePool != null) montagePool.shutdownNow();
+	}
+
 	public byte[] renderImage(long measId, int wellNr, String channel, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+		return renderImage(measId, wellNr, Collections.singletonList(channel), renderConfigId, renderConfig);
+	}
+
+	public byte[] renderImage(long measId, int wellNr, List<String> channels, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+		Optional<RenderRequest> request = resolveRenderRequest(measId, wellNr, channels, renderConfigId, renderConfig);
+		return request.isPresent() ? renderImage(request.get()) : null;
+	}
+
+	public byte[] renderImage(long measId, int wellNr, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+		return renderImage(measId, wellNr, (List<String>) null, renderConfigId, renderConfig);
+	}
 
+	/**
+	 * Resolve everything that is needed to render an image, without decoding anything yet.
+	 * The resulting request carries a cache key that identifies the rendered output,
+	 * so callers can e.g. answer conditional requests without rendering.
+	 *
+	 * @param channels The channels to render, or null to render all channels of the measurement.
+	 * @return The request, or an empty optional if the measurement or all of the channels are not found.
+	 */
+	public Optional<RenderRequest> resolveRenderRequest(long measId, int wellNr, List<String> channels, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
 		MeasurementDTO meas = measService.findMeasById(measId).orElse(null);
-		if (meas == null) return null;
+		if (meas == null) return Optional.empty();
+		if (channels == null) channels = Arrays.asList(meas.getImageChannels());
+
+		Map<String, Long> codestreamSizes = measService.getImageDataSizes(measId, wellNr, channels);
+		return resolveRenderRequest(measId, wellNr, codestreamSizes, availableChannels -> obtainImageRenderConfig(availableChannels, renderConfigId, renderConfig));
+	}
 
-		ICodestreamSourceDescriptor source = createCodestreamSourceDescriptor(measId, wellNr, channel);
-		if (source == null) return null;
+	/**
+	 * Render a resolved request, or return the cached image if it was rendered before.
+	 */
+	public byte[] renderImage(RenderRequest request) throws IOException {
+		Optional<byte[]> cached = renderedImageCache.get(request.cacheKey());
+		if (cached.isPresent()) return cached.get();
 
-		ImageRenderConfig cfg = obtainImageRenderConfig(Collections.singletonList(channel), renderConfigId, renderConfig);
-		return renderService().renderImage(new ICodestreamSourceDescriptor[] { source }, cfg);
+		byte[] rendered = renderService().renderImage(request.sources().stream().toArray(i -> new ICodestreamSourceDescriptor[i]), request.config());
+		if (rendered != null) renderedImageCache.put(request.cacheKey(), rendered);
+		return rendered;
 	}
 
-	public byte[] renderImage(long measId, int wellNr, List<String> channels, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+	/**
+	 * Render a range of wells as a single montage image, laid out as they are on the plate.
+	 * <p>
+	 * Each well is rendered at the given scale, so that the decoder only needs the lower JPEG2000
+	 * resolution levels, and then fitted into a square cell. Wells are rendered in parallel on a bounded pool,
+	 * and the per-well thumbnails go through the rendered image cache like any other rendered image.
+	 *
+	 * @param fromWellNr The first well to include (1-based), or null to start at the first well of the plate.
+	 * @param toWellNr The last well to include (1-based), or null to end at the last well of the plate.
+	 * @param channels The channels to render, or null to render all channels of the measurement.
+	 * @return The montage image (JPEG), or null if the measurement is not found.
+	 */
+	public byte[] renderMontage(long measId, Integer fromWellNr, Integer toWellNr, List<String> channels,
+			Long renderConfigId, ImageRenderConfig renderConfig, float scale, int cellSize) throws IOException {
+
+		if (cellSize < 1 || cellSize > MAX_MONTAGE_CELL_SIZE) throw new IllegalArgumentException("Invalid montage cell size: " + cellSize);
+		if (scale <= 0 || scale > 1) throw new IllegalArgumentException("Invalid montage scale: " + scale);
 
 		MeasurementDTO meas = measService.findMeasById(measId).orElse(null);
 		if (meas == null) return null;
+		if (channels == null) channels = Arrays.asList(meas.getImageChannels());
 
-		List<ICodestreamSourceDescriptor> sources = new ArrayList<>();
-		List<String> availableChannels = new ArrayList<>();
+		if (meas.getRows() == null || meas.getColumns() == null) {
+			throw new IllegalArgumentException(String.format("Cannot render montage: measurement with ID %d has no plate dimensions", measId));
+		}
+		int plateColumns = meas.getColumns();
+		int wellCount = meas.getRows() * plateColumns;
+		int fromWell = (fromWellNr == null) ? 1 : Math.max(1, fromWellNr);
+		int toWell = (toWellNr == null) ? wellCount : Math.min(wellCount, toWellNr);
+		if (fromWell > toWell) throw new IllegalArgumentException(String.format("Invalid well range: %d-%d", fromWell, toWell));
 
-		for (String channel: channels) {
-			ICodestreamSourceDescriptor source = createCodestreamSourceDescriptor(measId, wellNr, channel);
-			if (source == null) continue;
-			availableChannels.add(channel);
-			sources.add(source);
+		// The montage spans the rows of the well range. If the range covers a single row, only its columns are shown.
+		int firstRow = (fromWell - 1) / plateColumns;
+		int lastRow = (toWell - 1) / plateColumns;
+		int firstColumn = (firstRow == lastRow) ? (fromWell - 1) % plateColumns : 0;
+		int montageColumns = (firstRow == lastRow) ? toWell - fromWell + 1 : plateColumns;
+		ImageMontage montage = new ImageMontage(montageColumns, lastRow - firstRow + 1, cellSize);
+
+		// Resolve the render config once, and only again for wells that lack some of the channels.
+		// Each well gets its own copy, as the renderer may modify the config it is given.
+		List<String> allChannels = channels;
+		ImageRenderConfig cfg = withScale(obtainImageRenderConfig(allChannels, renderConfigId, renderConfig), scale);
+		Function<List<String>, ImageRenderConfig> configResolver = availableChannels -> availableChannels.equals(allChannels) ? withScale(ImageRenderConfigUtils.copy(cfg), scale)
+				: withScale(obtainImageRenderConfig(availableChannels, renderConfigId, renderConfig), scale);
+
+		List<CompletableFuture<BufferedImage>> thumbnails = IntStream.rangeClosed(fromWell, toWell)
+				.mapToObj(wellNr -> CompletableFuture.supplyAsync(() -> renderThumbnail(measId, wellNr, allChannels, configResolver), montagePool))
+				.collect(Collectors.toList());
+
+		try {
+			for (int i = 0; i < thumbnails.size(); i++) {
+				BufferedImage thumbnail = thumbnails.get(i).join();
+				if (thumbnail == null) continue;
+				int wellIndex = fromWell - 1 + i;
+				montage.drawCell(wellIndex % plateColumns - firstColumn, wellIndex / plateColumns - firstRow, thumbnail);
+			}
+		} catch (CompletionException e) {
+			thumbnails.forEach(f -> f.cancel(true));
+			if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
 		}
-		if (availableChannels.isEmpty()) return null;
 
-		ImageRenderConfig cfg = obtainImageRenderConfig(availableChannels, renderConfigId, renderConfig);
-		return renderService().renderImage(sources.stream().toArray(i -> new ICodestreamSourceDescriptor[i]), cfg);
+		return montage.toJPEG();
 	}
 
-	public byte[] renderImage(long measId, int wellNr, Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+	/**
+	 * Describe the dimensions and resolution levels of an image, for use by tiled viewers.
+	 * These are taken from the image manifest; only for images without one, the main header of the codestream is read.
+	 */
+	public Optional<ImageDescriptorDTO> getImageDescriptor(long measId, int wellNr, String channel) throws IOException {
+		long codestreamSize = measService.getImageDataSize(measId, wellNr, channel);
+		if (codestreamSize <= 0) return Optional.empty();
+		return Optional.of(describeImage(measId, wellNr, channel, codestreamSize));
+	}
 
-		MeasurementDTO meas = measService.findMeasById(measId).orElse(null);
-		if (meas == null) return null;
+	/**
+	 * Resolve the render request for a single tile of an image.
+	 * <p>
+	 * Level 0 is the full resolution, and each next level halves the resolution. The tile is rendered
+	 * from a region at a reduced scale, so the decoder only reads the resolution levels and the
+	 * codestream parts that cover the tile.
+	 *
+	 * @return The request, or an empty optional if the image is not found or the tile lies outside the image.
+	 */
+	public Optional<RenderRequest> resolveTileRenderRequest(long measId, int wellNr, String channel, int level, int x, int y,
+			Long renderConfigId, ImageRenderConfig renderConfig) throws IOException {
+
+		if (measService.findMeasById(measId).isEmpty()) return Optional.empty();
+		Map<String, Long> codestreamSizes = measService.getImageDataSizes(measId, wellNr, Collections.singletonList(channel));
+		if (codestreamSizes.isEmpty()) return Optional.empty();
+
+		ImageDescriptorDTO descriptor = describeImage(measId, wellNr, channel, codestreamSizes.get(channel));
+		// The levels are taken from the codestream header: beyond its decomposition levels, there is nothing to decode.
+		int decompositionLevels = descriptor.getLevels() - 1;
+		if (level < 0 || level > decompositionLevels || x < 0 || y < 0) return Optional.empty();
+
+		// The tile area, in full resolution coordinates. Computed in long, as it may lie far outside the image.
+		long span = (long) tileSize << level;
+		long left = x * span;
+		long top = y * span;
+		if (left >= descriptor.getWidth() || top >= descriptor.getHeight()) return Optional.empty();
+		Rectangle region = new Rectangle((int) left, (int) top,
+				(int) Math.min(span, descriptor.getWidth() - left), (int) Math.min(span, descriptor.getHeight() - top));
 
-		List<ICodestreamSourceDescriptor> sources = new ArrayList<>();
-		List<String> availableChannels = new ArrayList<>();
+		float scale = 1.0f / (1L << level);
+		return resolveRenderRequest(measId, wellNr, codestreamSizes,
+				channels -> withRegion(withScale(obtainImageRenderConfig(channels, renderConfigId, renderConfig), scale), region));
+	}
+
+	public Optional<ImageAccessStatsDTO> getImageAccessStats(long measId, int wellNr, String channel) {
+		return codestreamAccessorCache.getAccessStats(measId, wellNr, channel).map(this::toDTO);
+	}
+
+	/**
+	 * Non-public
+	 * **********
+	 */
+
+	/**
+	 * @param codestreamSizes The codestream sizes of the available channels, in render order
+	 * (see {@link MeasService#getImageDataSizes(long, int, List)}).
+	 */
+	private Optional<RenderRequest> resolveRenderRequest(long measId, int wellNr, Map<String, Long> codestreamSizes, Function<List<String>, ImageRenderConfig> configResolver) throws IOException {
+		if (codestreamSizes.isEmpty()) return Optional.empty();
+
+		List<String> availableChannels = new ArrayList<>(codestreamSizes.keySet());
+		List<ICodestreamSourceDescriptor> sources = availableChannels.stream()
+				.map(channel -> createCodestreamSourceDescriptor(measId, wellNr, channel, codestreamSizes.get(channel)))
+				.collect(Collectors.toList());
+
+		ImageRenderConfig cfg = configResolver.apply(availableChannels);
+		Map<String, String> contentVersions = measService.getImageDataVersions(measId, wellNr, availableChannels);
+		List<String> channelVersions = availableChannels.stream().map(contentVersions::get).collect(Collectors.toList());
+		String cacheKey = renderedImageCache.computeKey(measId, wellNr, availableChannels, channelVersions, cfg);
+		return Optional.of(new RenderRequest(cacheKey, sources, cfg));
+	}
 
-		String[] channels = meas.getImageChannels();
-		for (int i = 0; i < channels.length; i++) {
-			String channel = channels[i];
-			ICodestreamSourceDescriptor source = createCodestreamSourceDescriptor(measId, wellNr, channel);
-			if (source == null) continue;
-			availableChannels.add(channel);
-			sources.add(source);
+	private BufferedImage renderThumbnail(long measId, int wellNr, List<String> channels, Function<List<String>, ImageRenderConfig> configResolver) {
+		try {
+			Map<String, Long> codestreamSizes = measService.getImageDataSizes(measId, wellNr, channels);
+			Optional<RenderRequest> request = resolveRenderRequest(measId, wellNr, codestreamSizes, configResolver);
+			if (request.isEmpty()) return null;
+			byte[] rendered = renderImage(request.get());
+			return (rendered == null) ? null : ImageMontage.decode(rendered);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		if (availableChannels.isEmpty()) return null;
+	}
+
+	private ImageRenderConfig withScale(ImageRenderConfig cfg, float scale) {
+		cfg.scale = scale;
+		return cfg;
+	}
 
-		ImageRenderConfig cfg = obtainImageRenderConfig(availableChannels, renderConfigId, renderConfig);
-		return renderService().renderImage(sources.stream().toArray(i -> new ICodestreamSourceDescriptor[i]), cfg);
+	private ImageRenderConfig withRegion(ImageRenderConfig cfg, Rectangle region) {
+		cfg.region = region;
+		return cfg;
+	}
+
+	private ImageDescriptorDTO describeImage(long measId, int wellNr, String channel, long codestreamSize) throws IOException {
+		ImageDescriptorDTO descriptor = new ImageDescriptorDTO();
+		descriptor.setTileSize(tileSize);
+
+		ImageManifest manifest = measService.getImageManifest(measId, wellNr, channel).orElse(null);
+		if (manifest != null && manifest.getWidth() != null) {
+			descriptor.setWidth(manifest.getWidth());
+			descriptor.setHeight(manifest.getHeight());
+			descriptor.setComponents(manifest.getComponents());
+			descriptor.setLevels(manifest.getResolutionLevels());
+		} else {
+			ImageCodestreamAccessor codestreamAccessor = codestreamAccessorCache.getCodestreamAccessor(measId, wellNr, channel, codestreamSize);
+			CodestreamHeader header = CodestreamHeader.read(codestreamAccessor, codestreamSize);
+			descriptor.setWidth(header.getWidth());
+			descriptor.setHeight(header.getHeight());
+			descriptor.setComponents(header.getComponents());
+			descriptor.setLevels(header.getResolutionLevels());
+		}
+		return descriptor;
 	}
 
 	@Bean
@@ -147,11 +370,8 @@ public class MeasImageService {
 		return cfg;
 	}
 
-	private ICodestreamSourceDescriptor createCodestreamSourceDescriptor(long measId, int wellNr, String channel) {
-		long codestreamSize = measService.getImageDataSize(measId, wellNr, channel);
-		if (codestreamSize <= 0) return null;
-
-		ImageCodestreamAccessor codestreamAccessor = codestreamAccessorCache.getCodestreamAccessor(measId, wellNr, channel);
+	private ICodestreamSourceDescriptor createCodestreamSourceDescriptor(long measId, int wellNr, String channel, long codestreamSize) {
+		ImageCodestreamAccessor codestreamAccessor = codestreamAccessorCache.getCodestreamAccessor(measId, wellNr, channel, codestreamSize);
 
 		return new ICodestreamSourceDescriptor() {
 			@Override
@@ -169,4 +389,19 @@ public class MeasImageService {
 			}
 		};
 	}
+
+	private ImageAccessStatsDTO toDTO(ImageAccessStats stats) {
+		ImageAccessStatsDTO dto = new ImageAccessStatsDTO();
+		dto.setCodestreamSize(stats.getCodestreamSize());
+		dto.setReads(stats.getReads());
+		dto.setSequentialReads(stats.getSequentialReads());
+		dto.setBytesRead(stats.getBytesRead());
+		dto.setFetches(stats.getFetches());
+		dto.setBytesFetched(stats.getBytesFetched());
+		dto.setWholeObjectFetches(stats.getWholeObjectFetches());
+		dto.setMaxReadAhead(stats.getMaxReadAhead());
+		return dto;
+	}
+
+	public record RenderRequest(String cacheKey, List<ICodestreamSourceDescriptor> sources, ImageRenderConfig config) {}
 }
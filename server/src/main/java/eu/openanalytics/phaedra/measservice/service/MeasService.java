@@ -20,6 +20,8 @@
  */
 package eu.openanalytics.phaedra.measservice.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -28,7 +30,10 @@ import java.util.Optional;
 import org.springframework.stereotype.Service;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec.WellValuesConsumer;
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec.WellDataConsumer;
 import eu.openanalytics.phaedra.measservice.exception.MeasurementNotFoundException;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
 import eu.openanalytics.phaedra.measservice.model.Measurement;
 
 @Service
@@ -97,8 +102,9 @@ public interface MeasService {
 	public void deleteMeas(long measId);
 
 	/**
-	 * Add well data to a measurement. Note that this can be done only once:
-	 * if a measurement already contains well data, an exception will be thrown.
+	 * Add well data to a measurement, and register its columns as the measurement's well columns.
+	 * Columns that the measurement already contains are replaced or kept, according to the
+	 * configured conflict policy, so that saving the same data again has no further effect.
 	 *
 	 * @param measId The ID of the measurement to add well data to.
 	 * @param wellData The well data to add to the measurement.
@@ -106,8 +112,8 @@ public interface MeasService {
 	public void setMeasWellData(long measId, Map<String, float[]> wellData);
 
 	/**
-	 * Add well data to a measurement. Note that this can be done only once:
-	 * if a measurement already contains well data, an exception will be thrown.
+	 * Add well data to a measurement. If the measurement already contains the column,
+	 * it is replaced or kept according to the configured conflict policy.
 	 *
 	 * @param measId The ID of the measurement to add well data to.
 	 * @param column The name of the well data column
@@ -132,6 +138,25 @@ public interface MeasService {
 	 */
 	public Map<String, float[]> getWellData(long measId);
 
+	/**
+	 * Retrieve the welldata for a measurement for a given list of columns.
+	 *
+	 * @param measId The ID of the measurement to get welldata for.
+	 * @param columns The names of the columns to get welldata for.
+	 * @return The map of welldata, containing only the columns that exist. May be null.
+	 */
+	public Map<String, float[]> getWellData(long measId, List<String> columns);
+
+	/**
+	 * Retrieve the welldata for several measurements and columns at once.
+	 * Combinations of measurement and column that have no welldata are skipped.
+	 *
+	 * @param measIds The IDs of the measurements to get welldata for.
+	 * @param columns The names of the columns to get welldata for.
+	 * @param consumer The consumer that receives the welldata, one measurement column at a time.
+	 */
+	public void streamWellData(List<Long> measIds, List<String> columns, WellDataConsumer consumer);
+
 	/**
 	 * Add subwell data to a measurement.
 	 * Note that this can be done only once for each given column name.
@@ -151,6 +176,15 @@ public interface MeasService {
 	 */
 	public void setMeasSubWellData(long measId, int wellNr, String column, float[] subWellData);
 
+	/**
+	 * Add subwell data to a measurement for several wells and columns.
+	 * The measurement is validated once, and the data of the wells is saved in parallel.
+	 *
+	 * @param measId The ID of the measurement to add subwell data to.
+	 * @param subWellData The data per column, containing a float[] for each well number.
+	 */
+	public void addMeasSubWellData(long measId, Map<String, Map<Integer, float[]>> subWellData);
+
 	/**
 	 * Retrieve the sub-well data from a measurement for a given well number
 	 * @param measId The measurement id
@@ -188,6 +222,34 @@ public interface MeasService {
 	 */
 	public Map<Integer, float[]> getSubWellData(long measId, String column);
 
+	/**
+	 * Check whether a measurement has subwell data for a given column name.
+	 *
+	 * @param measId The ID of the measurement to check.
+	 * @param column The name of the column to check.
+	 * @return True if the measurement exists and has subwell data for the column.
+	 */
+	public boolean hasSubWellData(long measId, String column);
+
+	/**
+	 * Retrieve the subwelldata for a measurement for a given column name, one well at a time.
+	 * Unlike {@link #getSubWellData(long, String)}, the data of the whole column is never held in memory.
+	 *
+	 * @param measId The ID of the measurement to get subwelldata for.
+	 * @param column The name of the column to get subwelldata for.
+	 * @param consumer The consumer that receives the float[] of each well, in ascending well number order.
+	 */
+	public void streamSubWellData(long measId, String column, WellValuesConsumer consumer);
+
+	/**
+	 * Write the subwelldata for a measurement for a given column name to an output stream, in its binary form.
+	 *
+	 * @param measId The ID of the measurement to get subwelldata for.
+	 * @param column The name of the column to get subwelldata for.
+	 * @param output The stream to write the data to.
+	 */
+	public void writeSubWellData(long measId, String column, OutputStream output);
+
 	/**
 	 * Add image data to a measurement.
 	 * Note that this can be done only once for each given well nr.
@@ -219,6 +281,48 @@ public interface MeasService {
 	 */
 	public long getImageDataSize(long measId, int wellNr, String channel);
 
+	/**
+	 * Retrieve the sizes of the image data for the given measurement, well nr and channels.
+	 * The sizes are looked up in parallel.
+	 *
+	 * @param measId The ID of the measurement to get image data sizes for.
+	 * @param wellNr The well nr to get image data sizes for.
+	 * @param channels The names of the channels to get image data sizes for.
+	 * @return The sizes of the image data, in bytes, in the order of the given channels.
+	 * Channels without image data are omitted.
+	 */
+	public Map<String, Long> getImageDataSizes(long measId, int wellNr, List<String> channels);
+
+	/**
+	 * Retrieve an identifier of the content of the image data for the given measurement, well nr and channels.
+	 * The identifier changes whenever the image data is replaced, even if its size stays the same.
+	 *
+	 * @param measId The ID of the measurement to get image data versions for.
+	 * @param wellNr The well nr to get image data versions for.
+	 * @param channels The names of the channels to get image data versions for.
+	 * @return The identifiers, in the order of the given channels. Channels without image data are omitted.
+	 */
+	public Map<String, String> getImageDataVersions(long measId, int wellNr, List<String> channels);
+
+	/**
+	 * Retrieve the metadata that was recorded when the image data was uploaded.
+	 *
+	 * @param measId The ID of the measurement to get the image manifest for.
+	 * @param wellNr The well nr to get the image manifest for.
+	 * @param channel The name of the channel to get the image manifest for.
+	 * @return The image manifest, or an empty optional if the image does not exist
+	 * or was uploaded before manifests were recorded.
+	 */
+	public Optional<ImageManifest> getImageManifest(long measId, int wellNr, String channel);
+
+	/**
+	 * Retrieve the image manifests of all wells and channels of a measurement.
+	 *
+	 * @param measId The ID of the measurement to get the image manifests for.
+	 * @return The image manifests, ordered by well nr and channel.
+	 */
+	public List<ImageManifest> getImageManifests(long measId);
+
 	/**
 	 * Retrieve the image data for a measurement for a given well nr and channel.
 	 *
@@ -249,4 +353,30 @@ public interface MeasService {
 	 * @return The image data, containing one byte array per channel. May be null.
 	 */
 	public Map<String, byte[]> getImageData(long measId, int wellNr);
+
+	/**
+	 * Write (a part of) the image data for a measurement for a given well nr and channel to an output stream.
+	 * Unlike {@link #getImageData(long, int, String)}, the image data is never held in memory.
+	 *
+	 * @param measId The ID of the measurement to get image data for.
+	 * @param wellNr The well nr to get image data for.
+	 * @param channel The name of the channel to get image data for.
+	 * @param offset The offset in the codestream of image data.
+	 * @param len The length of the part to write, or -1 to write up to the end of the image data.
+	 * @param output The stream to write the image data to.
+	 * @return The number of bytes written, or -1 if there is no such image data.
+	 */
+	public long writeImageData(long measId, int wellNr, String channel, long offset, long len, OutputStream output);
+
+	/**
+	 * Write the image data for a measurement for a given well nr to an output stream, as a tar archive
+	 * containing one entry per channel. The image data of each channel is streamed into the archive.
+	 *
+	 * @param measId The ID of the measurement to get image data for.
+	 * @param wellNr The well nr to get image data for.
+	 * @param sizes The sizes of the image data per channel, as returned by {@link #getImageDataSizes(long, int, List)}.
+	 * @param output The stream to write the archive to.
+	 * @throws IOException If the image data of a channel changed while the archive was being written.
+	 */
+	public void writeImageDataArchive(long measId, int wellNr, Map<String, Long> sizes, OutputStream output) throws IOException;
 }
@@ -20,22 +20,31 @@
  */
 package eu.openanalytics.phaedra.measservice.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.primitives.Longs;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec.WellValuesConsumer;
+import eu.openanalytics.phaedra.measservice.dto.codec.WellDataBatchCodec.WellDataConsumer;
 import eu.openanalytics.phaedra.measservice.exception.MeasurementNotFoundException;
+import eu.openanalytics.phaedra.measservice.image.TarArchiveCodec;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
 import eu.openanalytics.phaedra.measservice.model.Measurement;
 import eu.openanalytics.phaedra.measservice.repository.MeasDataRepository;
 import eu.openanalytics.phaedra.measservice.repository.MeasRepository;
@@ -48,12 +57,21 @@ public class MeasServiceImpl implements MeasService {
 	private final MeasDataRepository measDataRepo;
 	private final ModelMapper modelMapper;
 	private final IAuthorizationService authService;
+	private final MeasDeletionService deletionService;
 
-	public MeasServiceImpl(MeasRepository measRepo, MeasDataRepository measDataRepo, ModelMapper modelMapper, IAuthorizationService authService) {
+	// The well count of a measurement, used to validate welldata without reading the whole measurement for every column.
+	private final Cache<Long, Integer> wellCountCache = Caffeine.newBuilder()
+			.maximumSize(10000)
+			.expireAfterAccess(10, TimeUnit.MINUTES)
+			.build();
+
+	public MeasServiceImpl(MeasRepository measRepo, MeasDataRepository measDataRepo, ModelMapper modelMapper,
+			IAuthorizationService authService, MeasDeletionService deletionService) {
 		this.measRepo = measRepo;
 		this.measDataRepo = measDataRepo;
 		this.modelMapper = modelMapper;
 		this.authService = authService;
+		this.deletionService = deletionService;
 	}
 
 	@Override
@@ -71,7 +89,9 @@ public class MeasServiceImpl implements MeasService {
 			Measurement updated = modelMapper.map(result.get(), measurementDTO);
 			updated.setUpdatedBy(authService.getCurrentPrincipalName());
 			updated.setUpdatedOn(new Date());
-			return measRepo.save(updated);
+			Measurement saved = measRepo.save(updated);
+			wellCountCache.invalidate(measurementDTO.getId());
+			return saved;
 		}
 		throw new MeasurementNotFoundException(String.format("Measurement %d not found", measurementDTO.getId()));
 	}
@@ -106,26 +126,22 @@ public class MeasServiceImpl implements MeasService {
 	}
 
 	@Override
+	@Transactional
 	public void deleteMeas(long measId) {
 		measRepo.deleteById(measId);
+		wellCountCache.invalidate(measId);
 
-		// The bulk delete operation is performed async.
-		//TODO Implement deletion in a separate service with queueing and support for restarts
-		ForkJoinPool.commonPool().submit(() -> {
-			measDataRepo.deleteWellData(measId);
-			measDataRepo.deleteSubWellData(measId);
-			measDataRepo.deleteImageData(measId);
-		});
+		// The bulk delete operation is performed async, by a persistent deletion job.
+		deletionService.requestDeletion(measId);
 	}
 
 	@Override
 	public void setMeasWellData(long measId, Map<String, float[]> wellData) {
-		Measurement meas = measRepo.findById(measId).orElse(null);
+		Integer wellCount = wellCountCache.get(measId, id -> measRepo.findWellCount(id).orElse(null));
 
-		if (meas == null)
+		if (wellCount == null)
 			throw new IllegalArgumentException(String.format("Cannot save welldata: measurement with ID %d does not exist", measId));
 
-		int wellCount = meas.getRows() * meas.getColumns();
 		for (String column: wellData.keySet()) {
 			float[] values = wellData.get(column);
 			int valueCount = values.length;
@@ -136,21 +152,17 @@ public class MeasServiceImpl implements MeasService {
 			}
 
 		measDataRepo.setWellData(measId, wellData);
-
-		String[] wellColumns = wellData.keySet().stream().sorted().toArray(String[]::new);
-		meas.setWellColumns(wellColumns);
-		measRepo.save(meas);
+		measRepo.addWellColumns(measId, wellData.keySet().toArray(new String[0]));
 	}
 
 
 	@Override
 	public void setMeasWellData(long measId, String column, float[] data) {
-		Measurement meas = measRepo.findById(measId).orElse(null);
+		Integer wellCount = wellCountCache.get(measId, id -> measRepo.findWellCount(id).orElse(null));
 
-		if (meas == null)
+		if (wellCount == null)
 			throw new IllegalArgumentException(String.format("Cannot save welldata: measurement with ID %d does not exist", measId));
 
-		int wellCount = meas.getRows() * meas.getColumns();
 		int valueCount = data.length;
 		if (valueCount != wellCount)
 			throw new IllegalArgumentException(String.format(
@@ -158,6 +170,7 @@ public class MeasServiceImpl implements MeasService {
 					measId, column, wellCount, valueCount));
 
 		measDataRepo.setWellData(measId, column, data);
+		measRepo.addWellColumns(measId, new String[] { column });
 	}
 
 	@Override
@@ -171,6 +184,17 @@ public class MeasServiceImpl implements MeasService {
 		return measDataRepo.getWellData(measId);
 	}
 
+	@Override
+	public Map<String, float[]> getWellData(long measId, List<String> columns) {
+		if (!measExists(measId)) return null;
+		return measDataRepo.getWellData(measId, columns);
+	}
+
+	@Override
+	public void streamWellData(List<Long> measIds, List<String> columns, WellDataConsumer consumer) {
+		measDataRepo.streamWellData(measIds, columns, consumer);
+	}
+
 	@Override
 	public void setMeasSubWellData(long measId, String column, Map<Integer, float[]> subWellData) {
 		Measurement meas = measRepo.findById(measId).orElse(null);
@@ -178,7 +202,8 @@ public class MeasServiceImpl implements MeasService {
 		if (meas == null) {
 			throw new IllegalArgumentException(String.format("Cannot save subwelldata: measurement with ID %d does not exist", measId));
 		}
-		if (ArrayUtils.contains(meas.getSubWellColumns(), column)) {
+		// A registered column may only have been saved per well: a save for the whole plate replaces that data.
+		if (measDataRepo.hasSubWellColumnData(measId, column)) {
 			throw new IllegalArgumentException(
 					String.format("Cannot save subwelldata: measurement with ID %d already contains subwelldata for column %s", measId, column));
 		}
@@ -193,26 +218,35 @@ public class MeasServiceImpl implements MeasService {
 		}
 
 		measDataRepo.putSubWellData(measId, column, subWellData);
-
-		// Register the new column in the measurement.
-		String[] subWellColumns = ArrayUtils.add(meas.getSubWellColumns(), column);
-		subWellColumns = Arrays.stream(subWellColumns).sorted().toArray(String[]::new);
-		meas.setSubWellColumns(subWellColumns);
-		measRepo.save(meas);
+		measRepo.addSubWellColumns(measId, new String[] { column });
 	}
 
 	@Override
 	public void setMeasSubWellData(long measId, int wellNr, String column, float[] subWellData) {
-		Measurement meas = measRepo.findById(measId).orElse(null);
-
-		if (meas == null) {
+		if (!measExists(measId)) {
 			throw new IllegalArgumentException(String.format("Cannot save subwelldata: measurement with ID %d does not exist", measId));
 		}
 		if (subWellData == null || ArrayUtils.isEmpty(subWellData)) {
 			throw new IllegalArgumentException("Cannot save subwelldata: no data provided");
 		}
+		checkSubWellDataPerWell(measId, column);
 
 		measDataRepo.putSubWellData(measId, wellNr, column, subWellData);
+		measRepo.addSubWellColumns(measId, new String[] { column });
+	}
+
+	@Override
+	public void addMeasSubWellData(long measId, Map<String, Map<Integer, float[]>> subWellData) {
+		if (!measExists(measId)) {
+			throw new IllegalArgumentException(String.format("Cannot save subwelldata: measurement with ID %d does not exist", measId));
+		}
+		if (subWellData.values().stream().flatMap(m -> m.values().stream()).anyMatch(ArrayUtils::isEmpty)) {
+			throw new IllegalArgumentException("Cannot save subwelldata: no data provided");
+		}
+		subWellData.keySet().forEach(column -> checkSubWellDataPerWell(measId, column));
+
+		measDataRepo.putSubWellDataPerWell(measId, subWellData);
+		measRepo.addSubWellColumns(measId, subWellData.keySet().toArray(new String[0]));
 	}
 
 	@Override
@@ -246,6 +280,21 @@ public class MeasServiceImpl implements MeasService {
 		return measDataRepo.getSubWellData(measId, column);
 	}
 
+	@Override
+	public boolean hasSubWellData(long measId, String column) {
+		return measExists(measId) && measDataRepo.hasSubWellData(measId, column);
+	}
+
+	@Override
+	public void streamSubWellData(long measId, String column, WellValuesConsumer consumer) {
+		measDataRepo.streamSubWellData(measId, column, consumer);
+	}
+
+	@Override
+	public void writeSubWellData(long measId, String column, OutputStream output) {
+		measDataRepo.copySubWellData(measId, column, output);
+	}
+
 	@Override
 	public void setMeasImageData(long measId, int wellNr, Map<String, byte[]> imageData) {
 		Measurement meas = measRepo.findById(measId).orElse(null);
@@ -263,18 +312,12 @@ public class MeasServiceImpl implements MeasService {
 		}
 
 		measDataRepo.putImageData(measId, wellNr, imageData);
-
-		if (meas.getImageChannels() == null) {
-			meas.setImageChannels(channelNames);
-			measRepo.save(meas);
-		}
+		measRepo.addImageChannels(measId, channelNames);
 	}
 
 	@Override
 	public void setMeasImageData(long measId, int wellNr, String channelId, byte[] imageData) {
-		Measurement meas = measRepo.findById(measId).orElse(null);
-
-		if (meas == null) {
+		if (!measExists(measId)) {
 			throw new IllegalArgumentException(String.format("Cannot save image data: measurement with ID %d does not exist", measId));
 		}
 		if (imageData == null || imageData.length == 0) {
@@ -285,21 +328,7 @@ public class MeasServiceImpl implements MeasService {
 		}
 
 		measDataRepo.putImageData(measId, wellNr, channelId, imageData);
-
-		String[] channelNames = meas.getImageChannels();
-		if (channelNames == null) {
-			channelNames = new String[] { channelId };
-		} else if (!ArrayUtils.contains(channelNames, channelId)) {
-			int nrChannels = channelNames.length;
-			channelNames = new String[nrChannels + 1];
-			System.arraycopy(meas.getImageChannels(), 0, channelNames, 0, nrChannels);
-			channelNames[nrChannels] = channelId;
-		} else {
-			return;
-		}
-
-		meas.setImageChannels(channelNames);
-		measRepo.save(meas);
+		measRepo.addImageChannels(measId, new String[] { channelId });
 	}
 
 	@Override
@@ -307,6 +336,26 @@ public class MeasServiceImpl implements MeasService {
 		return measDataRepo.getImageDataSize(measId, wellNr, channel);
 	}
 
+	@Override
+	public Map<String, Long> getImageDataSizes(long measId, int wellNr, List<String> channels) {
+		return measDataRepo.getImageDataSizes(measId, wellNr, channels);
+	}
+
+	@Override
+	public Map<String, String> getImageDataVersions(long measId, int wellNr, List<String> channels) {
+		return measDataRepo.getImageDataVersions(measId, wellNr, channels);
+	}
+
+	@Override
+	public Optional<ImageManifest> getImageManifest(long measId, int wellNr, String channel) {
+		return measDataRepo.getImageManifest(measId, wellNr, channel);
+	}
+
+	@Override
+	public List<ImageManifest> getImageManifests(long measId) {
+		return measDataRepo.getImageManifests(measId);
+	}
+
 	@Override
 	public byte[] getImageData(long measId, int wellNr, String channel) {
 		if (!measExists(measId)) return null;
@@ -325,6 +374,27 @@ public class MeasServiceImpl implements MeasService {
 		return measDataRepo.getImageData(measId, wellNr);
 	}
 
+	@Override
+	public long writeImageData(long measId, int wellNr, String channel, long offset, long len, OutputStream output) {
+		return measDataRepo.copyImageData(measId, wellNr, channel, offset, len, output);
+	}
+
+	@Override
+	public void writeImageDataArchive(long measId, int wellNr, Map<String, Long> sizes, OutputStream output) throws IOException {
+		long modified = System.currentTimeMillis();
+		for (Map.Entry<String, Long> entry: sizes.entrySet()) {
+			String channel = entry.getKey();
+			long size = entry.getValue();
+			TarArchiveCodec.writeEntryHeader(output, channel, size, modified);
+			// The header has already been written, so a size mismatch can only be reported by aborting the archive.
+			long written = measDataRepo.copyImageData(measId, wellNr, channel, 0, size, output);
+			if (written != size) throw new IOException(String.format(
+					"Image data changed while archiving measurement %d, well %d, channel %s", measId, wellNr, channel));
+			TarArchiveCodec.writeEntryPadding(output, size);
+		}
+		TarArchiveCodec.writeEnd(output);
+	}
+
 	/**
 	 * Non-public
 	 * **********
@@ -337,4 +407,14 @@ public class MeasServiceImpl implements MeasService {
 		Assert.hasText(meas.getCreatedBy(), "Measurement creator cannot be empty");
 		Assert.notNull(meas.getCreatedOn(), "Measurement creation date cannot be null");
 	}
+
+	/**
+	 * Data saved per well would be hidden by data that was saved for the whole plate, so it is rejected.
+	 */
+	private void checkSubWellDataPerWell(long measId, String column) {
+		if (measDataRepo.hasSubWellColumnData(measId, column)) {
+			throw new IllegalArgumentException(String.format(
+					"Cannot save subwelldata per well: measurement with ID %d already contains subwelldata for column %s for the whole plate", measId, column));
+		}
+	}
 }
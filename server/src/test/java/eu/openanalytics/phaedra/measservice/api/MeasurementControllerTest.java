@@ -28,11 +28,13 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
@@ -42,10 +44,13 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
 import eu.openanalytics.phaedra.measservice.model.Measurement;
+import eu.openanalytics.phaedra.measservice.repository.dao.MeasWelldataDAO;
 import eu.openanalytics.phaedra.measservice.support.Containers;
 
 @Testcontainers
@@ -61,6 +66,12 @@ public class MeasurementControllerTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private MeasWelldataDAO welldataDAO;
+
+    @MockBean
+    private AmazonS3 s3Client;
+
     @DynamicPropertySource
     static void registerPgProperties(DynamicPropertyRegistry registry) {
         registry.add("DB_URL", Containers.postgreSQLContainer::getJdbcUrl);
@@ -118,4 +129,29 @@ public class MeasurementControllerTest {
         assertThat(measurementDTO).isNotNull();
         assertThat(measurementDTO.getId()).isEqualTo(1L);
     }
+
+    @Test
+    public void welldataColumnsGetTest() throws Exception {
+        welldataDAO.saveData(1000L, Map.of("wellCol1", new float[] { 1f }, "wellCol2", new float[] { 2f }, "wellCol3", new float[] { 3f }));
+
+        Map<String, List<Double>> welldata = getWelldata("/measurements/{measId}/welldata?columns=wellCol1,wellCol3,unknownCol", 1000L);
+        assertThat(welldata).containsOnlyKeys("wellCol1", "wellCol3");
+        assertThat(welldata.get("wellCol3")).containsExactly(3.0);
+
+        assertThat(getWelldata("/measurements/{measId}/welldata?columns=unknownCol", 1000L)).isEmpty();
+        assertThat(getWelldata("/measurements/{measId}/welldata", 1000L)).containsOnlyKeys("wellCol1", "wellCol2", "wellCol3");
+    }
+
+    @Test
+    public void welldataColumnsOfMissingMeasurementGetTest() throws Exception {
+        this.mockMvc.perform(get("/measurements/{measId}/welldata?columns=wellCol1", 9999L))
+                .andExpect(status().isNotFound());
+    }
+
+    private Map<String, List<Double>> getWelldata(String url, long measId) throws Exception {
+        MvcResult mvcResult = this.mockMvc.perform(get(url, measId))
+                .andExpect(status().isOk())
+                .andReturn();
+        return objectMapper.readValue(mvcResult.getResponse().getContentAsString(), new TypeReference<Map<String, List<Double>>>() {});
+    }
 }
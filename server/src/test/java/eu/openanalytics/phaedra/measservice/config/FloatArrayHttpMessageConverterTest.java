@@ -0,0 +1,85 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+public class FloatArrayHttpMessageConverterTest {
+
+    private static final Type SUBWELL_DATA_TYPE = ResolvableType.forClassWithGenerics(Map.class, Integer.class, float[].class).getType();
+    private static final Type WELL_DATA_MAP_TYPE = ResolvableType.forClassWithGenerics(Map.class, String.class, float[].class).getType();
+
+    private final FloatArrayHttpMessageConverter converter = new FloatArrayHttpMessageConverter();
+
+    @Test
+    public void supportedTypes() {
+        assertThat(converter.canWrite(float[].class, float[].class, MediaType.APPLICATION_OCTET_STREAM)).isTrue();
+        assertThat(converter.canWrite(SUBWELL_DATA_TYPE, TreeMap.class, MediaType.APPLICATION_OCTET_STREAM)).isTrue();
+        assertThat(converter.canWrite(WELL_DATA_MAP_TYPE, TreeMap.class, MediaType.APPLICATION_OCTET_STREAM)).isFalse();
+        assertThat(converter.canWrite(float[].class, float[].class, MediaType.APPLICATION_JSON)).isFalse();
+        assertThat(converter.canRead(SUBWELL_DATA_TYPE, null, MediaType.APPLICATION_OCTET_STREAM)).isTrue();
+    }
+
+    @Test
+    public void writeReadWellData() throws IOException {
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+        converter.write(new float[] { 1.5f, Float.NaN }, float[].class, MediaType.APPLICATION_OCTET_STREAM, output);
+        assertThat(output.getBodyAsBytes()).hasSize(2 * Float.BYTES);
+        assertThat(output.getHeaders().getContentLength()).isEqualTo(2 * Float.BYTES);
+
+        Object data = converter.read(float[].class, null, new MockHttpInputMessage(output.getBodyAsBytes()));
+        assertThat(data).isEqualTo(new float[] { 1.5f, Float.NaN });
+    }
+
+    @Test
+    public void rejectTruncatedWellData() {
+        assertThatThrownBy(() -> converter.read(float[].class, null, new MockHttpInputMessage(new byte[6])))
+            .isInstanceOf(HttpMessageNotReadableException.class);
+    }
+
+    @Test
+    public void writeReadSubWellData() throws IOException {
+        Map<Integer, float[]> data = new TreeMap<>();
+        data.put(2, new float[] { 1.0f, 2.0f });
+        data.put(1, new float[] { 3.0f });
+
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+        converter.write(data, SUBWELL_DATA_TYPE, MediaType.APPLICATION_OCTET_STREAM, output);
+
+        @SuppressWarnings("unchecked")
+        Map<Integer, float[]> decoded = (Map<Integer, float[]>) converter.read(SUBWELL_DATA_TYPE, null, new MockHttpInputMessage(output.getBodyAsBytes()));
+        assertThat(decoded.keySet()).containsExactly(1, 2);
+        assertThat(decoded.get(2)).containsExactly(1.0f, 2.0f);
+    }
+}
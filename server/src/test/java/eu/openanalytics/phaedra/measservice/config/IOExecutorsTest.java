@@ -0,0 +1,90 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors.IOExecutor;
+
+public class IOExecutorsTest {
+
+    private IOExecutors ioExecutors;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        ioExecutors = new IOExecutors(8, mock(ObjectProvider.class));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ioExecutors.shutdown();
+    }
+
+    @Test
+    public void concurrencyIsLimitedPerOperation() throws Exception {
+        IOExecutor executor = ioExecutors.getExecutor("test", 2);
+        assertThat(ioExecutors.getExecutor("test", 4)).isSameAs(executor);
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int nr = i;
+            futures.add(executor.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                release.await(5, TimeUnit.SECONDS);
+                running.decrementAndGet();
+                return nr;
+            }));
+        }
+
+        Thread.sleep(100);
+        assertThat(executor.getActiveCount()).isEqualTo(2);
+        assertThat(executor.getQueuedCount()).isEqualTo(4);
+
+        release.countDown();
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(futures.get(i).get(5, TimeUnit.SECONDS)).isEqualTo(i);
+        }
+        assertThat(maxRunning.get()).isEqualTo(2);
+
+        // A slot is released right after its task completes
+        for (int i = 0; i < 50 && executor.getActiveCount() > 0; i++) Thread.sleep(10);
+        assertThat(executor.getActiveCount()).isZero();
+        assertThat(executor.getQueuedCount()).isZero();
+    }
+}
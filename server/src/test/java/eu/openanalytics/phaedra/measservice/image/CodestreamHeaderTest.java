@@ -0,0 +1,87 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class CodestreamHeaderTest {
+
+    @Test
+    public void parseRawCodestream() throws IOException {
+        CodestreamHeader header = CodestreamHeader.parse(createCodestream(2048, 1536, 1, 5));
+        assertThat(header.getWidth()).isEqualTo(2048);
+        assertThat(header.getHeight()).isEqualTo(1536);
+        assertThat(header.getTileWidth()).isEqualTo(512);
+        assertThat(header.getComponents()).isEqualTo(1);
+        assertThat(header.getBitDepth()).isEqualTo(8);
+        assertThat(header.getDecompositionLevels()).isEqualTo(5);
+        assertThat(header.getResolutionLevels()).isEqualTo(6);
+    }
+
+    @Test
+    public void parseJP2File() throws IOException {
+        byte[] codestream = createCodestream(640, 480, 3, 3);
+        ByteBuffer jp2 = ByteBuffer.allocate(12 + 20 + 8 + codestream.length);
+        jp2.putInt(12).putInt(0x6A502020).putInt(0x0D0A870A);
+        jp2.putInt(20).putInt(0x66747970).putInt(0x6A703220).putInt(0).putInt(0x6A703220);
+        jp2.putInt(8 + codestream.length).putInt(0x6A703263).put(codestream);
+
+        CodestreamHeader header = CodestreamHeader.parse(jp2.array());
+        assertThat(header.getWidth()).isEqualTo(640);
+        assertThat(header.getHeight()).isEqualTo(480);
+        assertThat(header.getComponents()).isEqualTo(3);
+        assertThat(header.getResolutionLevels()).isEqualTo(4);
+    }
+
+    @Test
+    public void rejectIncompleteHeader() {
+        byte[] codestream = createCodestream(640, 480, 1, 3);
+        assertThatThrownBy(() -> CodestreamHeader.parse(Arrays.copyOf(codestream, 30))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> CodestreamHeader.parse(new byte[] { 1, 2, 3, 4 })).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] createCodestream(int width, int height, int components, int levels) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 38 + 3 * components + 2 + 12 + 4);
+        buffer.putShort((short) 0xFF4F);
+
+        // SIZ, with an image offset of 10,10 and 512x512 tiles
+        buffer.putShort((short) 0xFF51).putShort((short) (38 + 3 * components)).putShort((short) 0);
+        buffer.putInt(width + 10).putInt(height + 10).putInt(10).putInt(10);
+        buffer.putInt(512).putInt(512).putInt(0).putInt(0);
+        buffer.putShort((short) components);
+        for (int i = 0; i < components; i++) buffer.put((byte) 7).put((byte) 1).put((byte) 1);
+
+        // COD
+        buffer.putShort((short) 0xFF52).putShort((short) 12);
+        buffer.put((byte) 0).put((byte) 0).putShort((short) 1).put((byte) 0).put((byte) levels);
+        buffer.put(new byte[] { 4, 4, 0, 0 });
+
+        buffer.putShort((short) 0xFF90).putShort((short) 10);
+        return buffer.array();
+    }
+}
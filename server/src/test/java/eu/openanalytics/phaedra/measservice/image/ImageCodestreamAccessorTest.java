@@ -0,0 +1,194 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.service.MeasService;
+
+public class ImageCodestreamAccessorTest {
+
+    private static final int CHUNK_SIZE = 10;
+    private static final int MAX_CHUNK_SIZE = 40;
+
+    private final byte[] codestream = new byte[1000];
+    private MeasService measService;
+    private IOExecutors ioExecutors;
+    private ImageChunkCache chunkCache;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        for (int i = 0; i < codestream.length; i++) codestream[i] = (byte) i;
+
+        measService = mock(MeasService.class);
+        when(measService.getImageDataPart(eq(1L), eq(2), eq("ch1"), anyLong(), anyInt())).thenAnswer(inv -> {
+            int offset = (int) (long) inv.getArgument(3);
+            int len = inv.getArgument(4);
+            return Arrays.copyOfRange(codestream, offset, Math.min(codestream.length, offset + len));
+        });
+
+        ioExecutors = new IOExecutors(8, mock(ObjectProvider.class));
+        chunkCache = new ImageChunkCache(measService, ioExecutors, mock(ObjectProvider.class));
+        ReflectionTestUtils.setField(chunkCache, "maxBytes", 1024L * 1024L);
+        ReflectionTestUtils.setField(chunkCache, "minChunkSize", CHUNK_SIZE);
+        ReflectionTestUtils.setField(chunkCache, "maxChunkSize", MAX_CHUNK_SIZE);
+        ReflectionTestUtils.setField(chunkCache, "offHeap", true);
+        ReflectionTestUtils.setField(chunkCache, "fetchThreads", 4);
+        chunkCache.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ioExecutors.shutdown();
+    }
+
+    @Test
+    public void readAcrossChunks() throws IOException {
+        ImageCodestreamAccessor accessor = createAccessor(2);
+        assertThat(accessor.getBytes(8, 14)).isEqualTo(Arrays.copyOfRange(codestream, 8, 22));
+        assertThat(accessor.getBytes(20, 5)).isEqualTo(Arrays.copyOfRange(codestream, 20, 25));
+        assertThat(accessor.getBytes(0, 10)).isEqualTo(Arrays.copyOfRange(codestream, 0, 10));
+        assertThat(accessor.getBytes(995, 5)).isEqualTo(Arrays.copyOfRange(codestream, 995, 1000));
+    }
+
+    @Test
+    public void chunksAreSharedBetweenAccessors() throws IOException {
+        createAccessor(2).getBytes(0, 25);
+        createAccessor(2).getBytes(5, 10);
+
+        // The three adjacent chunks of the first read are fetched with a single request.
+        verify(measService, times(1)).getImageDataPart(eq(1L), eq(2), eq("ch1"), anyLong(), anyInt());
+        assertThat(chunkCache.getStats().hitCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void sequentialReadsGrowReadAhead() throws IOException {
+        ImageAccessStats stats = new ImageAccessStats(codestream.length);
+        ImageCodestreamAccessor accessor = new ImageCodestreamAccessor(1L, 2, "ch1", codestream.length, chunkCache, stats);
+        for (int offset = 0; offset < 200; offset += 8) {
+            assertThat(accessor.getBytes(offset, 8)).isEqualTo(Arrays.copyOfRange(codestream, offset, offset + 8));
+        }
+
+        assertThat(stats.getReads()).isEqualTo(25);
+        assertThat(stats.getSequentialReads()).isEqualTo(24);
+        assertThat(stats.getMaxReadAhead()).isEqualTo(MAX_CHUNK_SIZE);
+        // Without read-ahead, each of the 20 chunks would be a separate request.
+        assertThat(stats.getFetches()).isLessThan(10);
+    }
+
+    @Test
+    public void randomReadsDoNotReadAhead() throws IOException {
+        ImageAccessStats stats = new ImageAccessStats(codestream.length);
+        ImageCodestreamAccessor accessor = new ImageCodestreamAccessor(1L, 2, "ch1", codestream.length, chunkCache, stats);
+        accessor.getBytes(500, 5);
+        accessor.getBytes(100, 5);
+        accessor.getBytes(800, 5);
+
+        assertThat(stats.getSequentialReads()).isZero();
+        assertThat(stats.getMaxReadAhead()).isZero();
+        assertThat(stats.getBytesFetched()).isEqualTo(3 * CHUNK_SIZE);
+    }
+
+    @Test
+    public void smallCodestreamIsFetchedWhole() throws IOException {
+        ReflectionTestUtils.setField(chunkCache, "wholeObjectThreshold", (long) codestream.length);
+        ReflectionTestUtils.setField(chunkCache, "maxChunkSize", codestream.length);
+
+        ImageAccessStats stats = new ImageAccessStats(codestream.length);
+        ImageCodestreamAccessor accessor = new ImageCodestreamAccessor(1L, 2, "ch1", codestream.length, chunkCache, stats);
+        assertThat(accessor.getBytes(500, 5)).isEqualTo(Arrays.copyOfRange(codestream, 500, 505));
+        assertThat(accessor.getBytes(10, 5)).isEqualTo(Arrays.copyOfRange(codestream, 10, 15));
+
+        verify(measService, times(1)).getImageDataPart(eq(1L), eq(2), eq("ch1"), eq(0L), anyInt());
+        assertThat(stats.getWholeObjectFetches()).isEqualTo(1);
+        assertThat(stats.getBytesFetched()).isEqualTo(codestream.length);
+    }
+
+    @Test
+    public void accessStatsAreKeptPerImage() throws IOException {
+        ImageCodestreamAccessorCache accessorCache = new ImageCodestreamAccessorCache();
+        ReflectionTestUtils.setField(accessorCache, "chunkCache", chunkCache);
+
+        accessorCache.getCodestreamAccessor(1L, 2, "ch1", codestream.length).getBytes(0, 5);
+        accessorCache.getCodestreamAccessor(1L, 2, "ch1", codestream.length).getBytes(600, 5);
+
+        assertThat(accessorCache.getAccessStats(1L, 2, "ch1")).hasValueSatisfying(stats -> {
+            assertThat(stats.getReads()).isEqualTo(2);
+            assertThat(stats.getBytesRead()).isEqualTo(10);
+            assertThat(stats.getFetches()).isEqualTo(2);
+        });
+        assertThat(accessorCache.getAccessStats(1L, 3, "ch1")).isEmpty();
+    }
+
+    @Test
+    public void concurrentReadersShareFetch() throws Exception {
+        CountDownLatch fetchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFetch = new CountDownLatch(1);
+        when(measService.getImageDataPart(eq(1L), eq(3), eq("ch1"), anyLong(), anyInt())).thenAnswer(inv -> {
+            fetchStarted.countDown();
+            releaseFetch.await(10, TimeUnit.SECONDS);
+            return Arrays.copyOf(codestream, CHUNK_SIZE);
+        });
+
+        ImageCodestreamAccessor accessor = createAccessor(3);
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> getBytes(accessor, 0, 5));
+        assertThat(fetchStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> getBytes(accessor, 2, 5));
+        releaseFetch.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(Arrays.copyOfRange(codestream, 0, 5));
+        assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(Arrays.copyOfRange(codestream, 2, 7));
+        verify(measService, times(1)).getImageDataPart(eq(1L), eq(3), eq("ch1"), anyLong(), anyInt());
+    }
+
+    private ImageCodestreamAccessor createAccessor(int wellNr) {
+        return new ImageCodestreamAccessor(1L, wellNr, "ch1", codestream.length, chunkCache, new ImageAccessStats(codestream.length));
+    }
+
+    private static byte[] getBytes(ImageCodestreamAccessor accessor, long offset, int len) {
+        try {
+            return accessor.getBytes(offset, len);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
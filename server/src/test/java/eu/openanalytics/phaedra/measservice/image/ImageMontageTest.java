@@ -0,0 +1,86 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class ImageMontageTest {
+
+    @Test
+    public void drawCellsInGrid() throws IOException {
+        ImageMontage montage = new ImageMontage(3, 2, 16);
+        montage.drawCell(0, 0, ImageMontage.decode(createJPEG(64, 64, Color.WHITE)));
+        montage.drawCell(2, 1, ImageMontage.decode(createJPEG(32, 32, Color.WHITE)));
+
+        BufferedImage result = ImageMontage.decode(montage.toJPEG());
+        assertThat(result.getWidth()).isEqualTo(48);
+        assertThat(result.getHeight()).isEqualTo(32);
+        assertThat(brightness(result, 8, 8)).isGreaterThan(200);
+        assertThat(brightness(result, 40, 24)).isGreaterThan(200);
+        assertThat(brightness(result, 24, 8)).isLessThan(50);
+    }
+
+    @Test
+    public void thumbnailKeepsAspectRatio() throws IOException {
+        ImageMontage montage = new ImageMontage(1, 1, 32);
+        montage.drawCell(0, 0, ImageMontage.decode(createJPEG(64, 16, Color.WHITE)));
+
+        BufferedImage result = ImageMontage.decode(montage.toJPEG());
+        // A 32x8 band, centered vertically.
+        assertThat(brightness(result, 16, 16)).isGreaterThan(200);
+        assertThat(brightness(result, 16, 2)).isLessThan(50);
+        assertThat(brightness(result, 16, 29)).isLessThan(50);
+    }
+
+    @Test
+    public void rejectCellOutsideMontage() {
+        ImageMontage montage = new ImageMontage(2, 2, 8);
+        assertThatThrownBy(() -> montage.drawCell(2, 0, new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static byte[] createJPEG(int width, int height, Color color) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static int brightness(BufferedImage image, int x, int y) {
+        return new Color(image.getRGB(x, y)).getGreen();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig;
+import eu.openanalytics.phaedra.imaging.render.ImageRenderConfig.ChannelRenderConfig;
+
+public class RenderedImageCacheTest {
+
+    @TempDir
+    Path diskDir;
+
+    @Test
+    public void keyDependsOnResolvedConfig() throws IOException {
+        RenderedImageCache cache = createCache(1024, null, 0);
+        List<String> channels = Arrays.asList("ch1", "ch2");
+        List<String> versions = Arrays.asList("etag1", "etag2");
+
+        String key = cache.computeKey(1L, 2, channels, versions, createConfig("ch1", "ch2"));
+        assertThat(key).hasSize(64).isEqualTo(cache.computeKey(1L, 2, channels, versions, createConfig("ch1", "ch2")));
+        assertThat(cache.computeKey(1L, 2, channels, versions, createConfig("ch2", "ch1"))).isNotEqualTo(key);
+        assertThat(cache.computeKey(1L, 3, channels, versions, createConfig("ch1", "ch2"))).isNotEqualTo(key);
+        assertThat(cache.computeKey(1L, 2, channels, Arrays.asList("etag1", "etag3"), createConfig("ch1", "ch2"))).isNotEqualTo(key);
+    }
+
+    @Test
+    public void memoryTier() throws IOException {
+        RenderedImageCache cache = createCache(1024, null, 0);
+        cache.put("abc", new byte[] { 1, 2, 3 });
+        assertThat(cache.get("abc")).hasValue(new byte[] { 1, 2, 3 });
+        assertThat(cache.get("def")).isEmpty();
+    }
+
+    @Test
+    public void diskTierSurvivesRestart() throws IOException {
+        createCache(1024, diskDir, 1024).put("abcdef", new byte[] { 1, 2, 3 });
+
+        RenderedImageCache restarted = createCache(1024, diskDir, 1024);
+        assertThat(restarted.get("abcdef")).hasValue(new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void diskTierIsBounded() throws IOException {
+        RenderedImageCache cache = createCache(0, diskDir, 250);
+        for (int i = 0; i < 10; i++) {
+            cache.put(String.format("key%02d", i), new byte[100]);
+        }
+
+        try (Stream<Path> files = Files.walk(diskDir)) {
+            assertThat(files.filter(Files::isRegularFile).count()).isLessThanOrEqualTo(2);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RenderedImageCache createCache(long maxBytes, Path diskDir, long diskMaxBytes) throws IOException {
+        RenderedImageCache cache = new RenderedImageCache(mock(ObjectProvider.class));
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "diskDir", diskDir == null ? "" : diskDir.toString());
+        ReflectionTestUtils.setField(cache, "diskMaxBytes", diskMaxBytes);
+        cache.init();
+        return cache;
+    }
+
+    private ImageRenderConfig createConfig(String... channels) {
+        ImageRenderConfig config = new ImageRenderConfig();
+        config.channelConfigs = Arrays.stream(channels).map(ChannelRenderConfig::new).toArray(ChannelRenderConfig[]::new);
+        return config;
+    }
+}
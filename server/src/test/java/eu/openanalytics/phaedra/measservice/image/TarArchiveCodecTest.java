@@ -0,0 +1,94 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TarArchiveCodecTest {
+
+    @Test
+    public void writeArchive() throws IOException {
+        byte[] content1 = new byte[700];
+        Arrays.fill(content1, (byte) 1);
+        byte[] content2 = new byte[512];
+        Arrays.fill(content2, (byte) 2);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TarArchiveCodec.writeEntryHeader(output, "dapi", content1.length, 1_600_000_000_000L);
+        output.write(content1);
+        TarArchiveCodec.writeEntryPadding(output, content1.length);
+        TarArchiveCodec.writeEntryHeader(output, "gfp", content2.length, 1_600_000_000_000L);
+        output.write(content2);
+        TarArchiveCodec.writeEntryPadding(output, content2.length);
+        TarArchiveCodec.writeEnd(output);
+
+        byte[] archive = output.toByteArray();
+        assertThat(archive).hasSize((int) TarArchiveCodec.getArchiveSize(List.of(700L, 512L)));
+        assertThat(archive).hasSize(512 + 1024 + 512 + 512 + 1024);
+
+        assertThat(new String(archive, 0, 4, StandardCharsets.US_ASCII)).isEqualTo("dapi");
+        assertThat(new String(archive, 124, 11, StandardCharsets.US_ASCII)).isEqualTo(String.format("%011o", 700));
+        assertThat(new String(archive, 257, 5, StandardCharsets.US_ASCII)).isEqualTo("ustar");
+        assertThat(archive[512]).isEqualTo((byte) 1);
+        assertThat(archive[512 + 700]).isEqualTo((byte) 0);
+        assertThat(new String(archive, 1536, 3, StandardCharsets.US_ASCII)).isEqualTo("gfp");
+        assertThat(archive[2048]).isEqualTo((byte) 2);
+    }
+
+    @Test
+    public void headerChecksum() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TarArchiveCodec.writeEntryHeader(output, "dapi", 123, 0);
+        byte[] header = output.toByteArray();
+
+        long expected = Long.parseLong(new String(header, 148, 6, StandardCharsets.US_ASCII), 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long actual = 0;
+        for (byte b: header) actual += (b & 0xFF);
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @Test
+    public void rejectLongNames() {
+        String name = "x".repeat(101);
+        assertThatThrownBy(() -> TarArchiveCodec.writeEntryHeader(new ByteArrayOutputStream(), name, 1, 0)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void validEntryNames() {
+        assertThat(TarArchiveCodec.isValidEntryName("dapi")).isTrue();
+        assertThat(TarArchiveCodec.isValidEntryName("x".repeat(100))).isTrue();
+        assertThat(TarArchiveCodec.isValidEntryName("\u00e9".repeat(51))).isFalse();
+        assertThat(TarArchiveCodec.isValidEntryName("")).isFalse();
+        assertThat(TarArchiveCodec.isValidEntryName("dapi/gfp")).isFalse();
+        assertThat(TarArchiveCodec.isValidEntryName("dapi\0")).isFalse();
+        assertThatThrownBy(() -> TarArchiveCodec.writeEntryHeader(new ByteArrayOutputStream(), "../dapi", 1, 0)).isInstanceOf(IOException.class);
+    }
+}
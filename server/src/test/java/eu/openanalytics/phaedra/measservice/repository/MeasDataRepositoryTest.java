@@ -0,0 +1,266 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.dto.codec.SubWellColumnCodec;
+import eu.openanalytics.phaedra.measservice.model.ImageManifest;
+import eu.openanalytics.phaedra.measservice.repository.dao.ImageManifestDAO;
+import eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreAsyncDAO;
+import eu.openanalytics.phaedra.measservice.repository.dao.MeasObjectStoreDAO;
+
+public class MeasDataRepositoryTest {
+
+    private MeasObjectStoreDAO objectStoreDAO;
+    private ImageManifestDAO imageManifestDAO;
+    private IOExecutors ioExecutors;
+    private MeasDataRepository repository;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        objectStoreDAO = mock(MeasObjectStoreDAO.class);
+        imageManifestDAO = mock(ImageManifestDAO.class);
+        when(imageManifestDAO.findByWell(1L, 5)).thenReturn(Collections.emptyList());
+        ioExecutors = new IOExecutors(8, mock(ObjectProvider.class));
+        repository = new MeasDataRepository();
+        ReflectionTestUtils.setField(repository, "ioExecutors", ioExecutors);
+        ReflectionTestUtils.setField(repository, "objectStoreDAO", objectStoreDAO);
+        ReflectionTestUtils.setField(repository, "imageManifestDAO", imageManifestDAO);
+        ReflectionTestUtils.setField(repository, "manifestCacheMaxEntries", 100L);
+        ReflectionTestUtils.setField(repository, "manifestCacheTtl", 60L);
+        ReflectionTestUtils.setField(repository, "subWellFetchConcurrency", 2);
+        ReflectionTestUtils.setField(repository, "subWellUploadConcurrency", 2);
+        ReflectionTestUtils.setField(repository, "subWellColumnIndexCacheMaxEntries", 100L);
+        ReflectionTestUtils.setField(repository, "subWellColumnIndexCacheTtl", 60L);
+        ReflectionTestUtils.setField(repository, "imageMetadataConcurrency", 4);
+        ReflectionTestUtils.setField(repository, "imageDataConcurrency", 2);
+        repository.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ioExecutors.shutdown();
+    }
+
+    @Test
+    public void getImageDataSizesKeepsChannelOrder() throws IOException {
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(eq(1L), eq("imagedata.5.dapi"))).thenReturn(OptionalLong.of(100));
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(eq(1L), eq("imagedata.5.gfp"))).thenReturn(OptionalLong.empty());
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(eq(1L), eq("imagedata.5.cy5"))).thenReturn(OptionalLong.of(300));
+
+        Map<String, Long> sizes = repository.getImageDataSizes(1L, 5, Arrays.asList("cy5", "gfp", "dapi"));
+        assertThat(sizes).containsExactly(Map.entry("cy5", 300L), Map.entry("dapi", 100L));
+    }
+
+    @Test
+    public void getImageDataVersionsKeepsChannelOrder() throws IOException {
+        when(objectStoreDAO.getMeasObjectVersionIfPresent(eq(1L), eq("imagedata.5.dapi"))).thenReturn(Optional.of("etag-dapi"));
+        when(objectStoreDAO.getMeasObjectVersionIfPresent(eq(1L), eq("imagedata.5.gfp"))).thenReturn(Optional.empty());
+        when(objectStoreDAO.getMeasObjectVersionIfPresent(eq(1L), eq("imagedata.5.cy5"))).thenReturn(Optional.of("etag-cy5"));
+
+        Map<String, String> versions = repository.getImageDataVersions(1L, 5, Arrays.asList("cy5", "gfp", "dapi"));
+        assertThat(versions).containsExactly(Map.entry("cy5", "etag-cy5"), Map.entry("dapi", "etag-dapi"));
+    }
+
+    @Test
+    public void getImageDataVersionsUsesManifestHashes() throws IOException {
+        ImageManifest manifest = new ImageManifest();
+        manifest.setMeasId(1L);
+        manifest.setWellNr(5);
+        manifest.setChannel("dapi");
+        manifest.setByteSize(100);
+        manifest.setContentHash("hash-dapi");
+        when(imageManifestDAO.findByWell(1L, 5)).thenReturn(List.of(manifest));
+        when(objectStoreDAO.getMeasObjectVersionIfPresent(eq(1L), eq("imagedata.5.gfp"))).thenReturn(Optional.of("etag-gfp"));
+
+        Map<String, String> versions = repository.getImageDataVersions(1L, 5, Arrays.asList("dapi", "gfp"));
+        assertThat(versions).containsExactly(Map.entry("dapi", "hash-dapi"), Map.entry("gfp", "etag-gfp"));
+        verify(objectStoreDAO, never()).getMeasObjectVersionIfPresent(eq(1L), eq("imagedata.5.dapi"));
+    }
+
+    @Test
+    public void putSubWellDataPerWellUploadsEachWell() throws IOException {
+        float[] values1 = new float[] { 1.0f };
+        float[] values2 = new float[] { 2.0f, 3.0f };
+        repository.putSubWellDataPerWell(1L, Map.of("area", Map.of(1, values1, 2, values2)));
+
+        verify(objectStoreDAO).putMeasObject(1L, "subwelldata.area.1", values1);
+        verify(objectStoreDAO).putMeasObject(1L, "subwelldata.area.2", values2);
+    }
+
+    @Test
+    public void putSubWellDataPerWellReportsFailedUploads() throws IOException {
+        doThrow(new IOException("upload failed")).when(objectStoreDAO).putMeasObject(eq(1L), eq("subwelldata.area.2"), any());
+
+        assertThatThrownBy(() -> repository.putSubWellDataPerWell(1L, Map.of("area", Map.of(1, new float[1], 2, new float[1]))))
+            .isInstanceOf(RecoverableDataAccessException.class);
+    }
+
+    @Test
+    public void getImageDataSizesUsesManifests() throws IOException {
+        ImageManifest manifest = new ImageManifest();
+        manifest.setMeasId(1L);
+        manifest.setWellNr(5);
+        manifest.setChannel("dapi");
+        manifest.setByteSize(100);
+        when(imageManifestDAO.findByWell(1L, 5)).thenReturn(List.of(manifest));
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(eq(1L), eq("imagedata.5.gfp"))).thenReturn(OptionalLong.of(200));
+
+        Map<String, Long> sizes = repository.getImageDataSizes(1L, 5, Arrays.asList("dapi", "gfp"));
+        assertThat(sizes).containsExactly(Map.entry("dapi", 100L), Map.entry("gfp", 200L));
+        verify(objectStoreDAO, never()).getMeasObjectSizeIfPresent(eq(1L), eq("imagedata.5.dapi"));
+    }
+
+    @Test
+    public void putImageDataRecordsManifest() throws IOException {
+        byte[] data = new byte[] { 1, 2, 3 };
+        repository.putImageData(1L, 5, "dapi", data);
+
+        ArgumentCaptor<ImageManifest> captor = ArgumentCaptor.forClass(ImageManifest.class);
+        verify(imageManifestDAO).save(captor.capture());
+        assertThat(captor.getValue().getByteSize()).isEqualTo(3L);
+        assertThat(captor.getValue().getContentHash()).hasSize(64);
+        assertThat(captor.getValue().getWidth()).isNull();
+
+        // Served from the cache, without further lookups
+        assertThat(repository.getImageDataSize(1L, 5, "dapi")).isEqualTo(3L);
+        verify(imageManifestDAO, never()).find(1L, 5, "dapi");
+        verify(objectStoreDAO, never()).getMeasObjectSizeIfPresent(eq(1L), anyString());
+    }
+
+    @Test
+    public void putSubWellColumnReplacesPerWellObjects() throws IOException {
+        when(objectStoreDAO.listMeasObjects(1L, "subwelldata.area.")).thenReturn(new String[] { "subwelldata.area.1", "subwelldata.area.2" });
+
+        repository.putSubWellData(1L, "area", Map.of(0, new float[] { 1.0f }, 1, new float[] { 2.0f }));
+
+        verify(objectStoreDAO).putMeasObjectRaw(eq(1L), eq("subwellcolumn.area"), any());
+        verify(objectStoreDAO).deleteMeasObjects(1L, new String[] { "subwelldata.area.1", "subwelldata.area.2" });
+    }
+
+    @Test
+    public void subWellColumnObjectTakesPrecedence() throws IOException {
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(1L, "subwellcolumn.area")).thenReturn(OptionalLong.of(100));
+        when(objectStoreDAO.getMeasObjectSizeIfPresent(1L, "subwellcolumn.size")).thenReturn(OptionalLong.empty());
+
+        assertThat(repository.hasSubWellColumnData(1L, "area")).isTrue();
+        assertThat(repository.hasSubWellColumnData(1L, "size")).isFalse();
+    }
+
+    @Test
+    public void subWellColumnIndexIsCached() throws IOException {
+        byte[] column = SubWellColumnCodec.encode(new TreeMap<>(Map.of(1, new float[] { 1.0f, 2.0f }, 2, new float[] { 3.0f })));
+        when(objectStoreDAO.getMeasObjectRawIfPresent(eq(1L), eq("subwellcolumn.area"), eq(0L), anyInt())).thenReturn(Optional.of(column));
+        when(objectStoreDAO.getMeasObjectRaw(eq(1L), eq("subwellcolumn.area"), anyLong(), anyInt())).thenAnswer(inv -> {
+            int offset = (int) (long) inv.getArgument(2);
+            return Arrays.copyOfRange(column, offset, offset + (int) inv.getArgument(3));
+        });
+
+        assertThat(repository.getSubWellData(1L, 1, "area")).containsExactly(1.0f, 2.0f);
+        assertThat(repository.getSubWellData(1L, 2, "area")).containsExactly(3.0f);
+        verify(objectStoreDAO, times(1)).getMeasObjectRawIfPresent(eq(1L), eq("subwellcolumn.area"), eq(0L), anyInt());
+        verify(objectStoreDAO, times(2)).getMeasObjectRaw(eq(1L), eq("subwellcolumn.area"), anyLong(), anyInt());
+    }
+
+    @Test
+    public void missingSubWellColumnIsCached() throws IOException {
+        when(objectStoreDAO.getMeasObjectRawIfPresent(eq(1L), eq("subwellcolumn.area"), eq(0L), anyInt())).thenReturn(Optional.empty());
+        when(objectStoreDAO.getMeasObjectIfPresent(1L, "subwelldata.area.1")).thenReturn(Optional.of(new float[] { 1.0f }));
+        when(objectStoreDAO.getMeasObjectIfPresent(1L, "subwelldata.area.2")).thenReturn(Optional.of(new float[] { 2.0f }));
+
+        assertThat(repository.getSubWellData(1L, 1, "area")).containsExactly(1.0f);
+        assertThat(repository.getSubWellData(1L, 2, "area")).containsExactly(2.0f);
+        verify(objectStoreDAO, times(1)).getMeasObjectRawIfPresent(eq(1L), eq("subwellcolumn.area"), eq(0L), anyInt());
+    }
+
+    @Test
+    public void subWellColumnSavedAfterCachedAbsenceIsFound() throws IOException {
+        byte[] column = SubWellColumnCodec.encode(new TreeMap<>(Map.of(1, new float[] { 1.0f })));
+        when(objectStoreDAO.getMeasObjectRawIfPresent(eq(1L), eq("subwellcolumn.area"), eq(0L), anyInt())).thenReturn(Optional.empty(), Optional.of(column));
+        when(objectStoreDAO.getMeasObjectIfPresent(eq(1L), anyString())).thenReturn(Optional.empty());
+        when(objectStoreDAO.getMeasObjectRaw(eq(1L), eq("subwellcolumn.area"), anyLong(), anyInt())).thenAnswer(inv -> {
+            int offset = (int) (long) inv.getArgument(2);
+            return Arrays.copyOfRange(column, offset, offset + (int) inv.getArgument(3));
+        });
+
+        assertThat(repository.getSubWellData(1L, 2, "area")).isNull();
+        assertThat(repository.getSubWellData(1L, 1, "area")).containsExactly(1.0f);
+    }
+
+    @Test
+    public void getImageDataUsesAsyncClient() throws IOException {
+        MeasObjectStoreAsyncDAO asyncObjectStoreDAO = mock(MeasObjectStoreAsyncDAO.class);
+        ReflectionTestUtils.setField(repository, "asyncObjectStoreDAO", asyncObjectStoreDAO);
+        when(asyncObjectStoreDAO.listMeasObjects(1L, "imagedata.5.")).thenReturn(CompletableFuture.completedFuture(new String[] { "imagedata.5.dapi", "imagedata.5.gfp" }));
+        when(asyncObjectStoreDAO.getMeasObjectRaw(1L, "imagedata.5.dapi")).thenReturn(CompletableFuture.completedFuture(new byte[] { 1 }));
+        when(asyncObjectStoreDAO.getMeasObjectRaw(1L, "imagedata.5.gfp")).thenReturn(CompletableFuture.completedFuture(new byte[] { 2 }));
+
+        Map<String, byte[]> data = repository.getImageData(1L, 5);
+        assertThat(data).containsOnlyKeys("dapi", "gfp");
+        assertThat(data.get("gfp")).containsExactly(2);
+        verify(objectStoreDAO, never()).getMeasObjectRaw(eq(1L), anyString());
+    }
+
+    @Test
+    public void putSubWellDataPerWellReportsFailedAsyncUploads() {
+        MeasObjectStoreAsyncDAO asyncObjectStoreDAO = mock(MeasObjectStoreAsyncDAO.class);
+        ReflectionTestUtils.setField(repository, "asyncObjectStoreDAO", asyncObjectStoreDAO);
+        when(asyncObjectStoreDAO.putMeasObject(eq(1L), eq("subwelldata.area.1"), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(asyncObjectStoreDAO.putMeasObject(eq(1L), eq("subwelldata.area.2"), any())).thenReturn(CompletableFuture.failedFuture(new IOException("upload failed")));
+
+        assertThatThrownBy(() -> repository.putSubWellDataPerWell(1L, Map.of("area", Map.of(1, new float[1], 2, new float[1]))))
+            .isInstanceOf(RecoverableDataAccessException.class)
+            .hasCauseInstanceOf(IOException.class);
+    }
+}
@@ -22,20 +22,25 @@ package eu.openanalytics.phaedra.measservice.repository;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.jdbc.Sql;
-import org.testcontainers.containers.JdbcDatabaseContainer;
-import org.testcontainers.containers.PostgreSQLContainer;
-import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import com.amazonaws.services.s3.AmazonS3;
+
 import eu.openanalytics.phaedra.measservice.model.Measurement;
 import eu.openanalytics.phaedra.measservice.support.Containers;
 
@@ -48,12 +53,8 @@ public class MeasRepositoryTest {
     @Autowired
     private MeasRepository measRepository;
 
-    @Container
-    private static JdbcDatabaseContainer postgreSQLContainer = new PostgreSQLContainer("postgres:13-alpine")
-            .withDatabaseName("phaedra2")
-            .withUrlParam("currentSchema","measservice")
-            .withPassword("inmemory")
-            .withUsername("inmemory");
+    @MockBean
+    private AmazonS3 s3Client;
 
     @DynamicPropertySource
     static void registerPgProperties(DynamicPropertyRegistry registry) {
@@ -80,4 +81,88 @@ public class MeasRepositoryTest {
         assertThat(measurements.isEmpty()).isFalse();
         assertThat(measurements.size()).isEqualTo(3);
     }
+
+    @Test
+    public void findWellCountTest() {
+        assertThat(measRepository.findWellCount(1000L)).contains(384);
+        assertThat(measRepository.findWellCount(9999L)).isEmpty();
+    }
+
+    @Test
+    public void addWellColumnsTest() {
+        assertThat(measRepository.addWellColumns(1000L, new String[] { "wellCol2", "wellCol5", "wellCol0" })).isEqualTo(1);
+        assertThat(measRepository.addWellColumns(1000L, new String[] { "wellCol5", "wellCol6", "wellCol6" })).isEqualTo(1);
+
+        assertThat(measRepository.findById(1000L).get().getWellColumns())
+            .containsExactly("wellCol0", "wellCol1", "wellCol2", "wellCol3", "wellCol4", "wellCol5", "wellCol6");
+    }
+
+    @Test
+    public void addKnownWellColumnsTest() {
+        assertThat(measRepository.addWellColumns(1000L, new String[] { "wellCol1", "wellCol3" })).isEqualTo(0);
+        assertThat(measRepository.findById(1000L).get().getWellColumns())
+            .containsExactly("wellCol1", "wellCol2", "wellCol3", "wellCol4");
+    }
+
+    @Test
+    public void addSubWellColumnsTest() {
+        assertThat(measRepository.addSubWellColumns(1000L, new String[] { "subWellCol5", "subWellCol1" })).isEqualTo(1);
+        assertThat(measRepository.addSubWellColumns(1000L, new String[] { "subWellCol5" })).isEqualTo(0);
+
+        assertThat(measRepository.findById(1000L).get().getSubWellColumns())
+            .containsExactly("subWellCol1", "subWellCol2", "subWellCol3", "subWellCol4", "subWellCol5");
+    }
+
+    @Test
+    public void addImageChannelsTest() {
+        assertThat(measRepository.addImageChannels(1000L, new String[] { "DAPI", "FITC" })).isEqualTo(1);
+        assertThat(measRepository.addImageChannels(1000L, new String[] { "TRITC", "DAPI", "Cy5", "TRITC" })).isEqualTo(1);
+        assertThat(measRepository.addImageChannels(1000L, new String[] { "FITC" })).isEqualTo(0);
+
+        assertThat(measRepository.findById(1000L).get().getImageChannels())
+            .containsExactly("DAPI", "FITC", "TRITC", "Cy5");
+    }
+
+    @Test
+    public void addColumnsToMissingMeasurementTest() {
+        assertThat(measRepository.addWellColumns(9999L, new String[] { "wellCol1" })).isEqualTo(0);
+        assertThat(measRepository.addSubWellColumns(9999L, new String[] { "subWellCol1" })).isEqualTo(0);
+        assertThat(measRepository.addImageChannels(9999L, new String[] { "DAPI" })).isEqualTo(0);
+        assertThat(measRepository.findById(9999L)).isEmpty();
+    }
+
+    @Test
+    public void addColumnsConcurrentlyTest() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                // Each thread adds two columns, one of which is also added by the next thread.
+                String[] columns = { "newCol" + i, "newCol" + ((i + 1) % threads) };
+                results.add(executor.submit(() -> {
+                    start.await();
+                    measRepository.addWellColumns(2000L, columns);
+                    measRepository.addSubWellColumns(2000L, columns);
+                    measRepository.addImageChannels(2000L, columns);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result: results) result.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        Measurement meas = measRepository.findById(2000L).get();
+        assertThat(meas.getWellColumns()).hasSize(4 + threads).doesNotHaveDuplicates();
+        assertThat(meas.getSubWellColumns()).hasSize(4 + threads).doesNotHaveDuplicates();
+        assertThat(meas.getImageChannels()).hasSize(threads).doesNotHaveDuplicates();
+        for (int i = 0; i < threads; i++) {
+            assertThat(meas.getWellColumns()).contains("newCol" + i);
+            assertThat(meas.getSubWellColumns()).contains("newCol" + i);
+            assertThat(meas.getImageChannels()).contains("newCol" + i);
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class MeasObjectCodecTest {
+
+    @Test
+    public void encodeDecodePrimitiveArrays() throws IOException {
+        assertThat(roundTrip(new byte[] { 1, -2, 3 })).isEqualTo(new byte[] { 1, -2, 3 });
+        assertThat(roundTrip(new int[] { 1, -2, Integer.MAX_VALUE })).isEqualTo(new int[] { 1, -2, Integer.MAX_VALUE });
+        assertThat(roundTrip(new float[] { 1.5f, Float.NaN })).isEqualTo(new float[] { 1.5f, Float.NaN });
+        assertThat(roundTrip(new double[] { 1.5, -0.25 })).isEqualTo(new double[] { 1.5, -0.25 });
+        assertThat(roundTrip(new float[0])).isEqualTo(new float[0]);
+    }
+
+    @Test
+    public void encodeDecodeLargeArray() throws IOException {
+        // Larger than a single read chunk
+        float[] values = new float[100_000];
+        IntStream.range(0, values.length).forEach(i -> values[i] = i * 0.5f);
+        assertThat(roundTrip(values)).isEqualTo(values);
+    }
+
+    @Test
+    public void encodedSizeHasNoOverhead() throws IOException {
+        assertThat(MeasObjectCodec.encode(new float[10])).hasSize(12 + 10 * Float.BYTES);
+    }
+
+    @Test
+    public void decodeLegacySerializedArray() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(os)) {
+            oos.writeObject(new float[] { 1.0f, 2.0f });
+        }
+        Object decoded = MeasObjectCodec.decode(new ByteArrayInputStream(os.toByteArray()));
+        assertThat(decoded).isEqualTo(new float[] { 1.0f, 2.0f });
+    }
+
+    @Test
+    public void decodeRejectsCountLargerThanObject() throws IOException {
+        byte[] encoded = MeasObjectCodec.encode(new float[] { 1.0f, 2.0f });
+        ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN).putInt(8, Integer.MAX_VALUE);
+        assertThatThrownBy(() -> MeasObjectCodec.decode(new ByteArrayInputStream(encoded), encoded.length))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Corrupt object header");
+    }
+
+    @Test
+    public void decodeRejectsTruncatedObject() throws IOException {
+        byte[] encoded = Arrays.copyOf(MeasObjectCodec.encode(new int[] { 1, 2, 3 }), 12 + 2 * Integer.BYTES);
+        assertThatThrownBy(() -> MeasObjectCodec.decode(new ByteArrayInputStream(encoded), encoded.length))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Corrupt object header");
+    }
+
+    @Test
+    public void decodeRejectsNegativeCount() throws IOException {
+        byte[] encoded = MeasObjectCodec.encode(new double[] { 1.0 });
+        ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN).putInt(8, -1);
+        assertThatThrownBy(() -> MeasObjectCodec.decode(new ByteArrayInputStream(encoded)))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Corrupt object header");
+    }
+
+    private Object roundTrip(Object value) throws IOException {
+        byte[] encoded = MeasObjectCodec.encode(value);
+        Object decoded = MeasObjectCodec.decode(new ByteArrayInputStream(encoded), encoded.length);
+        assertThat(MeasObjectCodec.decode(new ByteArrayInputStream(encoded))).isEqualTo(decoded);
+        return decoded;
+    }
+}
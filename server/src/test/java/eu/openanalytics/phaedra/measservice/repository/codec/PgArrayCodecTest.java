@@ -0,0 +1,70 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class PgArrayCodecTest {
+
+    @Test
+    public void decodeFloat8Array() throws IOException {
+        ByteBuffer buffer = makeHeader(PgArrayCodec.OID_FLOAT8, 3, 8 + 3 * 12);
+        buffer.putInt(8).putDouble(1.5);
+        buffer.putInt(-1);
+        buffer.putInt(8).putDouble(-2.25);
+        assertThat(PgArrayCodec.decodeFloatArray(buffer.array())).containsExactly(1.5f, Float.NaN, -2.25f);
+    }
+
+    @Test
+    public void decodeFloat4Array() throws IOException {
+        ByteBuffer buffer = makeHeader(PgArrayCodec.OID_FLOAT4, 2, 2 * 8);
+        buffer.putInt(4).putFloat(3.0f);
+        buffer.putInt(4).putFloat(Float.NaN);
+        assertThat(PgArrayCodec.decodeFloatArray(buffer.array())).containsExactly(3.0f, Float.NaN);
+    }
+
+    @Test
+    public void decodeEmptyArray() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12).putInt(0).putInt(0).putInt(PgArrayCodec.OID_FLOAT8);
+        assertThat(PgArrayCodec.decodeFloatArray(buffer.array())).isEmpty();
+    }
+
+    @Test
+    public void decodeInvalidArray() {
+        ByteBuffer buffer = makeHeader(PgArrayCodec.OID_FLOAT8, 2, 12);
+        buffer.putInt(8).putDouble(1.0);
+        assertThatThrownBy(() -> PgArrayCodec.decodeFloatArray(buffer.array())).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> PgArrayCodec.decodeFloatArray(makeHeader(23, 0, 0).array())).isInstanceOf(IOException.class);
+    }
+
+    private ByteBuffer makeHeader(int elementOid, int count, int valueBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(20 + valueBytes);
+        buffer.putInt(1).putInt(0).putInt(elementOid);
+        buffer.putInt(count).putInt(1);
+        return buffer;
+    }
+}
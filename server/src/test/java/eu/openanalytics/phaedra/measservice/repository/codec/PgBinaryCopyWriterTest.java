@@ -0,0 +1,83 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class PgBinaryCopyWriterTest {
+
+    @Test
+    public void writeTuple() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PgBinaryCopyWriter writer = new PgBinaryCopyWriter(os);
+        writer.writeHeader();
+        writer.startTuple(3);
+        writer.writeLong(42L);
+        writer.writeText("col");
+        writer.writeFloatArray(new float[] { 1.5f, Float.NaN }, PgArrayCodec.OID_FLOAT8);
+        writer.writeTrailer();
+
+        ByteBuffer buffer = ByteBuffer.wrap(os.toByteArray());
+        byte[] signature = new byte[11];
+        buffer.get(signature);
+        assertThat(new String(signature, 0, 5, StandardCharsets.US_ASCII)).isEqualTo("PGCOP");
+        assertThat(buffer.getInt()).isZero();
+        assertThat(buffer.getInt()).isZero();
+
+        assertThat(buffer.getShort()).isEqualTo((short) 3);
+        assertThat(buffer.getInt()).isEqualTo(8);
+        assertThat(buffer.getLong()).isEqualTo(42L);
+        assertThat(buffer.getInt()).isEqualTo(3);
+        byte[] text = new byte[3];
+        buffer.get(text);
+        assertThat(new String(text, StandardCharsets.UTF_8)).isEqualTo("col");
+
+        int arrayLength = buffer.getInt();
+        byte[] array = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.position() + arrayLength);
+        assertThat(PgArrayCodec.decodeFloatArray(array)).containsExactly(1.5f, Float.NaN);
+        buffer.position(buffer.position() + arrayLength);
+
+        assertThat(buffer.getShort()).isEqualTo((short) -1);
+        assertThat(buffer.hasRemaining()).isFalse();
+    }
+
+    @Test
+    public void writeEmptyFloat4Array() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PgBinaryCopyWriter writer = new PgBinaryCopyWriter(os);
+        writer.writeFloatArray(new float[0], PgArrayCodec.OID_FLOAT4);
+        writer.writeTrailer();
+
+        ByteBuffer buffer = ByteBuffer.wrap(os.toByteArray());
+        int arrayLength = buffer.getInt();
+        assertThat(arrayLength).isEqualTo(12);
+        byte[] array = Arrays.copyOfRange(buffer.array(), 4, 4 + arrayLength);
+        assertThat(PgArrayCodec.decodeFloatArray(array)).isEmpty();
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import eu.openanalytics.phaedra.measservice.config.IOExecutors;
+import eu.openanalytics.phaedra.measservice.repository.codec.MeasObjectCodec;
+
+public class MeasObjectStoreDAOTest {
+
+    private static final long MEAS_ID = 1000;
+
+    private AmazonS3 s3Client;
+    private IOExecutors ioExecutors;
+    private MeasObjectStoreDAO dao;
+
+    @BeforeEach
+    void before() {
+        s3Client = mock(AmazonS3.class);
+        when(s3Client.doesBucketExistV2("test-bucket")).thenReturn(true);
+        ioExecutors = new IOExecutors(8, mock(ObjectProvider.class));
+
+        dao = new MeasObjectStoreDAO();
+        ReflectionTestUtils.setField(dao, "s3Client", s3Client);
+        ReflectionTestUtils.setField(dao, "ioExecutors", ioExecutors);
+        ReflectionTestUtils.setField(dao, "bucketName", "test-bucket");
+        ReflectionTestUtils.setField(dao, "uploadMaxTries", 2);
+        ReflectionTestUtils.setField(dao, "uploadRetryDelayMs", 0);
+        ReflectionTestUtils.setField(dao, "multipartThreshold", 16L);
+        ReflectionTestUtils.setField(dao, "multipartPartSize", 5);
+        ReflectionTestUtils.setField(dao, "multipartConcurrency", 3);
+        ReflectionTestUtils.setField(dao, "deleteConcurrency", 2);
+        dao.init();
+
+        InitiateMultipartUploadResult initResult = new InitiateMultipartUploadResult();
+        initResult.setUploadId("upload-1");
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initResult);
+    }
+
+    @AfterEach
+    void after() {
+        ioExecutors.shutdown();
+    }
+
+    @Test
+    public void existingObjectIsReturned() throws IOException {
+        byte[] encoded = MeasObjectCodec.encode(new float[] { 1.0f, 2.0f });
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(inv -> makeObject(encoded));
+        when(s3Client.getObjectMetadata("test-bucket", MeasObjectStoreDAO.makeS3Key(MEAS_ID, "key"))).thenReturn(makeMetadata(encoded.length));
+
+        assertThat(dao.getMeasObjectIfPresent(MEAS_ID, "key")).contains(new float[] { 1.0f, 2.0f });
+        assertThat(dao.getMeasObjectRawIfPresent(MEAS_ID, "key")).contains(encoded);
+        assertThat(dao.getMeasObjectSizeIfPresent(MEAS_ID, "key")).hasValue(encoded.length);
+    }
+
+    @Test
+    public void missingObjectIsEmpty() throws IOException {
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(makeException(404, "NoSuchKey"));
+        when(s3Client.getObjectMetadata(any(String.class), any(String.class))).thenThrow(makeException(404, null));
+
+        assertThat(dao.getMeasObjectIfPresent(MEAS_ID, "key")).isEmpty();
+        assertThat(dao.getMeasObjectRawIfPresent(MEAS_ID, "key")).isEmpty();
+        assertThat(dao.getMeasObjectRawIfPresent(MEAS_ID, "key", 10, 20)).isEmpty();
+        assertThat(dao.getMeasObjectSizeIfPresent(MEAS_ID, "key")).isEmpty();
+    }
+
+    @Test
+    public void noSuchKeyErrorIsEmpty() throws IOException {
+        // Some S3-compatible stores report a missing key with another status code.
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(makeException(400, "NoSuchKey"));
+
+        assertThat(dao.getMeasObjectIfPresent(MEAS_ID, "key")).isEmpty();
+        assertThat(dao.getMeasObjectRawIfPresent(MEAS_ID, "key")).isEmpty();
+    }
+
+    @Test
+    public void otherErrorsAreThrown() {
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(makeException(403, "AccessDenied"));
+        when(s3Client.getObjectMetadata(any(String.class), any(String.class))).thenThrow(makeException(500, "InternalError"));
+
+        assertThatThrownBy(() -> dao.getMeasObjectIfPresent(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasCauseInstanceOf(AmazonS3Exception.class);
+        assertThatThrownBy(() -> dao.getMeasObjectRawIfPresent(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasCauseInstanceOf(AmazonS3Exception.class);
+        assertThatThrownBy(() -> dao.getMeasObjectSizeIfPresent(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasCauseInstanceOf(AmazonS3Exception.class);
+        assertThatThrownBy(() -> dao.getMeasObject(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasCauseInstanceOf(AmazonS3Exception.class);
+    }
+
+    @Test
+    public void objectVersionIsETagOrLastModified() throws IOException {
+        ObjectMetadata withETag = makeMetadata(10);
+        withETag.setHeader("ETag", "etag-1");
+        ObjectMetadata withoutETag = makeMetadata(10);
+        withoutETag.setLastModified(new Date(1234L));
+        when(s3Client.getObjectMetadata("test-bucket", MeasObjectStoreDAO.makeS3Key(MEAS_ID, "a"))).thenReturn(withETag);
+        when(s3Client.getObjectMetadata("test-bucket", MeasObjectStoreDAO.makeS3Key(MEAS_ID, "b"))).thenReturn(withoutETag);
+        when(s3Client.getObjectMetadata("test-bucket", MeasObjectStoreDAO.makeS3Key(MEAS_ID, "c"))).thenThrow(makeException(404, null));
+
+        assertThat(dao.getMeasObjectVersionIfPresent(MEAS_ID, "a")).contains("etag-1");
+        assertThat(dao.getMeasObjectVersionIfPresent(MEAS_ID, "b")).contains("1234");
+        assertThat(dao.getMeasObjectVersionIfPresent(MEAS_ID, "c")).isEmpty();
+    }
+
+    @Test
+    public void missingObjectIsAnErrorWhenRequired() {
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(makeException(404, "NoSuchKey"));
+
+        assertThatThrownBy(() -> dao.getMeasObject(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasMessageContaining("No object found");
+        assertThatThrownBy(() -> dao.getMeasObjectRaw(MEAS_ID, "key"))
+            .isInstanceOf(IOException.class).hasMessageContaining("No object found");
+    }
+
+    @Test
+    public void objectUpToThresholdIsPutInOneRequest() throws IOException {
+        dao.putMeasObjectRaw(MEAS_ID, "small", new byte[16]);
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture());
+        assertThat(request.getValue().getMetadata().getContentLength()).isEqualTo(16);
+        verify(s3Client, never()).initiateMultipartUpload(any());
+    }
+
+    @Test
+    public void objectAboveThresholdIsUploadedInParts() throws IOException {
+        Set<String> uploadThreads = ConcurrentHashMap.newKeySet();
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(inv -> {
+            UploadPartRequest request = inv.getArgument(0);
+            uploadThreads.add(Thread.currentThread().getName());
+            Thread.sleep(20);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber() + "-" + request.getPartSize());
+            return result;
+        });
+
+        dao.putMeasObjectRaw(MEAS_ID, "large", new byte[23]);
+
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+        verify(s3Client, times(5)).uploadPart(any(UploadPartRequest.class));
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(complete.capture());
+        List<String> etags = complete.getValue().getPartETags().stream().map(PartETag::getETag).collect(Collectors.toList());
+        assertThat(etags).containsExactly("etag-1-5", "etag-2-5", "etag-3-5", "etag-4-5", "etag-5-3");
+        assertThat(uploadThreads).hasSizeGreaterThan(1);
+        verify(s3Client, never()).abortMultipartUpload(any());
+    }
+
+    @Test
+    public void failedPartAbortsUpload() {
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(inv -> {
+            UploadPartRequest request = inv.getArgument(0);
+            if (request.getPartNumber() == 2) throw new AmazonS3Exception("Request Timeout");
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+
+        assertThatThrownBy(() -> dao.putMeasObjectRaw(MEAS_ID, "large", new byte[23]))
+            .isInstanceOf(IOException.class)
+            .hasRootCauseInstanceOf(AmazonS3Exception.class);
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abort = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client).abortMultipartUpload(abort.capture());
+        assertThat(abort.getValue().getUploadId()).isEqualTo("upload-1");
+        verify(s3Client, never()).completeMultipartUpload(any());
+    }
+
+    @Test
+    public void interruptedRetryKeepsInterruptFlag() {
+        ReflectionTestUtils.setField(dao, "uploadRetryDelayMs", 60000);
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenThrow(new AmazonS3Exception("Request Timeout"));
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThatThrownBy(() -> dao.putMeasObjectRaw(MEAS_ID, "small", new byte[4]))
+                .isInstanceOf(IOException.class)
+                .hasCauseInstanceOf(InterruptedException.class);
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+        verify(s3Client, times(1)).putObject(any(PutObjectRequest.class));
+    }
+
+    private static S3Object makeObject(byte[] content) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        object.setObjectMetadata(makeMetadata(content.length));
+        return object;
+    }
+
+    private static ObjectMetadata makeMetadata(long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        return metadata;
+    }
+
+    private static AmazonS3Exception makeException(int statusCode, String errorCode) {
+        AmazonS3Exception e = new AmazonS3Exception("S3 error " + statusCode);
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+}
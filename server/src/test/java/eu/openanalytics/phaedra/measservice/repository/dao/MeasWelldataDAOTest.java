@@ -0,0 +1,212 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.repository.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import eu.openanalytics.phaedra.measservice.repository.dao.MeasWelldataDAO.ConflictPolicy;
+import eu.openanalytics.phaedra.measservice.support.Containers;
+
+@Testcontainers
+@SpringBootTest
+@Sql({"/jdbc/test-data.sql"})
+@TestPropertySource(locations = "classpath:application-test.properties")
+public class MeasWelldataDAOTest {
+
+    private static final long MEAS_ID = 1000;
+
+    @Autowired
+    private MeasWelldataDAO welldataDAO;
+
+    @MockBean
+    private AmazonS3 s3Client;
+
+    @DynamicPropertySource
+    static void registerPgProperties(DynamicPropertyRegistry registry) {
+        registry.add("DB_URL", Containers.postgreSQLContainer::getJdbcUrl);
+        registry.add("DB_USERNAME", Containers.postgreSQLContainer::getUsername);
+        registry.add("DB_PASSWORD", Containers.postgreSQLContainer::getPassword);
+        registry.add("DB_SCHEMA", () -> "measservice");
+
+        registry.add("S3_ENDPOINT", () -> "https://s3.amazonaws.com");
+        registry.add("S3_REGION", () -> "eu-west-1");
+        registry.add("S3_USERNAME", () -> "test");
+        registry.add("S3_PASSWORD", () -> "test");
+        registry.add("S3_BUCKET", () -> "phaedra2-poc-measdata");
+    }
+
+    @AfterEach
+    void after() {
+        ReflectionTestUtils.setField(welldataDAO, "conflictPolicy", ConflictPolicy.REPLACE);
+    }
+
+    @Test
+    public void savedColumnsAreReplaced() {
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 1f, 2f }, "wellCol2", new float[] { 3f }));
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 4f, 5f }));
+
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+        assertThat(data).hasSize(2);
+        assertThat(data.get("wellCol1")).containsExactly(4f, 5f);
+        assertThat(data.get("wellCol2")).containsExactly(3f);
+    }
+
+    @Test
+    public void savedColumnsAreKeptWithIgnorePolicy() {
+        ReflectionTestUtils.setField(welldataDAO, "conflictPolicy", ConflictPolicy.IGNORE);
+
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 1f, 2f }));
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 4f, 5f }, "wellCol2", new float[] { 3f }));
+        welldataDAO.saveData(MEAS_ID, "wellCol2", new float[] { 6f });
+
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+        assertThat(data).hasSize(2);
+        assertThat(data.get("wellCol1")).containsExactly(1f, 2f);
+        assertThat(data.get("wellCol2")).containsExactly(3f);
+    }
+
+    @Test
+    public void redeliveredDataIsSavedOnce() {
+        for (ConflictPolicy policy: ConflictPolicy.values()) {
+            ReflectionTestUtils.setField(welldataDAO, "conflictPolicy", policy);
+            Map<String, float[]> columns = columns("wellCol1", new float[] { 1f, 2f }, "wellCol2", new float[] { 3f });
+
+            welldataDAO.saveData(MEAS_ID, columns);
+            welldataDAO.saveData(MEAS_ID, columns);
+
+            Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+            assertThat(data).hasSize(2);
+            assertThat(data.get("wellCol1")).containsExactly(1f, 2f);
+            assertThat(data.get("wellCol2")).containsExactly(3f);
+            welldataDAO.deleteData(MEAS_ID);
+        }
+    }
+
+    @Test
+    public void stagingTableIsEmptyAfterEachSave() {
+        // Consecutive saves on this thread get the same pooled connection, and so the same staging table.
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 1f }));
+        welldataDAO.saveData(MEAS_ID, "wellCol1", new float[] { 2f });
+        welldataDAO.saveData(MEAS_ID, columns("wellCol2", new float[] { 3f }));
+
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+        assertThat(data).hasSize(2);
+        assertThat(data.get("wellCol1")).containsExactly(2f);
+        assertThat(data.get("wellCol2")).containsExactly(3f);
+    }
+
+    @Test
+    public void rejectedCopyIsRolledBack() {
+        // The staging table does not accept a null column name, which aborts the copy on the server side.
+        Map<String, float[]> columns = columns("wellCol1", new float[] { 1f }, null, new float[] { 2f }, "wellCol3", new float[] { 3f });
+        assertThatThrownBy(() -> welldataDAO.saveData(MEAS_ID, columns)).isInstanceOf(RuntimeException.class);
+        assertThat(welldataDAO.getData(MEAS_ID)).isEmpty();
+
+        welldataDAO.saveData(MEAS_ID, columns("wellCol2", new float[] { 4f }));
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+        assertThat(data).hasSize(1);
+        assertThat(data.get("wellCol2")).containsExactly(4f);
+    }
+
+    @Test
+    public void interruptedCopyIsRolledBack() {
+        // The data fails to produce its second column, after the first one has been sent.
+        Map<String, float[]> columns = new AbstractMap<>() {
+            @Override
+            public Set<Entry<String, float[]>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, float[]>> iterator() {
+                        Iterator<Entry<String, float[]>> it = List.<Entry<String, float[]>>of(Map.entry("wellCol1", new float[] { 1f })).iterator();
+                        return new Iterator<>() {
+                            @Override
+                            public boolean hasNext() {
+                                return true;
+                            }
+                            @Override
+                            public Entry<String, float[]> next() {
+                                if (it.hasNext()) return it.next();
+                                throw new IllegalStateException("Data source failed");
+                            }
+                        };
+                    }
+                    @Override
+                    public int size() {
+                        return 2;
+                    }
+                };
+            }
+        };
+        assertThatThrownBy(() -> welldataDAO.saveData(MEAS_ID, columns)).isInstanceOf(IllegalStateException.class);
+        assertThat(welldataDAO.getData(MEAS_ID)).isEmpty();
+
+        welldataDAO.saveData(MEAS_ID, columns("wellCol2", new float[] { 4f }));
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID);
+        assertThat(data).hasSize(1);
+        assertThat(data.get("wellCol2")).containsExactly(4f);
+    }
+
+    @Test
+    public void columnSubsetIsReturned() {
+        welldataDAO.saveData(MEAS_ID, columns("wellCol1", new float[] { 1f }, "wellCol2", new float[] { 2f }, "wellCol3", new float[] { 3f }));
+        welldataDAO.saveData(2000L, columns("wellCol1", new float[] { 4f }));
+
+        Map<String, float[]> data = welldataDAO.getData(MEAS_ID, new String[] { "wellCol3", "wellCol1", "unknownCol" });
+        assertThat(data).containsOnlyKeys("wellCol1", "wellCol3");
+        assertThat(data.get("wellCol1")).containsExactly(1f);
+        assertThat(data.get("wellCol3")).containsExactly(3f);
+
+        assertThat(welldataDAO.getData(MEAS_ID, new String[] { "unknownCol" })).isEmpty();
+        assertThat(welldataDAO.getData(MEAS_ID, new String[0])).isEmpty();
+        assertThat(welldataDAO.getData(9999L, new String[] { "wellCol1" })).isEmpty();
+    }
+
+    private static Map<String, float[]> columns(Object... namesAndValues) {
+        Map<String, float[]> columns = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            columns.put((String) namesAndValues[i], (float[]) namesAndValues[i + 1]);
+        }
+        return columns;
+    }
+}
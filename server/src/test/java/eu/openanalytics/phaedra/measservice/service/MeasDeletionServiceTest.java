@@ -0,0 +1,244 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import eu.openanalytics.phaedra.measservice.model.DeletionJob;
+import eu.openanalytics.phaedra.measservice.model.DeletionJob.Stage;
+import eu.openanalytics.phaedra.measservice.model.DeletionJob.Status;
+import eu.openanalytics.phaedra.measservice.repository.DeletionJobRepository;
+import eu.openanalytics.phaedra.measservice.repository.MeasDataRepository;
+import eu.openanalytics.phaedra.measservice.support.Containers;
+
+@Testcontainers
+@SpringBootTest
+@TestPropertySource(locations = "classpath:application-test.properties")
+public class MeasDeletionServiceTest {
+
+    @Autowired
+    private DeletionJobRepository jobRepo;
+
+    // The object store is not used, and the application's own deletion service must not pick up the test jobs.
+    @MockBean
+    private AmazonS3 s3Client;
+    @MockBean
+    private MeasDeletionService applicationDeletionService;
+
+    private MeasDataRepository measDataRepo;
+    private MeasDeletionService deletionService;
+
+    @DynamicPropertySource
+    static void registerPgProperties(DynamicPropertyRegistry registry) {
+        registry.add("DB_URL", Containers.postgreSQLContainer::getJdbcUrl);
+        registry.add("DB_USERNAME", Containers.postgreSQLContainer::getUsername);
+        registry.add("DB_PASSWORD", Containers.postgreSQLContainer::getPassword);
+        registry.add("DB_SCHEMA", () -> "measservice");
+
+        registry.add("S3_ENDPOINT", () -> "https://s3.amazonaws.com");
+        registry.add("S3_REGION", () -> "eu-west-1");
+        registry.add("S3_USERNAME", () -> "test");
+        registry.add("S3_PASSWORD", () -> "test");
+        registry.add("S3_BUCKET", () -> "phaedra2-poc-measdata");
+    }
+
+    @BeforeEach
+    void before() {
+        jobRepo.deleteAll();
+        measDataRepo = mock(MeasDataRepository.class);
+        deletionService = createDeletionService("worker-a");
+    }
+
+    @AfterEach
+    void after() {
+        deletionService.shutdown();
+    }
+
+    @Test
+    public void jobIsClaimedOnce() {
+        DeletionJob job = jobRepo.save(createJob(Status.PENDING, null, null));
+
+        assertThat(jobRepo.claimJob(job.getId(), "worker-a", new Date())).isEqualTo(1);
+        assertThat(jobRepo.claimJob(job.getId(), "worker-b", new Date())).isEqualTo(0);
+
+        DeletionJob claimed = jobRepo.findById(job.getId()).get();
+        assertThat(claimed.getStatus()).isEqualTo(Status.RUNNING);
+        assertThat(claimed.getClaimedBy()).isEqualTo("worker-a");
+        assertThat(claimed.getHeartbeatAt()).isNotNull();
+    }
+
+    @Test
+    public void progressIsOnlySavedByLeaseHolder() {
+        DeletionJob job = jobRepo.save(createJob(Status.RUNNING, "worker-a", new Date()));
+
+        assertThat(jobRepo.saveProgress(job.getId(), "worker-b", Stage.IMAGEDATA.name(), 10, new Date())).isEqualTo(0);
+        assertThat(jobRepo.saveProgress(job.getId(), "worker-a", Stage.SUBWELLDATA.name(), 5, new Date())).isEqualTo(1);
+
+        DeletionJob saved = jobRepo.findById(job.getId()).get();
+        assertThat(saved.getStage()).isEqualTo(Stage.SUBWELLDATA);
+        assertThat(saved.getDeletedObjects()).isEqualTo(5);
+    }
+
+    @Test
+    public void onlyExpiredLeasesAreReleased() {
+        long now = System.currentTimeMillis();
+        DeletionJob live = jobRepo.save(createJob(Status.RUNNING, "worker-b", new Date(now)));
+        DeletionJob expired = jobRepo.save(createJob(Status.RUNNING, "worker-c", new Date(now - 3_600_000)));
+
+        assertThat(jobRepo.releaseExpiredJobs(new Date(now - 600_000))).isEqualTo(1);
+        assertThat(jobRepo.findById(live.getId()).get().getStatus()).isEqualTo(Status.RUNNING);
+        assertThat(jobRepo.findById(expired.getId()).get().getStatus()).isEqualTo(Status.PENDING);
+        assertThat(jobRepo.findById(expired.getId()).get().getClaimedBy()).isNull();
+    }
+
+    @Test
+    public void completionAndFailureAreOnlySavedByLeaseHolder() {
+        DeletionJob job = jobRepo.save(createJob(Status.RUNNING, "worker-b", new Date()));
+
+        assertThat(jobRepo.completeJob(job.getId(), "worker-a", 10, new Date())).isEqualTo(0);
+        assertThat(jobRepo.failJob(job.getId(), "worker-a", Status.PENDING.name(), 1, "error", new Date(), new Date())).isEqualTo(0);
+        DeletionJob untouched = jobRepo.findById(job.getId()).get();
+        assertThat(untouched.getStatus()).isEqualTo(Status.RUNNING);
+        assertThat(untouched.getClaimedBy()).isEqualTo("worker-b");
+
+        assertThat(jobRepo.failJob(job.getId(), "worker-b", Status.PENDING.name(), 1, "error", new Date(), new Date())).isEqualTo(1);
+        DeletionJob released = jobRepo.findById(job.getId()).get();
+        assertThat(released.getStatus()).isEqualTo(Status.PENDING);
+        assertThat(released.getClaimedBy()).isNull();
+        assertThat(released.getAttempts()).isEqualTo(1);
+        assertThat(released.getLastError()).isEqualTo("error");
+    }
+
+    @Test
+    public void failedJobIsRetried() throws InterruptedException {
+        doThrow(new RuntimeException("store unavailable")).when(measDataRepo).deleteWellData(42L);
+
+        DeletionJob job = deletionService.requestDeletion(42L);
+        DeletionJob retried = awaitStatus(job.getId(), Status.PENDING, j -> j.getAttempts() == 1);
+
+        assertThat(retried.getLastError()).isEqualTo("store unavailable");
+        assertThat(retried.getClaimedBy()).isNull();
+        assertThat(retried.getNextAttemptOn()).isAfter(new Date());
+    }
+
+    @Test
+    public void defaultWorkerIdIsUniquePerProcess() {
+        MeasDeletionService first = createDeletionService("");
+        MeasDeletionService second = createDeletionService("");
+        try {
+            String firstId = (String) ReflectionTestUtils.getField(first, "workerId");
+            String secondId = (String) ReflectionTestUtils.getField(second, "workerId");
+            assertThat(firstId).isNotBlank().isNotEqualTo(secondId);
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void jobRunsThroughAllStages() throws InterruptedException {
+        when(measDataRepo.deleteSubWellData(eq(42L), anyInt())).thenReturn(3, 0);
+        when(measDataRepo.deleteImageData(eq(42L), anyInt())).thenReturn(0);
+
+        DeletionJob job = deletionService.requestDeletion(42L);
+        DeletionJob completed = awaitStatus(job.getId(), Status.COMPLETED);
+
+        assertThat(completed.getStage()).isEqualTo(Stage.DONE);
+        assertThat(completed.getDeletedObjects()).isEqualTo(3);
+        assertThat(completed.getClaimedBy()).isEqualTo("worker-a");
+        verify(measDataRepo).deleteWellData(42L);
+    }
+
+    @Test
+    public void restartResumesOwnJobsOnly() throws InterruptedException {
+        DeletionJob own = jobRepo.save(createJob(Status.RUNNING, "worker-a", new Date()));
+        DeletionJob other = jobRepo.save(createJob(Status.RUNNING, "worker-b", new Date()));
+
+        deletionService.resumeJobs();
+
+        assertThat(awaitStatus(own.getId(), Status.COMPLETED).getClaimedBy()).isEqualTo("worker-a");
+        DeletionJob untouched = jobRepo.findById(other.getId()).get();
+        assertThat(untouched.getStatus()).isEqualTo(Status.RUNNING);
+        assertThat(untouched.getClaimedBy()).isEqualTo("worker-b");
+    }
+
+    private MeasDeletionService createDeletionService(String workerId) {
+        MeasDeletionService service = new MeasDeletionService(jobRepo, measDataRepo);
+        ReflectionTestUtils.setField(service, "workerCount", 2);
+        ReflectionTestUtils.setField(service, "batchSize", 100);
+        ReflectionTestUtils.setField(service, "maxAttempts", 3);
+        ReflectionTestUtils.setField(service, "retryDelayMs", 60_000L);
+        ReflectionTestUtils.setField(service, "maxRetryDelayMs", 60_000L);
+        ReflectionTestUtils.setField(service, "leaseTimeoutMs", 600_000L);
+        ReflectionTestUtils.setField(service, "workerId", workerId);
+        service.init();
+        return service;
+    }
+
+    private DeletionJob createJob(Status status, String claimedBy, Date heartbeatAt) {
+        DeletionJob job = new DeletionJob();
+        job.setMeasId(42L);
+        job.setStatus(status);
+        job.setStage(Stage.WELLDATA);
+        job.setClaimedBy(claimedBy);
+        job.setHeartbeatAt(heartbeatAt);
+        job.setCreatedOn(new Date());
+        job.setUpdatedOn(new Date());
+        return job;
+    }
+
+    private DeletionJob awaitStatus(long jobId, Status status) throws InterruptedException {
+        return awaitStatus(jobId, status, j -> true);
+    }
+
+    private DeletionJob awaitStatus(long jobId, Status status, Predicate<DeletionJob> condition) throws InterruptedException {
+        DeletionJob job = jobRepo.findById(jobId).get();
+        for (int i = 0; i < 100 && (job.getStatus() != status || !condition.test(job)); i++) {
+            Thread.sleep(100);
+            job = jobRepo.findById(jobId).get();
+        }
+        assertThat(job.getStatus()).isEqualTo(status);
+        return job;
+    }
+}
@@ -20,20 +20,25 @@
  */
 package eu.openanalytics.phaedra.measservice.service;
 
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
 
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-
-import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
+import eu.openanalytics.phaedra.measservice.dto.SubwellDataDTO;
 import eu.openanalytics.phaedra.measservice.dto.WellDataDTO;
 
 @ExtendWith(MockitoExtension.class)
@@ -44,6 +49,7 @@ import eu.openanalytics.phaedra.measservice.dto.WellDataDTO;
 class MeasKafkaConsumerTest {
 
     @Mock private MeasService measService;
+    @Mock private KafkaProducerService kafkaProducerService;
     @InjectMocks private KafkaConsumerService measKafkaConsumer;
 
     private WellDataDTO wellData;
@@ -53,17 +59,93 @@ class MeasKafkaConsumerTest {
         wellData = new WellDataDTO(1, "TestColumn", new float[] {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f, 8.0f, 9.0f});
     }
 
-//    @Test
-    void onSaveWellData_handlesEventWithSaveWellDataKey() throws JsonProcessingException {
+    @Test
+    void onSaveWellData_groupsBatchPerMeasurement() {
+        // given
+        WellDataDTO otherColumn = new WellDataDTO(1, "OtherColumn", new float[] {1.0f});
+        WellDataDTO otherMeas = new WellDataDTO(2, "TestColumn", new float[] {2.0f});
+        WellDataDTO invalid = new WellDataDTO(2, "", new float[] {3.0f});
+
+        // when
+        measKafkaConsumer.onSaveWellData(List.of(wellData, otherColumn, otherMeas, invalid));
+
+        // then
+        verify(measService).setMeasWellData(1L, Map.of(wellData.getColumn(), wellData.getData(), otherColumn.getColumn(), otherColumn.getData()));
+        verify(measService).setMeasWellData(2L, Map.of(otherMeas.getColumn(), otherMeas.getData()));
+    }
+
+    @Test
+    void onSaveWellData_keepsValidColumnsOfInvalidGroup() {
+        // given
+        WellDataDTO otherColumn = new WellDataDTO(1, "OtherColumn", new float[] {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f, 8.0f, 9.0f});
+        WellDataDTO wrongLength = new WellDataDTO(1, "WrongLength", new float[] {1.0f});
+        doThrow(new IllegalArgumentException("unexpected count")).when(measService).setMeasWellData(eq(1L), anyMap());
+        lenient().doThrow(new IllegalArgumentException("unexpected count")).when(measService).setMeasWellData(1L, wrongLength.getColumn(), wrongLength.getData());
+
+        // when
+        measKafkaConsumer.onSaveWellData(List.of(wellData, wrongLength, otherColumn));
+
+        // then
+        verify(measService).setMeasWellData(1L, wellData.getColumn(), wellData.getData());
+        verify(measService).setMeasWellData(1L, otherColumn.getColumn(), otherColumn.getData());
+        verify(measService).setMeasWellData(1L, wrongLength.getColumn(), wrongLength.getData());
+    }
+
+    @Test
+    void onSaveSubwellData_savesEachColumnSeparately() {
+        // given
+        SubwellDataDTO valid = new SubwellDataDTO();
+        valid.setMeasurementId(1);
+        valid.setWellId(1);
+        valid.setColumn("TestColumn");
+        valid.setData(new float[] {1.0f});
+        SubwellDataDTO clashing = new SubwellDataDTO();
+        clashing.setMeasurementId(1);
+        clashing.setWellId(1);
+        clashing.setColumn("ClashingColumn");
+        clashing.setData(new float[] {2.0f});
+        lenient().doThrow(new IllegalArgumentException("column exists")).when(measService).addMeasSubWellData(1L, Map.of("ClashingColumn", Map.of(1, clashing.getData())));
+
+        // when
+        measKafkaConsumer.onSaveSubwellData(List.of(clashing, valid));
+
+        // then
+        verify(measService).addMeasSubWellData(1L, Map.of("TestColumn", Map.of(1, valid.getData())));
+        verify(measService).addMeasSubWellData(1L, Map.of("ClashingColumn", Map.of(1, clashing.getData())));
+    }
+
+    @Test
+    void onSaveSubwellData_groupsBatchPerMeasurement() {
+        // given
+        SubwellDataDTO well1 = new SubwellDataDTO();
+        well1.setMeasurementId(1);
+        well1.setWellId(1);
+        well1.setColumn("TestColumn");
+        well1.setData(new float[] {1.0f});
+        SubwellDataDTO well2 = new SubwellDataDTO();
+        well2.setMeasurementId(1);
+        well2.setWellId(2);
+        well2.setColumn("TestColumn");
+        well2.setData(new float[] {2.0f, 3.0f});
+
+        // when
+        measKafkaConsumer.onSaveSubwellData(List.of(well1, well2));
+
+        // then
+        verify(measService).addMeasSubWellData(1L, Map.of("TestColumn", Map.of(1, well1.getData(), 2, well2.getData())));
+    }
+
+    @Test
+    void onSaveSubwellData_ignoresInvalidRequests() {
         // given
-        MeasurementDTO measurementDTO = new MeasurementDTO();
-        measurementDTO.setId(1L);
-        when(measService.findMeasById(measurementDTO.getId())).thenReturn(Optional.of(measurementDTO));
+        SubwellDataDTO empty = new SubwellDataDTO();
+        empty.setMeasurementId(1);
+        empty.setColumn("TestColumn");
 
         // when
-        measKafkaConsumer.onSaveWellData(wellData);
+        measKafkaConsumer.onSaveSubwellData(List.of(empty));
 
         // then
-        verify(measService).setMeasWellData(measurementDTO.getId(), wellData.getColumn(), wellData.getData());
+        verify(measService, never()).addMeasSubWellData(anyLong(), anyMap());
     }
 }
@@ -0,0 +1,113 @@
+/**
+ * Phaedra II
+ *
+ * Copyright (C) 2016-2023 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.phaedra.measservice.service;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.openanalytics.phaedra.measservice.model.Measurement;
+import eu.openanalytics.phaedra.measservice.repository.MeasDataRepository;
+import eu.openanalytics.phaedra.measservice.repository.MeasRepository;
+import eu.openanalytics.phaedra.util.auth.IAuthorizationService;
+
+public class MeasServiceImplTest {
+
+    private MeasRepository measRepo;
+    private MeasDataRepository measDataRepo;
+    private MeasServiceImpl measService;
+
+    @BeforeEach
+    public void setUp() {
+        measRepo = mock(MeasRepository.class);
+        measDataRepo = mock(MeasDataRepository.class);
+        measService = new MeasServiceImpl(measRepo, measDataRepo, mock(ModelMapper.class), mock(IAuthorizationService.class), mock(MeasDeletionService.class));
+        when(measRepo.existsById(1L)).thenReturn(true);
+    }
+
+    @Test
+    public void perWellSubWellDataIsRejectedForPlateWideColumn() {
+        when(measDataRepo.hasSubWellColumnData(1L, "area")).thenReturn(true);
+
+        assertThatThrownBy(() -> measService.setMeasSubWellData(1L, 5, "area", new float[] { 1.0f }))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> measService.addMeasSubWellData(1L, Map.of("area", Map.of(5, new float[] { 1.0f }))))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        verify(measDataRepo, never()).putSubWellData(anyLong(), anyInt(), anyString(), any());
+        verify(measDataRepo, never()).putSubWellDataPerWell(anyLong(), any());
+    }
+
+    @Test
+    public void perWellSubWellDataIsAcceptedForOtherColumns() {
+        when(measDataRepo.hasSubWellColumnData(1L, "area")).thenReturn(false);
+
+        float[] values = new float[] { 1.0f };
+        measService.setMeasSubWellData(1L, 5, "area", values);
+
+        verify(measDataRepo).putSubWellData(1L, 5, "area", values);
+        verify(measRepo).addSubWellColumns(1L, new String[] { "area" });
+    }
+
+    @Test
+    public void plateWideSubWellDataReplacesPerWellData() {
+        // The column is registered, because it was saved per well before
+        when(measRepo.findById(1L)).thenReturn(Optional.of(createMeas(new String[] { "area" })));
+        when(measDataRepo.hasSubWellColumnData(1L, "area")).thenReturn(false);
+
+        Map<Integer, float[]> data = Map.of(0, new float[] { 1.0f }, 1, new float[] { 2.0f });
+        measService.setMeasSubWellData(1L, "area", data);
+
+        verify(measDataRepo).putSubWellData(1L, "area", data);
+        verify(measRepo).addSubWellColumns(1L, new String[] { "area" });
+    }
+
+    @Test
+    public void plateWideSubWellDataIsSavedOnce() {
+        when(measRepo.findById(1L)).thenReturn(Optional.of(createMeas(new String[] { "area" })));
+        when(measDataRepo.hasSubWellColumnData(1L, "area")).thenReturn(true);
+
+        assertThatThrownBy(() -> measService.setMeasSubWellData(1L, "area", Map.of(0, new float[] { 1.0f }, 1, new float[] { 2.0f })))
+            .isInstanceOf(IllegalArgumentException.class);
+        verify(measDataRepo, never()).putSubWellData(anyLong(), anyString(), any());
+    }
+
+    private Measurement createMeas(String[] subWellColumns) {
+        Measurement meas = new Measurement();
+        meas.setId(1L);
+        meas.setRows(1);
+        meas.setColumns(2);
+        meas.setSubWellColumns(subWellColumns);
+        return meas;
+    }
+}
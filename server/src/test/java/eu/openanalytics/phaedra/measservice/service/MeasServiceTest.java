@@ -22,22 +22,24 @@ package eu.openanalytics.phaedra.measservice.service;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.jdbc.Sql;
-import org.testcontainers.containers.JdbcDatabaseContainer;
-import org.testcontainers.containers.PostgreSQLContainer;
-import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import com.amazonaws.services.s3.AmazonS3;
+
 import eu.openanalytics.phaedra.measservice.dto.MeasurementDTO;
 import eu.openanalytics.phaedra.measservice.repository.MeasDataRepository;
 import eu.openanalytics.phaedra.measservice.repository.MeasRepository;
@@ -64,12 +66,11 @@ public class MeasServiceTest {
 
     @Autowired ModelMapper modelMapper;
 
-    @Container
-    private static JdbcDatabaseContainer postgreSQLContainer = new PostgreSQLContainer("postgres:13-alpine")
-            .withDatabaseName("phaedra2")
-            .withUrlParam("currentSchema","measservice")
-            .withPassword("inmemory")
-            .withUsername("inmemory");
+    @Autowired
+    private MeasDeletionService deletionService;
+
+    @MockBean
+    private AmazonS3 s3Client;
 
     @DynamicPropertySource
     static void registerPgProperties(DynamicPropertyRegistry registry) {
@@ -87,7 +88,7 @@ public class MeasServiceTest {
 
     @BeforeEach
     void before() {
-        this.measService = new MeasServiceImpl(measRepository, measDataRepository, modelMapper, authService);
+        this.measService = new MeasServiceImpl(measRepository, measDataRepository, modelMapper, authService, deletionService);
     }
 
 //    @Test
@@ -104,4 +105,15 @@ public class MeasServiceTest {
         assertThat(get.getBarcode()).isEqualTo("SBETST0001");
     }
 
+    @Test
+    public void setMeasWellDataAddsColumns() {
+        float[] values = new float[384];
+        Arrays.fill(values, 1f);
+        measService.setMeasWellData(1000L, Map.of("wellCol2", values, "wellCol5", values));
+
+        assertThat(measService.findMeasById(1000L).get().getWellColumns())
+            .containsExactly("wellCol1", "wellCol2", "wellCol3", "wellCol4", "wellCol5");
+        assertThat(measService.getWellData(1000L).keySet()).containsExactlyInAnyOrder("wellCol2", "wellCol5");
+    }
+
 }